@@ -0,0 +1,18 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+# Writes the class data sharing archive of the classes a menu session loads,
+# used by run.sh and daemon.sh to start faster (JDK 13+). Run it after
+# compile.sh: the training run connects like run.sh and exits the menu
+# straight away, so postgres has to be running.
+rm -f bin/dbproject.jsa
+OUTPUT=$(echo 9 | java -XX:ArchiveClassesAtExit=bin/dbproject.jsa -cp lib/*:bin/ DBproject $DBNAME $PORT $USER 2>&1)
+if [ $? -ne 0 ]; then
+	rm -f bin/dbproject.jsa
+	echo "$OUTPUT" | tail -n 3 >&2
+	echo "Training run failed, no class data sharing archive written" >&2
+	exit 1
+fi
+echo "Wrote bin/dbproject.jsa"
@@ -0,0 +1,15 @@
+#! /bin/bash
+# Attaches to the menu of a running daemon.sh; pass -dir path if the daemon got one.
+SOCKET=/tmp/dbproject-$USER/menu.sock
+if [ "$1" = "-dir" ]; then
+	SOCKET=$2/menu.sock
+fi
+
+if [ ! -S "$SOCKET" ]; then
+	echo "No daemon listening on $SOCKET; start ./daemon.sh first" >&2
+	exit 1
+fi
+if command -v nc > /dev/null; then
+	exec nc -U "$SOCKET"
+fi
+exec socat -t 60 - UNIX-CONNECT:"$SOCKET"
@@ -1,3 +1,3 @@
 #! /bin/bash
-rm -rf bin/*.class
-javac -cp ".;lib/postgresql-42.1.4.jar;" src/DBproject.java -d bin/
+rm -rf bin/*.class bin/dbproject.jsa
+javac -cp "lib/postgresql-42.1.4.jar" -Xlint:all src/*.java -d bin/
@@ -0,0 +1,11 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+
+if [ -f bin/dbproject.jsa ]; then
+	JAVA_OPTS="-XX:SharedArchiveFile=bin/dbproject.jsa $JAVA_OPTS"
+fi
+
+# Example: ./daemon.sh &   then ./client.sh as often as needed
+java $JAVA_OPTS -cp lib/*:bin/ MenuDaemon $DBNAME $PORT $USER "$@"
@@ -3,5 +3,10 @@ DBNAME=$USER"_DB"
 PORT=$PGPORT
 USER=$USER
 
+# use the class data sharing archive written by cds.sh, if any
+if [ -f bin/dbproject.jsa ]; then
+	JAVA_OPTS="-XX:SharedArchiveFile=bin/dbproject.jsa $JAVA_OPTS"
+fi
+
 # Example: source ./run.sh
-java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+java $JAVA_OPTS -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
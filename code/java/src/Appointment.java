@@ -0,0 +1,29 @@
+/**
+ * A row of the Appointment table.
+ *
+ */
+
+public class Appointment{
+	//reads appnt_ID, adate, time_slot, status as the first four columns, as the listings select them
+	public static final RowMapper<Appointment> MAPPER = rs -> new Appointment(rs.getInt(1), rs.getDate(2), rs.getString(3), rs.getString(4));
+
+	//appnt_ID, or -1 if not assigned yet
+	public final int id;
+	public final java.sql.Date date;
+	//HH:MM-HH:MM
+	public final String timeSlot;
+	//PA, AC, AV or WL
+	public final String status;
+
+	public Appointment(int id, java.sql.Date date, String timeSlot, String status){
+		this.id = id;
+		this.date = date;
+		this.timeSlot = timeSlot;
+		this.status = status;
+	}
+
+	@Override
+	public String toString(){
+		return "appnt_ID: " + this.id + ", date: " + this.date + ", time_slot: " + this.timeSlot + ", status: " + this.status;
+	}
+}
@@ -0,0 +1,177 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class offers the statement helpers of DBproject and the menu
+ * operations of HospitalService as CompletableFutures, so a caller can start
+ * several independent calls and wait for the slowest instead of their sum.
+ * Calls run on a bounded executor with one thread per pooled connection;
+ * when its queue is full the calling thread runs the call itself, which
+ * slows down a caller that submits faster than the database answers.
+ *
+ * A failed call completes its future exceptionally with the
+ * SQLException (or IllegalArgumentException) as the cause.
+ *
+ */
+
+public class AsyncHospitalService{
+	/**
+	 * A blocking call to run on the executor.
+	 */
+	private interface Call<T>{
+		T run() throws SQLException;
+	}
+
+	private final DBproject _db;
+	private final ThreadPoolExecutor _executor;
+
+	/**
+	 * @param threads calls running at a time, normally the pool's maximum size
+	 * @param queueSize calls waiting for a thread before callers run them
+	 */
+	public AsyncHospitalService(DBproject db, int threads, int queueSize){
+		this._db = db;
+		AtomicInteger created = new AtomicInteger();
+		this._executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+				Thread t = new Thread(r, "async-" + created.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+		this._executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return the executor the calls run on, to chain further stages on it
+	 */
+	public Executor getExecutor(){
+		return this._executor;
+	}
+
+	private <T> CompletableFuture<T> submit(Call<T> call){
+		return CompletableFuture.supplyAsync(() -> {
+			try{
+				return call.run();
+			}catch (SQLException e){
+				throw new CompletionException(e);
+			}//end try
+		}, this._executor);
+	}
+
+	public CompletableFuture<Void> executeUpdate(String sql, Object... params){
+		return submit(() -> {
+			this._db.executeUpdate(sql, params);
+			return null;
+		});
+	}
+
+	public CompletableFuture<Integer> executeQuery(String query, Object... params){
+		return submit(() -> this._db.executeQuery(query, params));
+	}
+
+	public CompletableFuture<List<List<String>>> executeQueryAndReturnResult(String query, Object... params){
+		return submit(() -> this._db.executeQueryAndReturnResult(query, params));
+	}
+
+	public <T> CompletableFuture<List<T>> executeQueryAndMap(String query, RowMapper<T> mapper, Object... params){
+		return submit(() -> this._db.executeQueryAndMap(query, mapper, params));
+	}
+
+	public CompletableFuture<Integer> addDoctor(String name, String specialty, int departmentId){
+		return submit(() -> this._db.getService().addDoctor(name, specialty, departmentId));
+	}
+
+	public CompletableFuture<Integer> addPatient(String name, String gender, int age, String address){
+		return submit(() -> this._db.getService().addPatient(name, gender, age, address));
+	}
+
+	public CompletableFuture<Integer> addAppointment(java.sql.Date date, String timeSlot, String status){
+		return submit(() -> this._db.getService().addAppointment(date, timeSlot, status));
+	}
+
+	/**
+	 * Books an appointment (menu option 4). The doctor check, which may need
+	 * a lookup, and the patient lookup run in parallel before the booking
+	 * itself, which claims a new patient ID only if no patient was found.
+	 */
+	public CompletableFuture<BookingEngine.Result> makeAppointment(String name, String gender, int age, String address, int doctorId, int appointmentId){
+		long start = System.nanoTime();
+		CompletableFuture<Boolean> doctor = submit(() -> this._db.getReferenceCache().doctorExists(doctorId));
+		CompletableFuture<Integer> patient = submit(() -> this._db.getBookingEngine().findPatient(name, gender, age, address));
+		CompletableFuture<BookingEngine.Result> booked = doctor.thenCombine(patient, (exists, patientId) -> exists ? patientId : null)
+			.thenApplyAsync(patientId -> {
+				if (patientId == null) return new BookingEngine.Result(BookingEngine.Outcome.NO_DOCTOR, -1, false, null, null);
+				try{
+					return this._db.getBookingEngine().bookFound(name, gender, age, address, doctorId, appointmentId, patientId);
+				}catch (SQLException e){
+					throw new CompletionException(e);
+				}//end try
+			}, this._executor);
+		return booked.whenComplete((result, e) -> this._db.getMetrics().operation("makeAppointment")
+			.record(System.nanoTime() - start, result != null && result.isBooked() ? 1 : 0, e == null));
+	}
+
+	public CompletableFuture<BookingEngine.Cancellation> cancelAppointment(int appointmentId, int patientId){
+		return submit(() -> this._db.getService().cancelAppointment(appointmentId, patientId));
+	}
+
+	public CompletableFuture<List<List<String>>> listAppointmentsOfDoctor(int doctorId, java.sql.Date start, java.sql.Date end){
+		return submit(() -> this._db.getService().listAppointmentsOfDoctor(doctorId, start, end));
+	}
+
+	public CompletableFuture<HospitalService.Page> listAppointmentsOfDoctor(int doctorId, java.sql.Date start, java.sql.Date end, String cursor, int pageSize){
+		return submit(() -> this._db.getService().listAppointmentsOfDoctor(doctorId, start, end, cursor, pageSize));
+	}
+
+	public CompletableFuture<List<List<String>>> listAvailableAppointmentsOfDepartment(String departmentName, java.sql.Date date){
+		return submit(() -> this._db.getService().listAvailableAppointmentsOfDepartment(departmentName, date));
+	}
+
+	public CompletableFuture<HospitalService.Page> listAvailableAppointmentsOfDepartment(String departmentName, java.sql.Date date, String cursor, int pageSize){
+		return submit(() -> this._db.getService().listAvailableAppointmentsOfDepartment(departmentName, date, cursor, pageSize));
+	}
+
+	public CompletableFuture<List<List<String>>> listStatusNumberOfAppointmentsPerDoctor(){
+		return submit(() -> this._db.getService().listStatusNumberOfAppointmentsPerDoctor());
+	}
+
+	public CompletableFuture<List<List<String>>> findPatientsCountWithStatus(String status){
+		return submit(() -> this._db.getService().findPatientsCountWithStatus(status));
+	}
+
+	public CompletableFuture<List<Appointment>> appointmentsOfDoctor(int doctorId, java.sql.Date start, java.sql.Date end){
+		return submit(() -> this._db.getService().appointmentsOfDoctor(doctorId, start, end));
+	}
+
+	public CompletableFuture<List<Appointment>> availableAppointmentsOfDepartment(String departmentName, java.sql.Date date){
+		return submit(() -> this._db.getService().availableAppointmentsOfDepartment(departmentName, date));
+	}
+
+	public CompletableFuture<HospitalService.DoctorCounts> statusTypesPerDoctor(){
+		return submit(() -> this._db.getService().statusTypesPerDoctor());
+	}
+
+	public CompletableFuture<HospitalService.DoctorCounts> patientsPerDoctorWithStatus(String status){
+		return submit(() -> this._db.getService().patientsPerDoctorWithStatus(status));
+	}
+
+	/**
+	 * Stops accepting calls and waits briefly for the running ones.
+	 */
+	public void close(){
+		this._executor.shutdown();
+		try{
+			if (!this._executor.awaitTermination(5, TimeUnit.SECONDS)) this._executor.shutdownNow();
+		}catch (InterruptedException e){
+			this._executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+}
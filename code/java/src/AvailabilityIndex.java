@@ -0,0 +1,554 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the available (AV) appointments in memory, by department
+ * name and date, so menu 6 is answered without a query. Every (department,
+ * date) holds its time slots in order, each with the sorted IDs of its
+ * available appointments in an int array; the arrays are replaced, never
+ * changed, so searches read them without locking.
+ *
+ * The index is loaded once its channel is listened to, and then follows the
+ * database: bookings made through this client remove their appointment
+ * directly, and the create.sql triggers NOTIFY the availability_changed
+ * channel with the IDs of the appointments whose status, date, time slot or
+ * doctors changed, which are then re-read. A doctor moved to another
+ * department or a renamed department re-reads the appointments of that
+ * doctor or department; new doctors and departments have none yet, so they
+ * are ignored. Large changes (bulk loads, deletes) reload the whole index.
+ * Refreshes run one at a time on a background thread.
+ *
+ * The index only answers searches; make_appointment() still checks the
+ * appointment when it is booked.
+ *
+ */
+
+public class AvailabilityIndex{
+	//channel the create.sql triggers notify, with comma separated appnt_IDs or "reload" as payload
+	static final String CHANNEL = "availability_changed";
+	static final String RELOAD = "reload";
+
+	static final String LOAD_SQL =
+		"SELECT de.name, a.adate, a.time_slot, a.appnt_ID FROM Appointment a "
+		+ "INNER JOIN has_appointment ha ON ha.appt_id = a.appnt_ID INNER JOIN Doctor d ON d.doctor_ID = ha.doctor_id "
+		+ "INNER JOIN Department de ON de.dept_ID = d.did WHERE a.status = 'AV'";
+	static final String REFRESH_SQL =
+		"SELECT a.appnt_ID, a.adate, a.time_slot, a.status, de.name FROM Appointment a "
+		+ "LEFT JOIN has_appointment ha ON ha.appt_id = a.appnt_ID LEFT JOIN Doctor d ON d.doctor_ID = ha.doctor_id "
+		+ "LEFT JOIN Department de ON de.dept_ID = d.did WHERE a.appnt_ID = ANY(?::integer[])";
+	static final String DOCTOR_APPOINTMENTS_SQL =
+		"SELECT ha.appt_id FROM has_appointment ha INNER JOIN Appointment a ON a.appnt_ID = ha.appt_id "
+		+ "WHERE ha.doctor_id = ANY(?::integer[]) AND a.status = 'AV'";
+	static final String DEPARTMENT_APPOINTMENTS_SQL =
+		"SELECT ha.appt_id FROM Doctor d INNER JOIN has_appointment ha ON ha.doctor_id = d.doctor_ID "
+		+ "INNER JOIN Appointment a ON a.appnt_ID = ha.appt_id WHERE d.did = ANY(?::integer[]) AND a.status = 'AV'";
+
+	//appointments re-read per REFRESH_SQL round trip
+	private static final int REFRESH_CHUNK = 1000;
+	//how long load() waits for the first LISTEN before it loads anyway and reloads once listening
+	private static final long LISTEN_WAIT_MILLIS = 5000L;
+
+	/**
+	 * The available appointments of one department on one date. Immutable.
+	 */
+	public static final class Day{
+		static final Day EMPTY = new Day(new String[0], new int[0][]);
+
+		//time slots in order, "" for a missing time slot
+		private final String[] _slots;
+		//sorted appnt_IDs of each time slot
+		private final int[][] _ids;
+
+		private Day(String[] slots, int[][] ids){
+			this._slots = slots;
+			this._ids = ids;
+		}
+
+		public int slotCount(){
+			return this._slots.length;
+		}
+
+		public String slot(int i){
+			return this._slots[i];
+		}
+
+		//callers must not modify the array
+		public int[] ids(int i){
+			return this._ids[i];
+		}
+
+		public int size(){
+			int n = 0;
+			for (int[] ids : this._ids) n += ids.length;
+			return n;
+		}
+
+		Day with(String slot, int id){
+			int s = Arrays.binarySearch(this._slots, slot);
+			if (s < 0){
+				s = -s - 1;
+				String[] slots = new String[this._slots.length + 1];
+				int[][] ids = new int[this._ids.length + 1][];
+				System.arraycopy(this._slots, 0, slots, 0, s);
+				System.arraycopy(this._slots, s, slots, s + 1, this._slots.length - s);
+				System.arraycopy(this._ids, 0, ids, 0, s);
+				System.arraycopy(this._ids, s, ids, s + 1, this._ids.length - s);
+				slots[s] = slot;
+				ids[s] = new int[]{ id };
+				return new Day(slots, ids);
+			}//end if
+			int[] old = this._ids[s];
+			int i = Arrays.binarySearch(old, id);
+			if (i >= 0) return this;
+			i = -i - 1;
+			int[] added = new int[old.length + 1];
+			System.arraycopy(old, 0, added, 0, i);
+			System.arraycopy(old, i, added, i + 1, old.length - i);
+			added[i] = id;
+			int[][] ids = this._ids.clone();
+			ids[s] = added;
+			return new Day(this._slots, ids);
+		}
+
+		//null once the last appointment is gone
+		Day without(int id){
+			for (int s = 0; s < this._ids.length; ++s){
+				int[] old = this._ids[s];
+				int i = Arrays.binarySearch(old, id);
+				if (i < 0) continue;
+				if (old.length == 1){
+					if (this._slots.length == 1) return null;
+					String[] slots = new String[this._slots.length - 1];
+					int[][] ids = new int[this._ids.length - 1][];
+					System.arraycopy(this._slots, 0, slots, 0, s);
+					System.arraycopy(this._slots, s + 1, slots, s, slots.length - s);
+					System.arraycopy(this._ids, 0, ids, 0, s);
+					System.arraycopy(this._ids, s + 1, ids, s, ids.length - s);
+					return new Day(slots, ids);
+				}//end if
+				int[] removed = new int[old.length - 1];
+				System.arraycopy(old, 0, removed, 0, i);
+				System.arraycopy(old, i + 1, removed, i, removed.length - i);
+				int[][] ids = this._ids.clone();
+				ids[s] = removed;
+				return new Day(this._slots, ids);
+			}//end for
+			return this;
+		}
+	}
+
+	/**
+	 * Open addressing hash map from appnt_ID to the epoch day it was indexed
+	 * under, with linear probing. Guarded by the index.
+	 */
+	static final class IntIntMap{
+		private static final int FREE = Integer.MIN_VALUE;
+		private int[] _keys;
+		private int[] _values;
+		private int _size;
+
+		IntIntMap(int initialCapacity){
+			allocate(Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1);
+		}
+
+		private void allocate(int capacity){
+			this._keys = new int[capacity];
+			Arrays.fill(this._keys, FREE);
+			this._values = new int[capacity];
+			this._size = 0;
+		}
+
+		private int home(int key){
+			int h = key * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (this._keys.length - 1);
+		}
+
+		private int slot(int key){
+			int mask = this._keys.length - 1;
+			int i = home(key);
+			while (this._keys[i] != FREE && this._keys[i] != key){
+				i = (i + 1) & mask;
+			}//end while
+			return i;
+		}
+
+		//missing if the key is not in the map
+		int get(int key, int missing){
+			int i = slot(key);
+			return this._keys[i] == FREE ? missing : this._values[i];
+		}
+
+		void put(int key, int value){
+			int i = slot(key);
+			if (this._keys[i] == FREE){
+				if ((this._size + 1) * 4 > this._keys.length * 3){
+					int[] keys = this._keys;
+					int[] values = this._values;
+					allocate(keys.length * 2);
+					for (int j = 0; j < keys.length; ++j){
+						if (keys[j] != FREE) put(keys[j], values[j]);
+					}//end for
+					i = slot(key);
+				}//end if
+				++this._size;
+				this._keys[i] = key;
+			}//end if
+			this._values[i] = value;
+		}
+
+		/**
+		 * Removes the key, shifting the entries probed past it back so no
+		 * tombstone is left behind.
+		 */
+		void remove(int key){
+			int hole = slot(key);
+			if (this._keys[hole] == FREE) return;
+			int mask = this._keys.length - 1;
+			for (int j = (hole + 1) & mask; this._keys[j] != FREE; j = (j + 1) & mask){
+				//an entry may fill the hole if the hole lies between its home slot and j
+				if (((j - home(this._keys[j])) & mask) >= ((j - hole) & mask)){
+					this._keys[hole] = this._keys[j];
+					this._values[hole] = this._values[j];
+					hole = j;
+				}//end if
+			}//end for
+			this._keys[hole] = FREE;
+			--this._size;
+		}
+	}
+
+	/**
+	 * One loaded copy of the index, replaced as a whole by a reload.
+	 */
+	private static final class State{
+		//(department code << 32 | epoch day) to its available appointments
+		final ConcurrentHashMap<Long, Day> days = new ConcurrentHashMap<Long, Day>();
+		//department name to its code; there are few names, so updates can visit all of them
+		final ConcurrentHashMap<String, Integer> departments = new ConcurrentHashMap<String, Integer>();
+		final IntIntMap dayOf;
+
+		State(int expected){
+			this.dayOf = new IntIntMap(expected);
+		}
+
+		synchronized int department(String name){
+			Integer code = this.departments.get(name);
+			if (code == null){
+				code = this.departments.size();
+				this.departments.put(name, code);
+			}//end if
+			return code;
+		}
+
+		static long key(int department, int epochDay){
+			return ((long) department << 32) | (epochDay & 0xFFFFFFFFL);
+		}
+
+		void add(String department, int epochDay, String slot, int id){
+			this.days.compute(key(department(department), epochDay), (k, day) -> (day == null ? Day.EMPTY : day).with(slot, id));
+			synchronized (this.dayOf){
+				this.dayOf.put(id, epochDay);
+			}
+		}
+
+		void remove(int id){
+			int epochDay;
+			synchronized (this.dayOf){
+				epochDay = this.dayOf.get(id, Integer.MIN_VALUE);
+				this.dayOf.remove(id);
+			}
+			if (epochDay == Integer.MIN_VALUE) return;
+			for (int department : this.departments.values()){
+				this.days.computeIfPresent(key(department, epochDay), (k, day) -> day.without(id));
+			}//end for
+		}
+	}
+
+	private final DBproject _db;
+	private final ExecutorService _refresher;
+	private volatile State _state = null;
+	//appointments changed while a load was running, refreshed once it is done
+	private final Set<Integer> _changedDuringLoad = new LinkedHashSet<Integer>();
+	private boolean _loading = false;
+	//counted down by the first reset() of CHANNEL, once notifications are being received
+	private final CountDownLatch _listening = new CountDownLatch(1);
+	//a load ran before the first LISTEN, so the first reset() must reload
+	private volatile boolean _loadedUnlistened = false;
+
+	/**
+	 * @param feed where to LISTEN for changes made by other clients, null if
+	 *        only this client changes appointments
+	 */
+	public AvailabilityIndex(DBproject db, ChangeFeed feed){
+		this._db = db;
+		this._refresher = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "availability-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+		if (feed != null){
+			feed.subscribe(CHANNEL, new ChangeFeed.Listener(){
+				@Override
+				public void changed(String payload){
+					if (RELOAD.equals(payload)){
+						reloadLater();
+					}else{
+						refreshLater(parseIds(payload));
+					}//end if
+				}
+
+				@Override
+				public void reset(){
+					//the first reset comes with the first LISTEN; later ones mean notifications were missed
+					boolean first = _listening.getCount() > 0;
+					_listening.countDown();
+					if (first ? _loadedUnlistened : _state != null) reloadLater();
+				}
+			});
+			feed.subscribe(ReferenceCache.CHANNEL, new ChangeFeed.Listener(){
+				@Override
+				public void changed(String payload){
+					//table:OPERATION, an UPDATE followed by the doctors that moved or the departments that were renamed
+					String[] parts = payload.split(":", 3);
+					if ("hospital".equals(parts[0]) || (parts.length > 1 && "INSERT".equals(parts[1]))) return;
+					if (parts.length == 3 && "UPDATE".equals(parts[1])){
+						if (!parts[2].isEmpty()) moveLater(parts[0], parseIds(parts[2]));
+					}else{
+						reloadLater();
+					}//end if
+				}
+
+				@Override
+				public void reset(){
+					//covered by the reset of CHANNEL
+				}
+			});
+		}else{
+			this._listening.countDown();
+		}//end if
+	}
+
+	/**
+	 * Loads the index from the database, replacing the current one. Changes
+	 * notified while it runs are applied afterwards. Waits for the first
+	 * LISTEN, so no change falls between the snapshot and the notifications;
+	 * if that takes too long, the index is reloaded once it arrives. One load
+	 * runs at a time.
+	 *
+	 * @return the number of indexed appointments
+	 */
+	public synchronized int load() throws SQLException {
+		boolean listening;
+		try{
+			listening = this._listening.await(LISTEN_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			listening = false;
+		}//end try
+		if (!listening){
+			this._loadedUnlistened = true;
+			//the first LISTEN may have come in meanwhile, the snapshot then follows it
+			listening = this._listening.getCount() == 0;
+		}//end if
+		if (listening) this._loadedUnlistened = false;
+		synchronized (this._changedDuringLoad){
+			this._loading = true;
+		}
+		State state = new State(1 << 16);
+		int rows;
+		try{
+			rows = this._db.executeQueryStreaming(LOAD_SQL, rs -> state.add(rs.getString(1),
+				(int) rs.getDate(2).toLocalDate().toEpochDay(), slotOf(rs.getString(3)), rs.getInt(4)));
+			this._state = state;
+		}finally{
+			int[] changed;
+			synchronized (this._changedDuringLoad){
+				this._loading = false;
+				changed = new int[this._changedDuringLoad.size()];
+				int i = 0;
+				for (int id : this._changedDuringLoad) changed[i++] = id;
+				this._changedDuringLoad.clear();
+			}
+			if (changed.length > 0) refreshLater(changed);
+		}//end try
+		return rows;
+	}
+
+	/**
+	 * @return whether load() has completed and searches can be answered
+	 */
+	public boolean isLoaded(){
+		return this._state != null;
+	}
+
+	/**
+	 * @return the available appointments of every department with the name on the date
+	 * @throws IllegalStateException when the index is not loaded
+	 */
+	public Day find(String departmentName, java.sql.Date date){
+		State state = this._state;
+		if (state == null) throw new IllegalStateException("Availability index is not loaded");
+		Integer department = state.departments.get(departmentName);
+		if (department == null) return Day.EMPTY;
+		Day day = state.days.get(State.key(department, (int) date.toLocalDate().toEpochDay()));
+		return day == null ? Day.EMPTY : day;
+	}
+
+	/**
+	 * Applies a booking made through this client. Anything the result does
+	 * not settle, e.g. an appointment that was indexed but is no longer
+	 * bookable, is re-read from the database.
+	 */
+	public void booked(int appointmentId, BookingEngine.Result result){
+		State state = this._state;
+		if (state == null) return;
+		if (result.isBooked() && "AV".equals(result.oldStatus)){
+			state.remove(appointmentId);
+		}else if (result.outcome != BookingEngine.Outcome.NO_DOCTOR){
+			refreshLater(new int[]{ appointmentId });
+		}//end if
+	}
+
+	private void reloadLater(){
+		this._refresher.execute(() -> {
+			try{
+				load();
+			}catch (SQLException e){
+				System.err.println("Availability index reload failed: " + e.getMessage());
+			}//end try
+		});
+	}
+
+	private void refreshLater(int[] ids){
+		synchronized (this._changedDuringLoad){
+			if (this._loading){
+				for (int id : ids) this._changedDuringLoad.add(id);
+				return;
+			}//end if
+		}
+		this._refresher.execute(() -> {
+			try{
+				refresh(ids);
+			}catch (SQLException e){
+				System.err.println("Availability index refresh failed, reloading: " + e.getMessage());
+				reloadLater();
+			}//end try
+		});
+	}
+
+	/**
+	 * Re-reads the available appointments of doctors that moved to another
+	 * department, or of departments that were renamed.
+	 *
+	 * @param table "doctor" or "department"
+	 */
+	private void moveLater(String table, int[] ids){
+		String sql = "doctor".equals(table) ? DOCTOR_APPOINTMENTS_SQL : DEPARTMENT_APPOINTMENTS_SQL;
+		this._refresher.execute(() -> {
+			try{
+				List<Integer> appointments = new ArrayList<Integer>();
+				this._db.executeQueryStreaming(sql, rs -> appointments.add(rs.getInt(1)), HospitalService.toArrayLiteral(ids));
+				int[] changed = new int[appointments.size()];
+				for (int i = 0; i < changed.length; ++i) changed[i] = appointments.get(i);
+				if (changed.length > 0) refreshLater(changed);
+			}catch (SQLException e){
+				System.err.println("Availability index refresh failed, reloading: " + e.getMessage());
+				reloadLater();
+			}//end try
+		});
+	}
+
+	/**
+	 * Re-reads the appointments and moves them to where they belong now.
+	 */
+	private void refresh(int[] ids) throws SQLException {
+		State state = this._state;
+		if (state == null) return;
+		for (int from = 0; from < ids.length; from += REFRESH_CHUNK){
+			int[] chunk = Arrays.copyOfRange(ids, from, Math.min(ids.length, from + REFRESH_CHUNK));
+			//appnt_ID to its rows, one per department
+			Map<Integer, List<Object[]>> current = new HashMap<Integer, List<Object[]>>();
+			PooledConnection conn = this._db.getConnection();
+			try{
+				PreparedStatement stmt = conn.prepareStatement(REFRESH_SQL);
+				stmt.setString(1, HospitalService.toArrayLiteral(chunk));
+				long start = System.nanoTime();
+				boolean ok = false;
+				try{
+					ResultSet rs = stmt.executeQuery();
+					try{
+						while (rs.next()){
+							current.computeIfAbsent(rs.getInt(1), k -> new ArrayList<Object[]>()).add(new Object[]{
+								rs.getDate(2), rs.getString(3), rs.getString(4), rs.getString(5) });
+						}//end while
+					}finally{
+						rs.close();
+					}//end try
+					ok = true;
+				}finally{
+					this._db.getMetrics().recordStatement(REFRESH_SQL, start, current.size(), ok, chunk.length);
+				}//end try
+			}finally{
+				this._db.releaseConnection(conn);
+			}//end try
+
+			for (int id : chunk){
+				state.remove(id);
+				List<Object[]> rows = current.get(id);
+				if (rows == null) continue;
+				for (Object[] row : rows){
+					if (!"AV".equals(row[2]) || row[3] == null || row[0] == null) continue;
+					state.add((String) row[3], (int) ((java.sql.Date) row[0]).toLocalDate().toEpochDay(), slotOf((String) row[1]), id);
+				}//end for
+			}//end for
+		}//end for
+	}
+
+	/**
+	 * @return a one-line summary of the index
+	 */
+	public String getStats(){
+		State state = this._state;
+		if (state == null) return "Availability index: not loaded";
+		long appointments = 0;
+		for (Day day : state.days.values()) appointments += day.size();
+		return String.format("Availability index: %d appointments in %d department days, %d departments",
+			appointments, state.days.size(), state.departments.size());
+	}
+
+	/**
+	 * Stops the background refreshes.
+	 */
+	public void close(){
+		this._refresher.shutdownNow();
+		try{
+			this._refresher.awaitTermination(5, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+
+	private static String slotOf(String timeSlot){
+		return timeSlot == null ? "" : timeSlot;
+	}
+
+	static int[] parseIds(String payload){
+		String[] parts = payload.split(",");
+		int[] ids = new int[parts.length];
+		for (int i = 0; i < parts.length; ++i) ids[i] = Integer.parseInt(parts[i].trim());
+		return ids;
+	}
+}
@@ -0,0 +1,418 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class runs the eight menu operations from a file (or standard in) of
+ * operation records instead of prompts, e.g. to replay a day of front desk
+ * traffic as a load test. Records run in parallel over the connection pool
+ * through AsyncHospitalService; bookings and cancellations of the same
+ * appointment run one after the other, in file order, since each one's
+ * outcome depends on the previous. One JSON line per record is printed as it completes, and a
+ * throughput summary per operation at the end.
+ *
+ * A JSONL record is a flat object naming the operation and its parameters,
+ * with the parameter names of HospitalServer:
+ *   {"op":"makeAppointment","name":"Ann Lee","gender":"F","age":40,"address":"1 Main Street","doctor":3,"appointment":17}
+ * A CSV record is the operation followed by its parameters in menu order:
+ *   makeAppointment,Ann Lee,F,40,"1 Main Street",3,17
+ * The operation is its name or menu number; cancelAppointment (appointment,
+ * and optionally patient) has no menu option. Dates are YYYY-MM-DD. Blank
+ * lines and lines starting with # are skipped.
+ *
+ * Usage: java BatchRunner <dbname> <port> <user> [file|-] [-format jsonl|csv]
+ *        [-threads N] [-inFlight N]
+ *
+ */
+
+public class BatchRunner{
+	/**
+	 * Starts an operation with the parameters of a record; throws
+	 * IllegalArgumentException for bad parameters.
+	 */
+	private interface Call{
+		CompletableFuture<String> run(AsyncHospitalService async, Map<String, String> p);
+	}
+
+	/**
+	 * An operation: its name, menu number (0 if it has no menu option),
+	 * parameters in menu order, and the parameter whose records must run in
+	 * order, or null if they are independent.
+	 */
+	static final class Op{
+		final String name;
+		final int menu;
+		final String[] params;
+		final String orderBy;
+		final Call call;
+
+		Op(String name, int menu, String[] params, String orderBy, Call call){
+			this.name = name;
+			this.menu = menu;
+			this.params = params;
+			this.orderBy = orderBy;
+			this.call = call;
+		}
+	}
+
+	/**
+	 * Counts and latencies of the records of one operation.
+	 */
+	static final class Stats{
+		long records = 0;
+		long failed = 0;
+		long totalNanos = 0;
+		long maxNanos = 0;
+	}
+
+	static final Map<String, Op> OPS = new LinkedHashMap<String, Op>();
+	static{
+		add(new Op("addDoctor", 1, new String[]{ "name", "did", "specialty" }, null, (a, p) ->
+			a.addDoctor(p.get("name"), p.get("specialty"), HospitalServer.intParam(p, "did"))
+				.thenApply(id -> "{\"doctor_id\":" + id + "}")));
+		add(new Op("addPatient", 2, new String[]{ "name", "age", "gender", "address" }, null, (a, p) ->
+			a.addPatient(HospitalServer.required(p, "name"), HospitalServer.required(p, "gender"), HospitalServer.intParam(p, "age"), p.get("address"))
+				.thenApply(id -> "{\"patient_id\":" + id + "}")));
+		add(new Op("addAppointment", 3, new String[]{ "date", "timeSlot", "status" }, null, (a, p) ->
+			a.addAppointment(HospitalServer.dateParam(p, "date"), p.get("timeSlot"), p.get("status"))
+				.thenApply(id -> "{\"appointment_id\":" + id + "}")));
+		add(new Op("makeAppointment", 4, new String[]{ "name", "gender", "age", "address", "doctor", "appointment" }, "appointment", (a, p) ->
+			a.makeAppointment(HospitalServer.required(p, "name"), HospitalServer.required(p, "gender"), HospitalServer.intParam(p, "age"),
+				p.get("address"), HospitalServer.intParam(p, "doctor"), HospitalServer.intParam(p, "appointment"))
+				.thenApply(r -> {
+					StringBuilder b = new StringBuilder("{\"outcome\":");
+					ResultWriter.appendJson(b, r.outcome.name()).append(",\"patient_id\":").append(r.patientId < 0 ? "null" : Integer.toString(r.patientId));
+					b.append(",\"new_status\":");
+					if (r.newStatus == null) b.append("null"); else ResultWriter.appendJson(b, r.newStatus);
+					return b.append('}').toString();
+				})));
+		add(new Op("cancelAppointment", 0, new String[]{ "appointment", "patient" }, "appointment", (a, p) ->
+			a.cancelAppointment(HospitalServer.intParam(p, "appointment"),
+				p.get("patient") == null || p.get("patient").isEmpty() ? -1 : HospitalServer.intParam(p, "patient"))
+				.thenApply(c -> "{\"cancelled\":" + c.cancelled + ",\"promoted_patient_id\":"
+					+ (c.promotedPatientId < 0 ? "null" : Integer.toString(c.promotedPatientId)) + "}")));
+		add(new Op("listAppointmentsOfDoctor", 5, new String[]{ "doctor", "start", "end" }, null, (a, p) ->
+			a.listAppointmentsOfDoctor(HospitalServer.intParam(p, "doctor"), HospitalServer.dateParam(p, "start"), HospitalServer.dateParam(p, "end"))
+				.thenApply(rows -> "{\"rows\":" + rows.size() + "}")));
+		add(new Op("listAvailableAppointmentsOfDepartment", 6, new String[]{ "name", "date" }, null, (a, p) ->
+			a.listAvailableAppointmentsOfDepartment(HospitalServer.required(p, "name"), HospitalServer.dateParam(p, "date"))
+				.thenApply(rows -> "{\"rows\":" + rows.size() + "}")));
+		add(new Op("listStatusNumberOfAppointmentsPerDoctor", 7, new String[0], null, (a, p) ->
+			a.listStatusNumberOfAppointmentsPerDoctor().thenApply(rows -> "{\"rows\":" + rows.size() + "}")));
+		add(new Op("findPatientsCountWithStatus", 8, new String[]{ "status" }, null, (a, p) ->
+			a.findPatientsCountWithStatus(HospitalServer.required(p, "status")).thenApply(rows -> "{\"rows\":" + rows.size() + "}")));
+	}
+
+	private static void add(Op op){
+		OPS.put(op.name.toLowerCase(), op);
+		if (op.menu > 0) OPS.put(Integer.toString(op.menu), op);
+	}
+
+	private final AsyncHospitalService _async;
+	private final boolean _csv;
+	//records started but not completed; reading stops while all are taken
+	private final Semaphore _inFlight;
+	private final int _maxInFlight;
+	//last record of each orderBy value still running, e.g. "appointment:17"
+	private final Map<String, CompletableFuture<String>> _last = new ConcurrentHashMap<String, CompletableFuture<String>>();
+	private final PrintWriter _out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+	private final Map<String, Stats> _stats = new LinkedHashMap<String, Stats>();
+	private final Stats _total = new Stats();
+
+	/**
+	 * @param csv whether records are CSV rather than JSONL
+	 * @param maxInFlight records running or waiting at a time
+	 */
+	public BatchRunner(DBproject db, boolean csv, int maxInFlight){
+		this._async = db.getAsyncService();
+		this._csv = csv;
+		this._maxInFlight = maxInFlight;
+		this._inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Runs every record of the input and waits for the last one.
+	 */
+	public void run(InputStream input) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+		String line;
+		int number = 0;
+		while ((line = in.readLine()) != null){
+			++number;
+			if (line.trim().isEmpty() || line.startsWith("#")) continue;
+			this._inFlight.acquire();
+			submit(number, line);
+		}//end while
+		this._inFlight.acquire(this._maxInFlight);
+		this._out.flush();
+		summary(System.nanoTime() - start);
+	}
+
+	private void submit(int number, String line){
+		long start = System.nanoTime();
+		Op op = null;
+		CompletableFuture<String> result;
+		try{
+			Map<String, String> params = this._csv ? null : parseJson(line);
+			String name = this._csv ? null : params.remove("op");
+			List<String> fields = null;
+			if (this._csv){
+				fields = parseCsv(line);
+				name = fields.get(0);
+			}//end if
+			op = name == null ? null : OPS.get(name.toLowerCase());
+			if (op == null) throw new IllegalArgumentException("Unknown operation " + name);
+			if (this._csv){
+				params = new HashMap<String, String>();
+				for (int i = 0; i < op.params.length && i + 1 < fields.size(); ++i){
+					params.put(op.params[i], fields.get(i + 1));
+				}//end for
+			}//end if
+			result = start(op, params);
+		}catch (RuntimeException e){
+			result = new CompletableFuture<String>();
+			result.completeExceptionally(e);
+		}//end try
+		String opName = op == null ? "?" : op.name;
+		result.whenComplete((r, e) -> {
+			report(number, opName, System.nanoTime() - start, r, e);
+			this._inFlight.release();
+		});
+	}
+
+	/**
+	 * Starts a record now, or once the previous record with the same orderBy
+	 * value has completed.
+	 */
+	private CompletableFuture<String> start(Op op, Map<String, String> params){
+		if (op.orderBy == null) return op.call.run(this._async, params);
+		String key = op.orderBy + ":" + HospitalServer.required(params, op.orderBy);
+		CompletableFuture<String> previous = this._last.get(key);
+		CompletableFuture<String> result = previous == null ? op.call.run(this._async, params)
+			: previous.handle((r, e) -> null).thenCompose(x -> op.call.run(this._async, params));
+		this._last.put(key, result);
+		result.whenComplete((r, e) -> this._last.remove(key, result));
+		return result;
+	}
+
+	private synchronized void report(int number, String op, long nanos, String result, Throwable e){
+		if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+		StringBuilder b = new StringBuilder("{\"record\":").append(number).append(",\"op\":");
+		ResultWriter.appendJson(b, op).append(",\"ok\":").append(e == null);
+		b.append(",\"ms\":").append(String.format("%.3f", nanos / 1e6));
+		if (e == null){
+			b.append(",\"result\":").append(result);
+		}else{
+			b.append(",\"error\":");
+			ResultWriter.appendJson(b, e.getMessage() == null ? e.toString() : e.getMessage());
+		}//end if
+		this._out.println(b.append('}'));
+
+		Stats s = this._stats.get(op);
+		if (s == null){
+			s = new Stats();
+			this._stats.put(op, s);
+		}//end if
+		for (Stats t : new Stats[]{ s, this._total }){
+			++t.records;
+			if (e != null) ++t.failed;
+			t.totalNanos += nanos;
+			t.maxNanos = Math.max(t.maxNanos, nanos);
+		}//end for
+	}
+
+	private synchronized void summary(long elapsedNanos){
+		double seconds = elapsedNanos / 1e9;
+		System.err.println(String.format("%d records in %.2f s: %.1f records/s, %d failed",
+			this._total.records, seconds, this._total.records / seconds, this._total.failed));
+		System.err.println(String.format("%-40s %9s %9s %10s %10s", "operation", "records", "failed", "mean ms", "max ms"));
+		for (Map.Entry<String, Stats> entry : this._stats.entrySet()){
+			Stats s = entry.getValue();
+			System.err.println(String.format("%-40s %9d %9d %10.3f %10.3f", entry.getKey(), s.records, s.failed,
+				s.totalNanos / 1e6 / s.records, s.maxNanos / 1e6));
+		}//end for
+	}
+
+	/**
+	 * Splits one CSV line; fields may be quoted, with "" for a quote inside.
+	 */
+	static List<String> parseCsv(String line){
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); ++i){
+			char c = line.charAt(i);
+			if (quoted){
+				if (c != '"') field.append(c);
+				else if (i + 1 < line.length() && line.charAt(i + 1) == '"') field.append(line.charAt(++i));
+				else quoted = false;
+			}else if (c == '"'){
+				quoted = true;
+			}else if (c == ','){
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			}else{
+				field.append(c);
+			}//end if
+		}//end for
+		if (quoted) throw new IllegalArgumentException("Unterminated quote");
+		fields.add(field.toString().trim());
+		return fields;
+	}
+
+	/**
+	 * Parses a flat JSON object of strings, numbers, booleans and nulls into
+	 * its names and values as text.
+	 */
+	static Map<String, String> parseJson(String line){
+		Map<String, String> values = new HashMap<String, String>();
+		int[] pos = { skip(line, 0) };
+		expect(line, pos, '{');
+		if (peek(line, pos) == '}'){
+			++pos[0];
+		}else{
+			while (true){
+				String name = jsonString(line, pos);
+				expect(line, pos, ':');
+				pos[0] = skip(line, pos[0]);
+				String value;
+				if (peek(line, pos) == '"'){
+					value = jsonString(line, pos);
+				}else{
+					int end = pos[0];
+					while (end < line.length() && ",} \t".indexOf(line.charAt(end)) < 0) ++end;
+					value = line.substring(pos[0], end);
+					pos[0] = end;
+					if (value.equals("null")) value = null;
+					else if (value.isEmpty() || value.charAt(0) == '{' || value.charAt(0) == '[') throw new IllegalArgumentException("Unsupported value for " + name);
+				}//end if
+				values.put(name, value);
+				if (peek(line, pos) == ','){
+					++pos[0];
+					continue;
+				}//end if
+				expect(line, pos, '}');
+				break;
+			}//end while
+		}//end if
+		if (skip(line, pos[0]) != line.length()) throw new IllegalArgumentException("Trailing characters after the record");
+		return values;
+	}
+
+	private static int skip(String s, int i){
+		while (i < s.length() && Character.isWhitespace(s.charAt(i))) ++i;
+		return i;
+	}
+
+	private static char peek(String s, int[] pos){
+		pos[0] = skip(s, pos[0]);
+		if (pos[0] >= s.length()) throw new IllegalArgumentException("Unexpected end of record");
+		return s.charAt(pos[0]);
+	}
+
+	private static void expect(String s, int[] pos, char c){
+		if (peek(s, pos) != c) throw new IllegalArgumentException("Expected '" + c + "' at column " + (pos[0] + 1));
+		++pos[0];
+	}
+
+	private static String jsonString(String s, int[] pos){
+		expect(s, pos, '"');
+		StringBuilder b = new StringBuilder();
+		for (int i = pos[0]; i < s.length(); ++i){
+			char c = s.charAt(i);
+			if (c == '"'){
+				pos[0] = i + 1;
+				return b.toString();
+			}//end if
+			if (c != '\\'){
+				b.append(c);
+				continue;
+			}//end if
+			if (++i >= s.length()) break;
+			char e = s.charAt(i);
+			switch (e){
+				case 'n': b.append('\n'); break;
+				case 'r': b.append('\r'); break;
+				case 't': b.append('\t'); break;
+				case 'b': b.append('\b'); break;
+				case 'f': b.append('\f'); break;
+				case 'u':
+					if (i + 4 >= s.length()) throw new IllegalArgumentException("Bad \\u escape");
+					b.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+					i += 4;
+					break;
+				default: b.append(e);
+			}
+		}//end for
+		throw new IllegalArgumentException("Unterminated string");
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + BatchRunner.class.getName()
+				+ " <dbname> <port> <user> [file|-] [-format jsonl|csv] [-threads N] [-inFlight N]");
+			System.exit(2);
+		}//end if
+
+		String file = "-";
+		String format = null;
+		int threads = 0;
+		int inFlight = 1000;
+		for (int i = 3; i < args.length; ++i){
+			switch (args[i]){
+				case "-format": format = args[++i].toLowerCase(); break;
+				case "-threads": threads = Integer.parseInt(args[++i]); break;
+				case "-inFlight": inFlight = Integer.parseInt(args[++i]); break;
+				default:
+					if (args[i].startsWith("-") && !args[i].equals("-")){
+						System.err.println("Unknown option " + args[i]);
+						System.exit(2);
+					}//end if
+					file = args[i];
+			}
+		}//end for
+		if (format == null) format = file.toLowerCase().endsWith(".csv") ? "csv" : "jsonl";
+		if (!format.equals("csv") && !format.equals("jsonl")){
+			System.err.println("Unknown format " + format);
+			System.exit(2);
+		}//end if
+
+		//one pooled connection per thread running records
+		if (threads > 0 && System.getProperty("dbproject.pool.max") == null){
+			System.setProperty("dbproject.pool.max", Integer.toString(threads));
+		}//end if
+		if (threads > 0 && System.getProperty("dbproject.async.threads") == null){
+			System.setProperty("dbproject.async.threads", Integer.toString(threads));
+		}//end if
+
+		DBproject esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "");
+			BatchRunner runner = new BatchRunner(esql, format.equals("csv"), inFlight);
+			try (InputStream input = file.equals("-") ? System.in : new FileInputStream(file)){
+				runner.run(input);
+			}//end try
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (esql != null) esql.cleanup();
+		}//end try
+	}
+}
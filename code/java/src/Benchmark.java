@@ -0,0 +1,291 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures the throughput and latency of the eight menu
+ * operations, called through HospitalService, against a running database.
+ * Each operation is run for a warmup period and then a measured period, once
+ * for every requested thread count; latencies of every call are recorded and
+ * reported as p50/p99/max. The materialise, map and stream operations
+ * measure executeQueryAndReturnResult, executeQueryAndMap and
+ * executeQueryStreaming on the same large result on their own.
+ *
+ * The add and make operations write to the database, so run it against a
+ * scratch database loaded with DataGenerator output. Results can be appended
+ * to a CSV file with a label to compare runs across changes.
+ *
+ * Usage: java Benchmark <dbname> <port> <user> [-threads 1,8] [-warmup 5]
+ *        [-time 10] [-ops name,...] [-rows 100000] [-label name] [-out file]
+ *
+ */
+
+public class Benchmark{
+	/**
+	 * One call of an operation with random parameters.
+	 */
+	interface Op{
+		void run(SplittableRandom random) throws Exception;
+	}
+
+	/**
+	 * Latencies recorded by one thread, in nanoseconds.
+	 */
+	static final class Samples{
+		long[] values = new long[1 << 16];
+		int size = 0;
+
+		void add(long nanos){
+			if (this.size == this.values.length){
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}//end if
+			this.values[this.size++] = nanos;
+		}
+	}
+
+	/**
+	 * Parameter values sampled from the database before the run.
+	 */
+	static final class Fixture{
+		int[] departmentIds;
+		String[] departmentNames;
+		int[] doctorIds;
+		int[][] doctorAppointments;
+		java.sql.Date[] dates;
+		Patient[] patients;
+
+		static Fixture load(DBproject esql) throws Exception {
+			Fixture f = new Fixture();
+			List<Department> departments = esql.executeQueryAndMap("SELECT dept_ID, name, hid FROM Department LIMIT 1000", Department.MAPPER);
+			f.departmentIds = new int[departments.size()];
+			f.departmentNames = new String[departments.size()];
+			for (int i = 0; i < departments.size(); ++i){
+				f.departmentIds[i] = departments.get(i).id;
+				f.departmentNames[i] = departments.get(i).name;
+			}//end for
+
+			//doctor_id, appt_id and the epoch day of adate
+			List<int[]> links = esql.executeQueryAndMap(
+				"SELECT ha.doctor_id, ha.appt_id, a.adate FROM has_appointment ha INNER JOIN Appointment a ON a.appnt_ID = ha.appt_id LIMIT 10000",
+				rs -> new int[]{ rs.getInt(1), rs.getInt(2), (int) rs.getDate(3).toLocalDate().toEpochDay() });
+			f.doctorIds = new int[links.size()];
+			f.doctorAppointments = new int[links.size()][];
+			f.dates = new java.sql.Date[links.size()];
+			for (int i = 0; i < links.size(); ++i){
+				int[] link = links.get(i);
+				f.doctorIds[i] = link[0];
+				f.doctorAppointments[i] = new int[]{ link[0], link[1] };
+				f.dates[i] = java.sql.Date.valueOf(java.time.LocalDate.ofEpochDay(link[2]));
+			}//end for
+
+			f.patients = esql.executeQueryAndMap("SELECT patient_ID, name, gtype, age, address, number_of_appts FROM Patient LIMIT 1000",
+				Patient.MAPPER).toArray(new Patient[0]);
+
+			if (f.departmentIds.length == 0 || f.doctorIds.length == 0 || f.patients.length == 0){
+				throw new IllegalStateException("No data to benchmark against; load the data/*.csv files first");
+			}//end if
+			return f;
+		}
+	}
+
+	private static final String[] STATUSES = { "PA", "AC", "AV", "WL" };
+
+	/**
+	 * @return the benchmarked operations by name, in menu order
+	 */
+	static Map<String, Op> operations(DBproject esql, Fixture f, int rows){
+		HospitalService service = esql.getService();
+		Map<String, Op> ops = new LinkedHashMap<String, Op>();
+		ops.put("addDoctor", r -> service.addDoctor("Bench Doctor", "Benchmarker",
+			f.departmentIds[r.nextInt(f.departmentIds.length)]));
+		ops.put("addPatient", r -> service.addPatient("Bench Patient " + r.nextInt(1000000), r.nextBoolean() ? "F" : "M",
+			r.nextInt(100), "1 Bench Street"));
+		ops.put("addAppointment", r -> service.addAppointment(f.dates[r.nextInt(f.dates.length)], "8:00-10:00", "AV"));
+		ops.put("makeAppointment", r -> {
+			Patient p = f.patients[r.nextInt(f.patients.length)];
+			int[] da = f.doctorAppointments[r.nextInt(f.doctorAppointments.length)];
+			service.makeAppointment(p.name, p.gender, p.age, p.address, da[0], da[1]);
+		});
+		ops.put("listAppointmentsOfDoctor", r -> {
+			int i = r.nextInt(f.doctorIds.length);
+			java.sql.Date start = f.dates[i];
+			service.listAppointmentsOfDoctor(f.doctorIds[i], start, new java.sql.Date(start.getTime() + 30L * 24 * 60 * 60 * 1000));
+		});
+		ops.put("listAvailableAppointmentsOfDepartment", r -> service.listAvailableAppointmentsOfDepartment(
+			f.departmentNames[r.nextInt(f.departmentNames.length)], f.dates[r.nextInt(f.dates.length)]));
+		ops.put("listStatusNumberOfAppointmentsPerDoctor", r -> service.listStatusNumberOfAppointmentsPerDoctor());
+		ops.put("findPatientsCountWithStatus", r -> service.findPatientsCountWithStatus(STATUSES[r.nextInt(STATUSES.length)]));
+		ops.put("materialise", r -> esql.executeQueryAndReturnResult(
+			"SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a LIMIT ?", rows));
+		ops.put("map", r -> esql.executeQueryAndMap(
+			"SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a LIMIT ?", Appointment.MAPPER, rows));
+		ops.put("stream", r -> esql.executeQueryStreaming(
+			"SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a LIMIT ?", rs -> rs.getInt(1), rows));
+		return ops;
+	}
+
+	/**
+	 * The measured outcome of one operation at one thread count.
+	 */
+	static final class Result{
+		String op;
+		int threads;
+		long calls;
+		long errors;
+		double seconds;
+		long p50, p99, max;
+
+		double throughput(){
+			return this.seconds > 0 ? this.calls / this.seconds : 0.0;
+		}
+	}
+
+	/**
+	 * Runs an operation on a number of threads for a warmup period and then a
+	 * measured period.
+	 */
+	static Result measure(String name, Op op, int threads, long warmupMillis, long measureMillis) throws InterruptedException {
+		Samples[] samples = new Samples[threads];
+		AtomicLong errors = new AtomicLong();
+		CountDownLatch done = new CountDownLatch(threads);
+		long warmupEnd = System.nanoTime() + warmupMillis * 1000000L;
+		long measureEnd = warmupEnd + measureMillis * 1000000L;
+
+		for (int t = 0; t < threads; ++t){
+			Samples mine = samples[t] = new Samples();
+			SplittableRandom random = new SplittableRandom(t * 31L + name.hashCode());
+			Thread thread = new Thread(() -> {
+				try{
+					long now;
+					while ((now = System.nanoTime()) < measureEnd){
+						try{
+							op.run(random);
+							if (now >= warmupEnd) mine.add(System.nanoTime() - now);
+						}catch (Exception e){
+							if (now >= warmupEnd) errors.incrementAndGet();
+						}//end try
+					}//end while
+				}finally{
+					done.countDown();
+				}//end try
+			}, "bench-" + name + "-" + t);
+			thread.start();
+		}//end for
+		done.await();
+
+		int total = 0;
+		for (Samples s : samples) total += s.size;
+		long[] all = new long[total];
+		int pos = 0;
+		for (Samples s : samples){
+			System.arraycopy(s.values, 0, all, pos, s.size);
+			pos += s.size;
+		}//end for
+		Arrays.sort(all);
+
+		Result result = new Result();
+		result.op = name;
+		result.threads = threads;
+		result.calls = total;
+		result.errors = errors.get();
+		result.seconds = measureMillis / 1000.0;
+		result.p50 = percentile(all, 0.50);
+		result.p99 = percentile(all, 0.99);
+		result.max = total == 0 ? 0 : all[total - 1];
+		return result;
+	}
+
+	static long percentile(long[] sorted, double p){
+		if (sorted.length == 0) return 0;
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + Benchmark.class.getName()
+				+ " <dbname> <port> <user> [-threads 1,8] [-warmup 5] [-time 10] [-ops name,...] [-rows 100000] [-label name] [-out file]");
+			System.exit(2);
+		}//end if
+
+		String threadList = "1,8", opList = null, label = "run", out = null;
+		long warmup = 5, time = 10;
+		int rows = 100000;
+		for (int i = 3; i + 1 < args.length; i += 2){
+			switch (args[i]){
+				case "-threads": threadList = args[i + 1]; break;
+				case "-warmup": warmup = Long.parseLong(args[i + 1]); break;
+				case "-time": time = Long.parseLong(args[i + 1]); break;
+				case "-ops": opList = args[i + 1]; break;
+				case "-rows": rows = Integer.parseInt(args[i + 1]); break;
+				case "-label": label = args[i + 1]; break;
+				case "-out": out = args[i + 1]; break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}//end for
+
+		int[] threads = Arrays.stream(threadList.split(",")).mapToInt(Integer::parseInt).toArray();
+		int maxThreads = Arrays.stream(threads).max().orElse(1);
+		if (System.getProperty("dbproject.pool.max") == null){
+			System.setProperty("dbproject.pool.max", Integer.toString(maxThreads));
+		}//end if
+
+		DBproject esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "");
+			Map<String, Op> ops = operations(esql, Fixture.load(esql), rows);
+			List<String> selected = opList == null ? new ArrayList<String>(ops.keySet()) : Arrays.asList(opList.split(","));
+
+			List<Result> results = new ArrayList<Result>();
+			System.out.println(String.format("%-40s %7s %10s %12s %10s %10s %10s %7s",
+				"operation", "threads", "calls", "ops/s", "p50 ms", "p99 ms", "max ms", "errors"));
+			for (int t : threads){
+				for (String name : selected){
+					Op op = ops.get(name);
+					if (op == null) throw new IllegalArgumentException("Unknown operation " + name + ", expected one of " + ops.keySet());
+					Result r = measure(name, op, t, warmup * 1000, time * 1000);
+					results.add(r);
+					System.out.println(String.format("%-40s %7d %10d %12.1f %10.3f %10.3f %10.3f %7d",
+						name.equals("materialise") || name.equals("map") || name.equals("stream") ? name + "(rows=" + rows + ")" : name, t, r.calls, r.throughput(),
+						r.p50 / 1e6, r.p99 / 1e6, r.max / 1e6, r.errors));
+				}//end for
+			}//end for
+			System.out.println(esql.getPool().getStats());
+			if (out != null) append(new File(out), label, rows, results);
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (esql != null) esql.cleanup();
+		}//end try
+	}
+
+	/**
+	 * Appends the results to a CSV file, writing a header if it is new.
+	 */
+	static void append(File file, String label, int rows, List<Result> results) throws IOException {
+		boolean header = !file.exists();
+		try (PrintWriter w = new PrintWriter(new FileWriter(file, true))){
+			if (header) w.println("time,label,operation,threads,rows,calls,ops_per_s,p50_ms,p99_ms,max_ms,errors");
+			String time = LocalDateTime.now().withNano(0).toString();
+			for (Result r : results){
+				w.println(String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%d", time, label, r.op, r.threads,
+					r.op.equals("materialise") || r.op.equals("map") || r.op.equals("stream") ? rows : 0, r.calls, r.throughput(), r.p50 / 1e6, r.p99 / 1e6, r.max / 1e6, r.errors));
+			}//end for
+		}//end try
+	}
+}
@@ -0,0 +1,225 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This class books and cancels appointments without any console
+ * interaction. A booking is a single call to the make_appointment() function
+ * installed by create.sql, which looks up or creates the patient, checks
+ * that the appointment belongs to the doctor, makes the patient its holder
+ * (AV to AC) or adds them to its waitlist (AC or WL to WL) and increments
+ * the patient's number_of_appts in one transaction. A cancellation calls
+ * cancel_appointment(), which promotes the first waitlisted patient.
+ *
+ * Both functions change an appointment with updates conditional on its
+ * version instead of locking it first, so the many bookers of a hot slot
+ * join its waitlist side by side instead of queueing for the row.
+ *
+ */
+
+public class BookingEngine{
+	private static final String BOOK_SQL = "SELECT o_outcome, o_patient_id, o_patient_created, o_old_status, o_new_status "
+		+ "FROM make_appointment(?, ?, ?, ?, ?, ?, ?)";
+	//the patient make_appointment() would book for, see findPatient()
+	static final String PATIENT_SQL = "SELECT p.patient_ID FROM Patient p WHERE p.name = ? AND p.gtype = ? AND p.age = ? AND p.address = ? LIMIT 1";
+	private static final String CANCEL_SQL = "SELECT o_outcome, o_promoted_patient_id, o_old_status, o_new_status "
+		+ "FROM cancel_appointment(?, ?)";
+
+	/**
+	 * How a booking ended.
+	 */
+	public enum Outcome{
+		//the appointment status was advanced and the patient's count incremented
+		BOOKED,
+		//no doctor with the given ID
+		NO_DOCTOR,
+		//the appointment does not exist or does not belong to the doctor
+		NOT_DOCTORS_APPOINTMENT,
+		//the appointment is past
+		NOT_BOOKABLE,
+		//the patient already holds the appointment or waits for it
+		ALREADY_BOOKED
+	}
+
+	/**
+	 * The result of one booking attempt.
+	 */
+	public static final class Result{
+		public final Outcome outcome;
+		//patient the appointment was booked for, or -1 if the booking failed
+		public final int patientId;
+		public final boolean patientCreated;
+		//status before and after the booking, null if the appointment was not found
+		public final String oldStatus;
+		public final String newStatus;
+
+		Result(Outcome outcome, int patientId, boolean patientCreated, String oldStatus, String newStatus){
+			this.outcome = outcome;
+			this.patientId = patientId;
+			this.patientCreated = patientCreated;
+			this.oldStatus = oldStatus;
+			this.newStatus = newStatus;
+		}
+
+		public boolean isBooked(){
+			return this.outcome == Outcome.BOOKED;
+		}
+
+		@Override
+		public String toString(){
+			return this.outcome + " patient=" + this.patientId + " " + this.oldStatus + "->" + this.newStatus;
+		}
+	}
+
+	/**
+	 * The result of one cancellation.
+	 */
+	public static final class Cancellation{
+		//false if the patient neither held the appointment nor waited for it
+		public final boolean cancelled;
+		//waitlisted patient who now holds the appointment, or -1
+		public final int promotedPatientId;
+		//status before and after, null if the appointment was not found
+		public final String oldStatus;
+		public final String newStatus;
+
+		Cancellation(boolean cancelled, int promotedPatientId, String oldStatus, String newStatus){
+			this.cancelled = cancelled;
+			this.promotedPatientId = promotedPatientId;
+			this.oldStatus = oldStatus;
+			this.newStatus = newStatus;
+		}
+
+		@Override
+		public String toString(){
+			return (this.cancelled ? "CANCELLED" : "NOT_BOOKED") + " promoted=" + this.promotedPatientId + " " + this.oldStatus + "->" + this.newStatus;
+		}
+	}
+
+	private final DBproject _db;
+
+	public BookingEngine(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Books an appointment of a doctor for a patient, creating the patient if
+	 * no patient with the same name, gender, age and address exists. Nothing
+	 * is written unless the outcome is BOOKED. The patient is looked up
+	 * first, so a new patient ID is only claimed for a new patient.
+	 *
+	 * @param name patient name
+	 * @param gender patient gender, F or M
+	 * @param age patient age
+	 * @param address patient address
+	 * @param doctorId the doctor the appointment belongs to
+	 * @param appointmentId the appointment to book
+	 * @return the outcome of the booking
+	 * @throws java.sql.SQLException when the booking could not be executed
+	 */
+	public Result book(String name, String gender, int age, String address, int doctorId, int appointmentId) throws SQLException {
+		//unknown doctors are turned away without a round trip; make_appointment() checks again
+		if (!this._db.getReferenceCache().doctorExists(doctorId)){
+			return new Result(Outcome.NO_DOCTOR, -1, false, null, null);
+		}//end if
+
+		return bookFound(name, gender, age, address, doctorId, appointmentId, findPatient(name, gender, age, address));
+	}
+
+	/**
+	 * @return the ID of the patient with the identity, -1 if there is none yet
+	 */
+	int findPatient(String name, String gender, int age, String address) throws SQLException {
+		List<List<String>> rows = this._db.executeQueryAndReturnResult(PATIENT_SQL, name, gender, age, address);
+		return rows.isEmpty() ? -1 : Integer.parseInt(rows.get(0).get(0));
+	}
+
+	/**
+	 * Books an appointment once the caller has looked up the patient (see
+	 * findPatient()); make_appointment() checks the doctor and looks the
+	 * patient up again. A new patient ID is only claimed if none was found.
+	 *
+	 * @param patientId the existing patient, or -1 to create one
+	 */
+	Result bookFound(String name, String gender, int age, String address, int doctorId, int appointmentId, int patientId) throws SQLException {
+		int newPatientId = patientId >= 0 ? patientId : this._db.getIdAllocator().next(IdAllocator.PATIENT);
+		return book(name, gender, age, address, doctorId, appointmentId, newPatientId);
+	}
+
+	/**
+	 * @param newPatientId the ID to create the patient with, if needed
+	 */
+	private Result book(String name, String gender, int age, String address, int doctorId, int appointmentId, int newPatientId) throws SQLException {
+		PooledConnection conn = this._db.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(BOOK_SQL);
+			stmt.setString(1, name);
+			stmt.setString(2, gender);
+			stmt.setInt(3, age);
+			stmt.setString(4, address);
+			stmt.setInt(5, doctorId);
+			stmt.setInt(6, appointmentId);
+			stmt.setInt(7, newPatientId);
+			long start = System.nanoTime();
+			boolean ok = false;
+			try{
+				ResultSet rs = stmt.executeQuery();
+				try{
+					rs.next();
+					Outcome outcome = Outcome.valueOf(rs.getString(1));
+					int patientId = rs.getInt(2);
+					if (rs.wasNull()) patientId = -1;
+					ok = true;
+					Result result = new Result(outcome, patientId, rs.getBoolean(3), rs.getString(4), rs.getString(5));
+					AvailabilityIndex index = this._db.getAvailabilityIndex();
+					if (index != null) index.booked(appointmentId, result);
+					return result;
+				}finally{
+					rs.close();
+				}//end try
+			}finally{
+				this._db.getMetrics().recordStatement(BOOK_SQL, start, 1, ok, name, gender, age, address, doctorId, appointmentId);
+			}//end try
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+	}
+
+	/**
+	 * Cancels a patient's booking of an appointment. If the patient held it,
+	 * the first patient on its waitlist becomes the holder, or the
+	 * appointment is available again when nobody waits.
+	 *
+	 * @param appointmentId the appointment to cancel
+	 * @param patientId the patient whose booking to cancel, or -1 for whoever holds it
+	 * @return whether anything was cancelled, and who was promoted
+	 * @throws java.sql.SQLException when the cancellation could not be executed
+	 */
+	public Cancellation cancel(int appointmentId, int patientId) throws SQLException {
+		PooledConnection conn = this._db.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(CANCEL_SQL);
+			stmt.setInt(1, appointmentId);
+			if (patientId < 0) stmt.setNull(2, java.sql.Types.INTEGER); else stmt.setInt(2, patientId);
+			long start = System.nanoTime();
+			boolean ok = false;
+			try{
+				ResultSet rs = stmt.executeQuery();
+				try{
+					rs.next();
+					int promoted = rs.getInt(2);
+					if (rs.wasNull()) promoted = -1;
+					ok = true;
+					return new Cancellation("CANCELLED".equals(rs.getString(1)), promoted, rs.getString(3), rs.getString(4));
+				}finally{
+					rs.close();
+				}//end try
+			}finally{
+				this._db.getMetrics().recordStatement(CANCEL_SQL, start, 1, ok, appointmentId, patientId);
+			}//end try
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+	}
+}
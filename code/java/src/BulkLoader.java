@@ -0,0 +1,314 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGConnection;
+
+/**
+ * This class loads the data/*.csv files (or any Reader) into the database
+ * with COPY ... FROM STDIN through the driver's CopyManager, so the files do
+ * not have to be on the database host. Tables are loaded in foreign key
+ * order, with the tables of each level loaded in parallel on separate
+ * connections. Secondary indexes of the loaded tables are dropped first and
+ * rebuilt, in parallel, once all data is in. Progress is reported every few
+ * seconds.
+ *
+ * Rows are appended, so loads can be incremental; -truncate empties the
+ * tables first. The ID sequences are moved past the loaded keys afterwards.
+ *
+ * Usage: java BulkLoader <dbname> <port> <user> <csvDir> [-truncate]
+ *        [-threads N] [-tables name,...]
+ *
+ */
+
+public class BulkLoader{
+	/**
+	 * A table, the columns its CSV file holds, and the level in foreign key
+	 * order: a table only references tables of lower levels.
+	 */
+	static final class Table{
+		final String name;
+		final String file;
+		final String columns;
+		final int level;
+
+		Table(String name, String file, String columns, int level){
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+			this.level = level;
+		}
+	}
+
+	//same tables and columns as the COPY statements in create.sql
+	static final List<Table> TABLES = Arrays.asList(
+		new Table("Hospital", "hospital.csv", "hospital_ID, name", 0),
+		new Table("Patient", "patient.csv", "patient_ID, name, gtype, age, address, number_of_appts", 0),
+		new Table("Appointment", "appointment.csv", "appnt_ID, adate, time_slot, status", 0),
+		new Table("Department", "department.csv", "dept_ID, name, hid", 1),
+		new Table("Staff", "staff.csv", "staff_ID, name, hid", 1),
+		new Table("Doctor", "doctor.csv", "doctor_ID, name, specialty, did", 2),
+		new Table("request_maintenance", "request_maintenance.csv", "patient_per_hour, dept_name, time_slot, did, sid", 3),
+		new Table("searches", "searches.csv", "hid, pid, aid", 3),
+		new Table("schedules", "schedules.csv", "appt_id, staff_id", 3),
+		new Table("has_appointment", "has_appointment.csv", "appt_id, doctor_id", 3));
+
+	//sequence, table and key column of every key space the IdAllocator serves
+	private static final String[][] SEQUENCES = {
+		{ IdAllocator.DOCTOR, "Doctor", "doctor_ID" },
+		{ IdAllocator.PATIENT, "Patient", "patient_ID" },
+		{ IdAllocator.APPOINTMENT, "Appointment", "appnt_ID" } };
+
+	/**
+	 * Opens the input of a table.
+	 */
+	interface Source{
+		Reader open(Table table) throws IOException;
+	}
+
+	/**
+	 * Reader that counts the lines passing through it.
+	 */
+	static final class CountingReader extends FilterReader{
+		final AtomicLong lines;
+
+		CountingReader(Reader in, AtomicLong lines){
+			super(in);
+			this.lines = lines;
+		}
+
+		@Override
+		public int read(char[] buf, int off, int len) throws IOException {
+			int n = super.read(buf, off, len);
+			int count = 0;
+			for (int i = off; i < off + n; ++i){
+				if (buf[i] == '\n') ++count;
+			}//end for
+			if (count > 0) this.lines.addAndGet(count);
+			return n;
+		}
+	}
+
+	private final DBproject _db;
+	private final int _threads;
+	private final Map<String, AtomicLong> _progress = new LinkedHashMap<String, AtomicLong>();
+
+	public BulkLoader(DBproject db, int threads){
+		this._db = db;
+		this._threads = threads;
+	}
+
+	/**
+	 * Loads the CSV files of the given tables from a directory.
+	 */
+	public void loadDirectory(File dir, List<Table> tables, boolean truncate) throws Exception {
+		load(tables, truncate, table -> new InputStreamReader(
+			new FileInputStream(new File(dir, table.file)), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Loads the given tables from their sources, parents before children.
+	 *
+	 * @param tables the tables to load
+	 * @param truncate empty the tables first
+	 * @param source opens the comma-delimited input of each table
+	 */
+	public void load(List<Table> tables, boolean truncate, Source source) throws Exception {
+		long start = System.nanoTime();
+		for (Table t : tables) this._progress.put(t.name, new AtomicLong());
+
+		if (truncate){
+			StringBuilder names = new StringBuilder();
+			for (Table t : tables) names.append(names.length() == 0 ? "" : ", ").append(t.name);
+			this._db.executeUpdate("TRUNCATE " + names + " CASCADE");
+		}//end if
+
+		List<String> indexes = dropSecondaryIndexes(tables);
+		ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		reporter.scheduleAtFixedRate(() -> report(start), 5, 5, TimeUnit.SECONDS);
+		try{
+			//indexes are rebuilt even if a table fails to load
+			Exception failure = null;
+			try{
+				for (int level = 0; level <= 3; ++level){
+					List<Future<Long>> loads = new ArrayList<Future<Long>>();
+					for (Table t : tables){
+						if (t.level == level) loads.add(pool.submit(() -> copy(t, source)));
+					}//end for
+					await(loads);
+				}//end for
+			}catch (Exception e){
+				failure = e;
+			}//end try
+			report(start);
+
+			long indexStart = System.nanoTime();
+			List<Future<Long>> builds = new ArrayList<Future<Long>>();
+			for (String definition : indexes){
+				builds.add(pool.submit(() -> {
+					this._db.executeUpdate(definition);
+					return 0L;
+				}));
+			}//end for
+			await(builds);
+			System.out.println(String.format("rebuilt %d indexes in %.2fs", indexes.size(), (System.nanoTime() - indexStart) / 1e9));
+			if (failure != null) throw failure;
+		}finally{
+			reporter.shutdownNow();
+			pool.shutdown();
+		}//end try
+
+		for (Table t : tables) this._db.executeUpdate("ANALYZE " + t.name);
+		advanceSequences();
+		report(start);
+	}
+
+	private long copy(Table table, Source source) throws Exception {
+		PooledConnection conn = this._db.getConnection();
+		try (Reader in = new CountingReader(source.open(table), this._progress.get(table.name))){
+			PGConnection pg = conn.getConnection().unwrap(PGConnection.class);
+			return pg.getCopyAPI().copyIn("COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH DELIMITER ','", in, 1 << 16);
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+	}
+
+	/**
+	 * Drops the indexes of the tables that do not back a constraint.
+	 *
+	 * @return the CREATE INDEX statements to rebuild them
+	 */
+	private List<String> dropSecondaryIndexes(List<Table> tables) throws SQLException {
+		String[] names = new String[tables.size()];
+		for (int i = 0; i < names.length; ++i) names[i] = tables.get(i).name.toLowerCase();
+
+		List<String> definitions = new ArrayList<String>();
+		PooledConnection conn = this._db.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(
+				"SELECT i.indexname, i.indexdef FROM pg_indexes i WHERE i.schemaname = current_schema() AND i.tablename = ANY(?) "
+				+ "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conname = i.indexname)");
+			stmt.setArray(1, conn.getConnection().createArrayOf("text", names));
+			List<String> dropped = new ArrayList<String>();
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				dropped.add(rs.getString(1));
+				//an index of a partitioned table is defined ON ONLY the parent; rebuild it on every partition
+				definitions.add(rs.getString(2).replace(" ON ONLY ", " ON "));
+			}//end while
+			rs.close();
+			try (Statement drop = conn.getConnection().createStatement()){
+				for (String index : dropped){
+					drop.executeUpdate("DROP INDEX " + index);
+				}//end for
+			}//end try
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+		return definitions;
+	}
+
+	/**
+	 * Moves every ID sequence past the largest loaded key, so the IdAllocator
+	 * does not hand out keys that were just loaded. A sequence never moves
+	 * back: once called, its last value starts a block of INCREMENT BY IDs a
+	 * running IdAllocator may still be handing out.
+	 */
+	private void advanceSequences() throws SQLException {
+		for (String[] s : SEQUENCES){
+			String next = "(SELECT COALESCE(MAX(" + s[2] + ") + 1, 0) FROM " + s[1] + ")";
+			String free = "CASE WHEN q.is_called THEN q.last_value + p.seqincrement ELSE q.last_value END";
+			this._db.executeQuery("SELECT setval('" + s[0] + "', GREATEST(" + next + ", " + free + "), false) FROM " + s[0]
+				+ " q INNER JOIN pg_sequence p ON p.seqrelid = '" + s[0] + "'::regclass");
+		}//end for
+	}
+
+	private void report(long start){
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long total = 0;
+		StringBuilder line = new StringBuilder();
+		for (Map.Entry<String, AtomicLong> e : this._progress.entrySet()){
+			long rows = e.getValue().get();
+			total += rows;
+			if (rows > 0) line.append(' ').append(e.getKey()).append('=').append(rows);
+		}//end for
+		System.out.println(String.format("%7.1fs %,12d rows %,10.0f rows/s |%s", seconds, total,
+			seconds > 0 ? total / seconds : 0.0, line));
+	}
+
+	private static void await(List<Future<Long>> futures) throws Exception {
+		for (Future<Long> f : futures){
+			try{
+				f.get();
+			}catch (ExecutionException e){
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) throw (Exception) cause;
+				throw e;
+			}//end try
+		}//end for
+	}
+
+	public static void main(String[] args){
+		if (args.length < 4){
+			System.err.println("Usage: java [-classpath <classpath>] " + BulkLoader.class.getName()
+				+ " <dbname> <port> <user> <csvDir> [-truncate] [-threads N] [-tables name,...]");
+			System.exit(2);
+		}//end if
+
+		boolean truncate = false;
+		int threads = 4;
+		List<Table> tables = TABLES;
+		for (int i = 4; i < args.length; ++i){
+			switch (args[i]){
+				case "-truncate": truncate = true; break;
+				case "-threads": threads = Integer.parseInt(args[++i]); break;
+				case "-tables":
+					List<String> names = Arrays.asList(args[++i].toLowerCase().split(","));
+					tables = new ArrayList<Table>();
+					for (Table t : TABLES){
+						if (names.contains(t.name.toLowerCase())) tables.add(t);
+					}//end for
+					break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}//end for
+
+		if (System.getProperty("dbproject.pool.max") == null){
+			System.setProperty("dbproject.pool.max", Integer.toString(threads + 1));
+		}//end if
+
+		DBproject esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "");
+			new BulkLoader(esql, threads).loadDirectory(new File(args[3]), tables, truncate);
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (esql != null) esql.cleanup();
+		}//end try
+	}
+}
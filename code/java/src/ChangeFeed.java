@@ -0,0 +1,114 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class delivers PostgreSQL notifications (NOTIFY, sent by the triggers
+ * in create.sql) to the in-memory structures that mirror the database. One
+ * thread LISTENs on a dedicated connection outside the pool for every
+ * subscribed channel. Notifications sent while it is disconnected are lost,
+ * so after every (re)connect each subscriber is told to reset.
+ *
+ */
+
+public class ChangeFeed{
+	/**
+	 * Receives the notifications of one channel, on the feed's thread.
+	 */
+	public interface Listener{
+		//a notification with its payload
+		void changed(String payload);
+		//notifications may have been missed; drop or reload everything
+		void reset();
+	}
+
+	//how long the listener waits for notifications before checking for new channels and close()
+	private static final int POLL_MILLIS = 1000;
+	//pause before the listener reconnects after losing its connection
+	private static final long RECONNECT_MILLIS = 5000L;
+
+	private final DBproject _db;
+	private final Map<String, List<Listener>> _listeners = new ConcurrentHashMap<String, List<Listener>>();
+	private Thread _thread = null;
+	private volatile Connection _connection = null;
+	private volatile boolean _closed = false;
+
+	public ChangeFeed(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Subscribes to a channel, starting the feed on the first subscription.
+	 * The listener's reset() is called once the channel is being listened to.
+	 */
+	public synchronized void subscribe(String channel, Listener listener){
+		this._listeners.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<Listener>()).add(listener);
+		if (this._thread == null && !this._closed){
+			this._thread = new Thread(this::listen, "change-feed");
+			this._thread.setDaemon(true);
+			this._thread.start();
+		}//end if
+	}
+
+	private void listen(){
+		while (!this._closed){
+			List<String> listening = new ArrayList<String>();
+			try (Connection c = this._db.getPool().openDedicated()){
+				this._connection = c;
+				PGConnection pg = c.unwrap(PGConnection.class);
+				while (!this._closed){
+					//channels subscribed since the last poll, and all of them after a reconnect
+					for (Map.Entry<String, List<Listener>> e : this._listeners.entrySet()){
+						if (listening.contains(e.getKey())) continue;
+						try (Statement stmt = c.createStatement()){
+							stmt.execute("LISTEN " + e.getKey());
+						}//end try
+						listening.add(e.getKey());
+						for (Listener l : e.getValue()) l.reset();
+					}//end for
+
+					PGNotification[] notifications = pg.getNotifications(POLL_MILLIS);
+					if (notifications == null) continue;
+					for (PGNotification n : notifications){
+						List<Listener> listeners = this._listeners.get(n.getName());
+						if (listeners == null) continue;
+						for (Listener l : listeners) l.changed(n.getParameter());
+					}//end for
+				}//end while
+			}catch (SQLException e){
+				if (this._closed) return;
+				System.err.println("Change feed: " + e.getMessage());
+				try{
+					Thread.sleep(RECONNECT_MILLIS);
+				}catch (InterruptedException ie){
+					return;
+				}//end try
+			}finally{
+				this._connection = null;
+			}//end try
+		}//end while
+	}
+
+	/**
+	 * Stops the feed and closes its connection.
+	 */
+	public synchronized void close(){
+		this._closed = true;
+		Connection c = this._connection;
+		if (c != null){
+			try{
+				c.close();
+			}catch (SQLException e){
+				//closing anyway
+			}//end try
+		}//end if
+		if (this._thread != null) this._thread.interrupt();
+	}
+}
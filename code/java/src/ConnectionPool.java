@@ -0,0 +1,319 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class defines a bounded pool of PostgreSQL connections. At most
+ * maxSize connections are open at a time; callers beyond that wait in FIFO
+ * order for one to be returned. Connections are validated before they are
+ * handed out, and connections left idle longer than the idle timeout are
+ * closed as long as at least minSize remain open.
+ *
+ */
+
+public class ConnectionPool{
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _idleTimeoutMillis;
+	private final long _borrowTimeoutMillis;
+	private final int _validationTimeoutSeconds = 5;
+	private final int _statementCacheSize;
+
+	//one permit per connection that may be borrowed; fair so waiters are served in order
+	private final Semaphore _permits;
+	//idle connections, most recently returned first. guarded by this
+	private final Deque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final ScheduledExecutorService _evictor;
+	private volatile boolean _closed = false;
+
+	//statistics
+	private final long _startNanos = System.nanoTime();
+	private final AtomicInteger _open = new AtomicInteger();
+	private final AtomicInteger _active = new AtomicInteger();
+	private final AtomicInteger _peakActive = new AtomicInteger();
+	private final AtomicLong _borrows = new AtomicLong();
+	private final AtomicLong _waitNanos = new AtomicLong();
+	private final AtomicLong _maxWaitNanos = new AtomicLong();
+	private final AtomicLong _busyNanos = new AtomicLong();
+	private final AtomicLong _timeouts = new AtomicLong();
+	private final AtomicLong _evictions = new AtomicLong();
+	private final AtomicLong _validationFailures = new AtomicLong();
+
+	/**
+	 * Creates the pool and opens minSize connections up front.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the password of the user
+	 * @param minSize connections kept open even when idle
+	 * @param maxSize upper bound on open connections
+	 * @param idleTimeoutMillis idle time after which a connection above minSize is closed
+	 * @param borrowTimeoutMillis how long borrow() waits for a free connection
+	 * @param statementCacheSize prepared statements cached per connection
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long idleTimeoutMillis, long borrowTimeoutMillis, int statementCacheSize) throws SQLException {
+		if (maxSize < 1 || minSize < 0 || minSize > maxSize){
+			throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+		}//end if
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._idleTimeoutMillis = idleTimeoutMillis;
+		this._borrowTimeoutMillis = borrowTimeoutMillis;
+		this._statementCacheSize = statementCacheSize;
+		this._permits = new Semaphore(maxSize, true);
+
+		try{
+			for (int i = 0; i < minSize; ++i){
+				this._idle.addLast(open());
+			}//end for
+		}catch (SQLException e){
+			close();
+			throw e;
+		}//end try
+
+		this._evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "connection-pool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000L, idleTimeoutMillis / 2);
+		this._evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a validated connection, waiting up to the borrow timeout if all
+	 * maxSize connections are in use. The connection must be handed back with
+	 * release().
+	 *
+	 * @return a connection that is usable and in autocommit mode
+	 * @throws java.sql.SQLException when no connection could be obtained
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (this._closed){
+			throw new SQLException("Connection pool is closed");
+		}//end if
+
+		long start = System.nanoTime();
+		boolean acquired;
+		try{
+			acquired = this._permits.tryAcquire(this._borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection");
+		}//end try
+		long waited = System.nanoTime() - start;
+		this._waitNanos.addAndGet(waited);
+		this._maxWaitNanos.accumulateAndGet(waited, Math::max);
+		if (!acquired){
+			this._timeouts.incrementAndGet();
+			throw new SQLException("Timed out after " + this._borrowTimeoutMillis
+				+ " ms waiting for a database connection (pool size " + this._maxSize + ")");
+		}//end if
+
+		try{
+			PooledConnection conn;
+			while ((conn = pollIdle()) != null){
+				if (conn.isValid(this._validationTimeoutSeconds)) break;
+				this._validationFailures.incrementAndGet();
+				destroy(conn);
+			}//end while
+			if (conn == null){
+				conn = open();
+			}//end if
+
+			this._borrows.incrementAndGet();
+			this._peakActive.accumulateAndGet(this._active.incrementAndGet(), Math::max);
+			conn.markBorrowed();
+			return conn;
+		}catch (SQLException e){
+			this._permits.release();
+			throw e;
+		}//end try
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool. Any open transaction is rolled
+	 * back so the next borrower starts in autocommit mode. Passing null is a
+	 * no-op, so callers can release in a finally block unconditionally.
+	 * Releasing a connection that is not borrowed is ignored, so it can never
+	 * be idle twice or return a second permit.
+	 *
+	 * @param conn the connection obtained from borrow()
+	 */
+	public void release(PooledConnection conn){
+		if (conn == null) return;
+
+		long held = conn.markReturned();
+		if (held < 0) return;
+		this._busyNanos.addAndGet(held);
+		this._active.decrementAndGet();
+		try{
+			boolean reusable = !this._closed;
+			if (reusable){
+				try{
+					Connection c = conn.getConnection();
+					if (c.isClosed()){
+						reusable = false;
+					}else if (!c.getAutoCommit()){
+						c.rollback();
+						c.setAutoCommit(true);
+					}//end if
+				}catch (SQLException e){
+					reusable = false;
+				}//end try
+			}//end if
+
+			if (reusable){
+				synchronized (this){
+					this._idle.addFirst(conn);
+				}
+			}else{
+				destroy(conn);
+			}//end if
+		}finally{
+			this._permits.release();
+		}//end try
+	}
+
+	/**
+	 * Closes idle connections that have not been used for the idle timeout,
+	 * keeping at least minSize open, and tops the pool back up to minSize.
+	 */
+	void evictIdle(){
+		if (this._closed) return;
+
+		long cutoff = System.currentTimeMillis() - this._idleTimeoutMillis;
+		Deque<PooledConnection> expired = new ArrayDeque<PooledConnection>();
+		synchronized (this){
+			//the least recently used connections sit at the tail
+			Iterator<PooledConnection> it = this._idle.descendingIterator();
+			while (it.hasNext() && this._open.get() - expired.size() > this._minSize){
+				PooledConnection conn = it.next();
+				if (conn.getLastUsed() > cutoff) break;
+				it.remove();
+				expired.add(conn);
+			}//end while
+		}
+		for (PooledConnection conn : expired){
+			this._evictions.incrementAndGet();
+			destroy(conn);
+		}//end for
+
+		try{
+			while (!this._closed && this._open.get() < this._minSize){
+				PooledConnection conn = open();
+				synchronized (this){
+					this._idle.addLast(conn);
+				}
+			}//end while
+		}catch (SQLException e){
+			// retried on the next run.
+		}//end try
+	}
+
+	/**
+	 * Method to close every idle connection and stop handing out new ones.
+	 * Connections still borrowed are closed when they are released.
+	 */
+	public void close(){
+		this._closed = true;
+		if (this._evictor != null){
+			this._evictor.shutdownNow();
+		}//end if
+		PooledConnection conn;
+		while ((conn = pollIdle()) != null){
+			destroy(conn);
+		}//end while
+	}
+
+	public int getMaxSize(){
+		return this._maxSize;
+	}
+
+	public int getActiveCount(){
+		return this._active.get();
+	}
+
+	public long getBorrowCount(){
+		return this._borrows.get();
+	}
+
+	/**
+	 * @return average time callers waited for a connection, in milliseconds
+	 */
+	public double getAverageWaitMillis(){
+		long borrows = this._borrows.get() + this._timeouts.get();
+		return borrows == 0 ? 0.0 : this._waitNanos.get() / 1e6 / borrows;
+	}
+
+	public double getMaxWaitMillis(){
+		return this._maxWaitNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return fraction (0..1) of the pool's capacity that has been in use
+	 *         since it was created, weighted by time
+	 */
+	public double getUtilisation(){
+		long elapsed = System.nanoTime() - this._startNanos;
+		return elapsed <= 0 ? 0.0 : (double) this._busyNanos.get() / ((double) elapsed * this._maxSize);
+	}
+
+	/**
+	 * @return a one-line summary of the pool statistics
+	 */
+	public String getStats(){
+		int idle;
+		synchronized (this){
+			idle = this._idle.size();
+		}
+		return String.format("pool: open=%d idle=%d active=%d peak=%d max=%d borrows=%d"
+			+ " avgWait=%.3fms maxWait=%.3fms timeouts=%d evicted=%d invalid=%d utilisation=%.1f%%",
+			this._open.get(), idle, this._active.get(), this._peakActive.get(), this._maxSize,
+			this._borrows.get(), getAverageWaitMillis(), getMaxWaitMillis(), this._timeouts.get(),
+			this._evictions.get(), this._validationFailures.get(), getUtilisation() * 100.0);
+	}
+
+	/**
+	 * Opens a connection that does not count against the pool, for long-lived
+	 * uses such as LISTEN. The caller closes it.
+	 *
+	 * @return a new connection in autocommit mode
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openDedicated() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	private synchronized PooledConnection pollIdle(){
+		return this._idle.pollFirst();
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+		this._open.incrementAndGet();
+		return new PooledConnection(c, this._statementCacheSize);
+	}
+
+	private void destroy(PooledConnection conn){
+		this._open.decrementAndGet();
+		conn.close();
+	}
+}
@@ -0,0 +1,106 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class checks the doctor_status_count table, which the create.sql
+ * triggers maintain for menu 7 and 8, against the live join of
+ * has_appointment and Appointment, and prints every (status, doctor) whose
+ * count differs. With -repair it rebuilds the table afterwards; writers to
+ * Appointment and has_appointment wait while it does.
+ *
+ * Usage: java CounterCheck <dbname> <port> <user> [-repair]
+ *
+ */
+
+public class CounterCheck{
+	//counts that differ between the live join and the counter table, in one snapshot
+	static final String MISMATCH_SQL =
+		"SELECT COALESCE(l.status, c.status), COALESCE(l.doctor_id, c.doctor_id), COALESCE(l.cnt, 0), COALESCE(c.cnt, 0) "
+		+ "FROM (SELECT a.status, ha.doctor_id, COUNT(*) AS cnt FROM has_appointment ha INNER JOIN Appointment a ON a.appnt_ID = ha.appt_id "
+		+ "WHERE a.status IS NOT NULL GROUP BY a.status, ha.doctor_id) l "
+		+ "FULL OUTER JOIN (SELECT status, doctor_id, cnt FROM doctor_status_count WHERE cnt <> 0) c "
+		+ "ON c.status = l.status AND c.doctor_id = l.doctor_id "
+		+ "WHERE COALESCE(l.cnt, 0) <> COALESCE(c.cnt, 0) ORDER BY 1, 2";
+
+	//mismatches printed in full; the rest are only counted
+	private static final int MAX_PRINTED = 20;
+
+	/**
+	 * Prints the mismatching counts.
+	 *
+	 * @return the number of mismatching (status, doctor) pairs
+	 */
+	static int check(DBproject esql) throws SQLException {
+		int mismatches = 0;
+		PooledConnection conn = esql.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(MISMATCH_SQL);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				if (++mismatches <= MAX_PRINTED){
+					System.out.println(String.format("status=%s doctor=%d live=%d counter=%d",
+						rs.getString(1), rs.getInt(2), rs.getLong(3), rs.getLong(4)));
+				}//end if
+			}//end while
+			rs.close();
+		}finally{
+			esql.releaseConnection(conn);
+		}//end try
+		if (mismatches > MAX_PRINTED){
+			System.out.println("... " + (mismatches - MAX_PRINTED) + " more");
+		}//end if
+		return mismatches;
+	}
+
+	/**
+	 * Recomputes the counter table from the live join.
+	 *
+	 * @return the number of (status, doctor) rows written
+	 */
+	static long repair(DBproject esql) throws SQLException {
+		PooledConnection conn = esql.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement("SELECT rebuild_doctor_status_count()");
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			long rows = rs.getLong(1);
+			rs.close();
+			return rows;
+		}finally{
+			esql.releaseConnection(conn);
+		}//end try
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3 || (args.length > 3 && !args[3].equals("-repair"))){
+			System.err.println("Usage: java [-classpath <classpath>] " + CounterCheck.class.getName()
+				+ " <dbname> <port> <user> [-repair]");
+			System.exit(2);
+		}//end if
+
+		boolean repair = args.length > 3;
+		DBproject esql = null;
+		int mismatches = 0;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "");
+			mismatches = check(esql);
+			if (mismatches > 0 && repair){
+				System.out.println("rebuilt doctor_status_count: " + repair(esql) + " rows");
+				mismatches = check(esql);
+			}//end if
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			mismatches = -1;
+		}finally{
+			if (esql != null) esql.cleanup();
+		}//end try
+
+		if (mismatches != 0){
+			System.out.println(mismatches < 0 ? "FAILED" : "FAILED: " + mismatches + " mismatching count" + (mismatches == 1 ? "" : "s"));
+			System.exit(1);
+		}//end if
+		System.out.println("OK");
+	}
+}
@@ -20,6 +20,7 @@ import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
@@ -35,19 +36,89 @@ import java.sql.Date;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections shared by all operations
+	private ConnectionPool _pool = null;
+	//primary key allocator backed by the *_id_seq sequences
+	private IdAllocator _ids = null;
+	//transactional booking of appointments (menu option 4)
+	private BookingEngine _booking = null;
+	//LISTENs for the changes the caches below follow
+	private ChangeFeed _feed = null;
+	//doctor, department and hospital lookups
+	private ReferenceCache _reference = null;
+	//available appointments by department and date, null unless enabled
+	private AvailabilityIndex _availability = null;
+	//call counts and latencies of operations and statements
+	private Metrics _metrics = null;
+	//the eight menu operations without their prompts
+	private HospitalService _service = null;
+	//the same as futures, created on first use
+	private AsyncHospitalService _async = null;
+	//rows fetched per round trip by executeQueryStreaming
+	private int _fetchSize = 1000;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+	//SQL issued by the menu operations, also checked by QueryPlanCheck
+	static final String INSERT_DOCTOR_SQL =
+		"INSERT INTO Doctor(doctor_ID, name, specialty, did) VALUES(?, ?, ?, ?)";
+	static final String INSERT_PATIENT_SQL =
+		"INSERT INTO Patient(patient_ID, name, gtype, age, address, number_of_appts) VALUES(?, ?, ?, ?, ?, ?)";
+	static final String INSERT_APPOINTMENT_SQL =
+		"INSERT INTO Appointment (appnt_ID, adate, time_slot, status) VALUES(?, ?, ?, ?)";
+	static final String APPOINTMENTS_OF_DOCTOR_SQL =
+		"SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a INNER JOIN has_appointment ha ON a.appnt_id = ha.appt_id WHERE a.adate > ? AND a.adate < ? AND (a.status = 'AV' OR a.status = 'AC') AND ha.doctor_id = ?;\n";
+	//one page of menu 5 / 6 after a (adate, time_slot, appnt_ID) cursor, see HospitalService.Page;
+	//time slots compare bytewise so the order matches the AvailabilityIndex
+	static final String APPOINTMENTS_OF_DOCTOR_PAGE_SQL =
+		"SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a INNER JOIN has_appointment ha ON a.appnt_id = ha.appt_id WHERE a.adate > ? AND a.adate < ? AND (a.status = 'AV' OR a.status = 'AC') AND ha.doctor_id = ? "
+		+ "AND (a.adate, COALESCE(a.time_slot, '') COLLATE \"C\", a.appnt_ID) > (?, ?, ?) ORDER BY a.adate, COALESCE(a.time_slot, '') COLLATE \"C\", a.appnt_ID LIMIT ?";
+	static final String AVAILABLE_APPOINTMENTS_OF_DOCTORS_PAGE_SQL =
+		"SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a INNER JOIN has_appointment ha ON a.appnt_id = ha.appt_id WHERE a.adate = ? AND ha.doctor_id = ANY(?::integer[]) AND a.status = 'AV' "
+		+ "AND (a.adate, COALESCE(a.time_slot, '') COLLATE \"C\", a.appnt_ID) > (?, ?, ?) ORDER BY a.adate, COALESCE(a.time_slot, '') COLLATE \"C\", a.appnt_ID LIMIT ?";
+	//the department name is resolved to its doctors by the ReferenceCache
+	static final String AVAILABLE_APPOINTMENTS_OF_DOCTORS_SQL =
+		"SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a INNER JOIN has_appointment ha ON a.appnt_id = ha.appt_id WHERE a.adate = ? AND ha.doctor_id = ANY(?::integer[]) AND a.status = 'AV'";
+	//7 and 8 read the counters maintained by the create.sql triggers
+	static final String STATUS_TYPES_PER_DOCTOR_SQL =
+		"SELECT c.doctor_id, COUNT(*) AS count FROM doctor_status_count c WHERE c.cnt > 0 GROUP BY c.doctor_id ORDER BY count DESC";
+	static final String PATIENTS_PER_DOCTOR_WITH_STATUS_SQL =
+		"SELECT c.doctor_id, c.cnt AS count FROM doctor_status_count c WHERE c.status = ? AND c.cnt > 0";
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?reWriteBatchedInserts=true";
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// pool sizing, overridable with -Ddbproject.pool.*
+			int minSize = Integer.getInteger("dbproject.pool.min", 1);
+			int maxSize = Integer.getInteger("dbproject.pool.max", 8);
+			long idleMillis = Long.getLong("dbproject.pool.idleMillis", 300000L);
+			long waitMillis = Long.getLong("dbproject.pool.waitMillis", 30000L);
+			int statementCacheSize = Integer.getInteger("dbproject.statementCache.size", 64);
+			this._fetchSize = Integer.getInteger("dbproject.fetchSize", 1000);
+			long cacheTtlMillis = Long.getLong("dbproject.cache.ttlMillis", 300000L);
+			int cacheMaxEntries = Integer.getInteger("dbproject.cache.maxEntries", 100000);
+			boolean cacheListen = Boolean.parseBoolean(System.getProperty("dbproject.cache.listen", "true"));
+			boolean availabilityIndex = Boolean.parseBoolean(System.getProperty("dbproject.availability.index", "false"));
+			boolean metricsJmx = Boolean.parseBoolean(System.getProperty("dbproject.metrics.jmx", "true"));
+			long slowMillis = Long.getLong("dbproject.metrics.slowMillis", 0L);
+			long dumpSeconds = Long.getLong("dbproject.metrics.dumpSeconds", 0L);
+			String metricsLog = System.getProperty("dbproject.metrics.log");
+
+			// obtain the physical connections
+	        this._metrics = new Metrics(metricsJmx, slowMillis, dumpSeconds, metricsLog);
+	        this._pool = new ConnectionPool(url, user, passwd, minSize, maxSize, idleMillis, waitMillis, statementCacheSize);
+	        this._ids = new IdAllocator(this);
+	        this._feed = new ChangeFeed(this);
+	        this._reference = new ReferenceCache(this, cacheTtlMillis, cacheMaxEntries, cacheListen ? this._feed : null);
+	        if (availabilityIndex){
+	        	this._availability = new AvailabilityIndex(this, this._feed);
+	        	this._availability.load();
+	        }//end if
+	        this._booking = new BookingEngine(this);
+	        this._service = new HospitalService(this);
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -55,23 +126,99 @@ public class DBproject{
 	        System.exit(-1);
 		}
 	}
+
+	/**
+	 * Method to borrow a connection from the pool. Every connection obtained
+	 * here must be handed back with releaseConnection, normally in a finally
+	 * block.
+	 *
+	 * @return a pooled connection in autocommit mode
+	 * @throws java.sql.SQLException when no connection becomes available
+	 */
+	public PooledConnection getConnection() throws SQLException {
+		return this._pool.borrow();
+	}
+
+	/**
+	 * Method to return a borrowed connection to the pool.
+	 *
+	 * @param conn the connection to return, may be null
+	 */
+	public void releaseConnection(PooledConnection conn){
+		this._pool.release(conn);
+	}
+
+	public ConnectionPool getPool(){
+		return this._pool;
+	}
+
+	public IdAllocator getIdAllocator(){
+		return this._ids;
+	}
+
+	public Metrics getMetrics(){
+		return this._metrics;
+	}
+
+	public ReferenceCache getReferenceCache(){
+		return this._reference;
+	}
+
+	/**
+	 * @return the availability index, or null if dbproject.availability.index is not set
+	 */
+	public AvailabilityIndex getAvailabilityIndex(){
+		return this._availability;
+	}
+
+	public BookingEngine getBookingEngine(){
+		return this._booking;
+	}
+
+	public HospitalService getService(){
+		return this._service;
+	}
+
+	/**
+	 * @return the asynchronous operations, sized by dbproject.async.threads
+	 *         (default the pool's maximum size) and dbproject.async.queueSize
+	 */
+	public synchronized AsyncHospitalService getAsyncService(){
+		if (this._async == null){
+			this._async = new AsyncHospitalService(this, Integer.getInteger("dbproject.async.threads", this._pool.getMaxSize()),
+				Integer.getInteger("dbproject.async.queueSize", 1000));
+		}//end if
+		return this._async;
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
 	 * @param sql the input SQL string
+	 * @param params values bound to the ? placeholders, in order
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+	public void executeUpdate (String sql, Object... params) throws SQLException { 
+		PooledConnection conn = getConnection();
+		try{
+			// obtains the cached statement object
+			PreparedStatement stmt = conn.prepareStatement (sql);
+			bind (stmt, params);
+
+			// issues the update instruction
+			long start = System.nanoTime ();
+			int rows = 0;
+			boolean ok = false;
+			try{
+				rows = stmt.executeUpdate ();
+				ok = true;
+			}finally{
+				this._metrics.recordStatement (sql, start, rows, ok, params);
+			}
+		}finally{
+			releaseConnection(conn);
+		}
 	}//end executeUpdate
 
 	/**
@@ -80,134 +227,258 @@ public class DBproject{
 	 * standard out.
 	 * 
 	 * @param query the input query string
+	 * @param params values bound to the ? placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		//iterates through the streamed rows and output them to standard out.
+		ResultWriter out = outputWriter (ResultWriter.Format.TSV);
+		try{
+			return executeQueryStreaming (query, out, params);
+		}finally{
+			out.finish ();
+		}
+	}
+
+	/**
+	 * Method to create a writer that prints streamed rows to standard out in
+	 * batches. The format and page size can be overridden with the
+	 * dbproject.output.format and dbproject.output.pageSize properties.
+	 *
+	 * @param defaultFormat the format used unless overridden
+	 * @param labels column labels to print instead of the column names
+	 * @return the writer; call finish() once the rows are written
+	 */
+	public static ResultWriter outputWriter (ResultWriter.Format defaultFormat, String... labels) {
+		String format = System.getProperty ("dbproject.output.format");
+		int pageSize = Integer.getInteger ("dbproject.output.pageSize", 0);
+		return ResultWriter.toStdout (format == null ? defaultFormat : ResultWriter.Format.valueOf (format.toUpperCase ()), pageSize, in (), labels);
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and pass
+	 * the rows to a handler as they arrive. The query runs inside a
+	 * transaction with a fetch size, so the PostgreSQL driver reads the result
+	 * through a server-side cursor, fetchSize rows at a time, instead of
+	 * buffering all of it. Memory use is therefore independent of the number
+	 * of rows.
+	 * 
+	 * @param query the input query string
+	 * @param handler called once per row
+	 * @param params values bound to the ? placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryStreaming (String query, RowHandler handler, Object... params) throws SQLException {
+		PooledConnection conn = getConnection();
+		try{
+			//cursors only stay open inside a transaction
+			conn.getConnection().setAutoCommit (false);
+
+			//obtains the cached statement object
+			PreparedStatement stmt = conn.prepareStatement (query);
+			stmt.setFetchSize (this._fetchSize);
+			try{
+				bind (stmt, params);
+
+				//issues the query instruction; the time includes the handler's
+				long start = System.nanoTime ();
+				int rowCount = 0;
+				boolean ok = false;
+				try{
+					ResultSet rs = stmt.executeQuery ();
+					try{
+						while (rs.next()){
+							handler.row (rs);
+							++rowCount;
+						}//end while
+					}finally{
+						rs.close ();
+					}
+					conn.getConnection().commit ();
+					ok = true;
+				}finally{
+					this._metrics.recordStatement (query, start, rowCount, ok, params);
+				}
+				return rowCount;
+			}finally{
+				//the statement stays in the cache; its next user must not inherit cursor mode
+				resetFetchSize (stmt);
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+		}finally{
+			//rolls back if not committed and restores autocommit
+			releaseConnection(conn);
+		}
 	}
 	
+	private static void resetFetchSize (PreparedStatement stmt){
+		try{
+			stmt.setFetchSize (0);
+		}catch (SQLException e){
+			// the connection is broken and is discarded on release
+		}
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
 	 * @param query the input query string
+	 * @param params values bound to the ? placeholders, in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		PooledConnection conn = getConnection();
+		try{
+			//obtains the cached statement object 
+			PreparedStatement stmt = conn.prepareStatement (query); 
+			bind (stmt, params);
 		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
+			//issues the query instruction 
+			long start = System.nanoTime ();
+			boolean ok = false;
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			try{
+				ResultSet rs = stmt.executeQuery (); 
 	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
+				/*
+				 * obtains the metadata object for the returned result set.  The metadata 
+				 * contains row and column info. 
+				*/ 
+				ResultSetMetaData rsmd = rs.getMetaData (); 
+				int numCol = rsmd.getColumnCount (); 
+				int rowCount = 0; 
 	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+				//iterates through the result set and saves the data returned by the query. 
+				boolean outputHeader = false;
+				while (rs.next()){
+					List<String> record = new ArrayList<String>(); 
+					for (int i=1; i<=numCol; ++i) 
+						record.add(rs.getString (i)); 
+					result.add(record); 
+				}//end while 
+				rs.close (); 
+				ok = true;
+			}finally{
+				this._metrics.recordStatement (query, start, result.size (), ok, params);
+			}
+			return result; 
+		}finally{
+			releaseConnection(conn);
+		}
 	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT) and
+	 * map every record to an object, e.g. with Appointment.MAPPER. Unlike
+	 * executeQueryAndReturnResult no String is made per attribute.
+	 *
+	 * @param query the input query string
+	 * @param mapper reads the current record of the result set
+	 * @param params values bound to the ? placeholders, in order
+	 * @return the mapped records, in order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> executeQueryAndMap (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+		PooledConnection conn = getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement (query);
+			bind (stmt, params);
+
+			long start = System.nanoTime ();
+			boolean ok = false;
+			List<T> result = new ArrayList<T>();
+			try{
+				ResultSet rs = stmt.executeQuery ();
+				while (rs.next()){
+					result.add (mapper.map (rs));
+				}//end while
+				rs.close ();
+				ok = true;
+			}finally{
+				this._metrics.recordStatement (query, start, result.size (), ok, params);
+			}
+			return result;
+		}finally{
+			releaseConnection(conn);
+		}
+	}//end executeQueryAndMap
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
 	 * @param query the input query string
+	 * @param params values bound to the ? placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
-
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	public int executeQuery (String query, Object... params) throws SQLException {
+		PooledConnection conn = getConnection();
+		try{
+			//obtains the cached statement object
+			PreparedStatement stmt = conn.prepareStatement (query);
+			bind (stmt, params);
+
+			//issues the query instruction
+			long start = System.nanoTime ();
+			int rowCount = 0;
+			boolean ok = false;
+			try{
+				ResultSet rs = stmt.executeQuery ();
+
+				//iterates through the result set and count nuber of results.
+				if(rs.next()){
+					rowCount++;
+				}//end while
+				rs.close ();
+				ok = true;
+			}finally{
+				this._metrics.recordStatement (query, start, rowCount, ok, params);
+			}
+			return rowCount;
+		}finally{
+			releaseConnection(conn);
+		}
 	}
 	
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
-	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * Method to bind parameter values to the placeholders of a statement.
+	 *
+	 * @param stmt the prepared statement
+	 * @param params the values, in placeholder order
+	 * @throws java.sql.SQLException when a value cannot be bound
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; ++i){
+			stmt.setObject (i + 1, params[i]);
+		}//end for
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the physical connections if they are open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
+		synchronized (this){
+			if (this._async != null){
+				this._async.close ();
 			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		}
+		if (this._availability != null){
+			this._availability.close ();
+		}//end if
+		if (this._feed != null){
+			this._feed.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
+		if (this._metrics != null){
+			this._metrics.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -226,8 +497,6 @@ public class DBproject{
 		DBproject esql = null;
 		
 		try{
-			System.out.println("(1)");
-			
 			try {
 				Class.forName("org.postgresql.Driver");
 			}catch(Exception e){
@@ -237,44 +506,23 @@ public class DBproject{
 				return;
 			}
 			
-			System.out.println("(2)");
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
 			
+			long connectStart = System.nanoTime ();
 			esql = new DBproject (dbname, dbport, user, "");
+			System.out.println (startupReport (connectStart));
 			
-			boolean keepon = true;
-			while(keepon){
-				System.out.println("MAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. Add Doctor");
-				System.out.println("2. Add Patient");
-				System.out.println("3. Add Appointment");
-				System.out.println("4. Make an Appointment");
-				System.out.println("5. List appointments of a given doctor");
-				System.out.println("6. List all available appointments of a given department");
-				System.out.println("7. List total number of different types of appointments per doctor in descending order");
-				System.out.println("8. Find total number of patients per doctor with a given status");
-				System.out.println("9. < EXIT");
-				
-				switch (readChoice()){
-					case 1: AddDoctor(esql); break;
-					case 2: AddPatient(esql); break;
-					case 3: AddAppointment(esql); break;
-					case 4: MakeAppointment(esql); break;
-					case 5: ListAppointmentsOfDoctor(esql); break;
-					case 6: ListAvailableAppointmentsOfDepartment(esql); break;
-					case 7: ListStatusNumberOfAppointmentsPerDoctor(esql); break;
-					case 8: FindPatientsCountWithStatus(esql); break;
-					case 9: keepon = false; break;
-				}
-			}
+			menu (esql);
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println(esql.getPool().getStats());
+					System.out.println(esql.getReferenceCache().getStats());
+					if (esql.getAvailabilityIndex() != null) System.out.println(esql.getAvailabilityIndex().getStats());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -285,14 +533,75 @@ public class DBproject{
 		}
 	}
 
+	/**
+	 * Runs the main menu until the user exits or the input ends. Used by main
+	 * and by every MenuDaemon session.
+	 */
+	public static void menu (DBproject esql) {
+		boolean keepon = true;
+		while(keepon){
+			System.out.println("MAIN MENU");
+			System.out.println("---------");
+			System.out.println("1. Add Doctor");
+			System.out.println("2. Add Patient");
+			System.out.println("3. Add Appointment");
+			System.out.println("4. Make an Appointment");
+			System.out.println("5. List appointments of a given doctor");
+			System.out.println("6. List all available appointments of a given department");
+			System.out.println("7. List total number of different types of appointments per doctor in descending order");
+			System.out.println("8. Find total number of patients per doctor with a given status");
+			System.out.println("9. < EXIT");
+			
+			switch (readChoice()){
+				case 1: AddDoctor(esql); break;
+				case 2: AddPatient(esql); break;
+				case 3: AddAppointment(esql); break;
+				case 4: MakeAppointment(esql); break;
+				case 5: ListAppointmentsOfDoctor(esql); break;
+				case 6: ListAvailableAppointmentsOfDepartment(esql); break;
+				case 7: ListStatusNumberOfAppointmentsPerDoctor(esql); break;
+				case 8: FindPatientsCountWithStatus(esql); break;
+				case 9: keepon = false; break;
+			}
+		}
+	}
+
+	/**
+	 * @return the menu input: the attached MenuSession's, or standard in
+	 */
+	static BufferedReader in () {
+		MenuSession session = MenuSession.current ();
+		return session == null ? in : session.input ();
+	}
+
+	/**
+	 * Describes how long the JVM took to reach the menu: from process start
+	 * to main (JVM startup and class loading, what class data sharing
+	 * shortens), and from main through connecting and loading the caches.
+	 *
+	 * @param connectStart System.nanoTime() before the DBproject was created
+	 */
+	static String startupReport (long connectStart) {
+		long connectMillis = (System.nanoTime () - connectStart) / 1000000L;
+		long sinceStart = ProcessHandle.current ().info ().startInstant ()
+			.map (t -> System.currentTimeMillis () - t.toEpochMilli ()).orElse (-1L);
+		String cds = System.getProperty ("java.vm.info", "").contains ("sharing") ? "on" : "off";
+		return String.format ("Startup: %d ms to menu (JVM %d ms, connect %d ms, class data sharing %s)",
+			sinceStart, sinceStart - connectMillis, connectMillis, cds);
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
 		do {
 			System.out.print("Please make your choice: ");
 			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
+				String line = in().readLine();
+				if (line == null) return 9; // end of input exits the menu
+				input = Integer.parseInt(line);
 				break;
+			}catch (IOException e) {
+				return 9;
 			}catch (Exception e) {
 				System.out.println("Your input is invalid!");
 				continue;
@@ -305,32 +614,16 @@ public class DBproject{
           try{
             int doctor_id1, did1;
             String name1, specialty1;
-            String query1 = "SELECT MAX(d.doctor_id) FROM Doctor d";
-            List<List<String>> rs = esql.executeQueryAndReturnResult(query1);
-
-            doctor_id1 = Integer.parseInt(rs.get(0).get(0));
-
-            doctor_id1 += 1;
-            //System.out.println("Max ID: " + doctor_id1);
-            if (doctor_id1 <= 0) {
-              doctor_id1 = 0;
-            }
 
             System.out.println("Input Doctor Name: ");
-            name1 = in.readLine();
+            name1 = in().readLine();
             System.out.println("Input department ID: ");
-            did1 = Integer.parseInt(in.readLine());
+            did1 = Integer.parseInt(in().readLine());
             System.out.println("Input specialty: ");
-            specialty1 = in.readLine();
+            specialty1 = in().readLine();
 
             //error handling when did does not exist. - Handled by sql.
-            String query = "INSERT INTO Doctor(doctor_ID, name, specialty, did) VALUES(?, ?, ?, ?);\n";
-            PreparedStatement preparedStmt = esql._connection.prepareStatement(query);
-            preparedStmt.setInt (1, doctor_id1);
-            preparedStmt.setString (2, name1);
-            preparedStmt.setString (3, specialty1);
-            preparedStmt.setInt (4, did1);
-            preparedStmt.execute();
+            doctor_id1 = esql.getService().addDoctor(name1, specialty1, did1);
             
             System.out.println("Doctor ID: " + doctor_id1);
           }catch(Exception e){
@@ -341,38 +634,19 @@ public class DBproject{
 	public static void AddPatient(DBproject esql) {//2
           try{
             int patient_id1, age1;
-            int num_appts1 = 0;
             String name1, address1, gender1;
-            String query1 = "SELECT MAX(p.patient_id) FROM Patient p";
-            List<List<String>> rs = esql.executeQueryAndReturnResult(query1);
-
-            patient_id1 = Integer.parseInt(rs.get(0).get(0));
-
-            patient_id1 += 1;
-            //System.out.println("Max ID: " + patient_id1);
-            if (patient_id1 <= 0) {
-              patient_id1 = 0;
-            }
 
             System.out.println("Input Patient Name: ");
-            name1 = in.readLine();
+            name1 = in().readLine();
             System.out.println("Input Patient Age: ");
-            age1 = Integer.parseInt(in.readLine());
+            age1 = Integer.parseInt(in().readLine());
             System.out.println("Input Patient Gender (F or M): ");
-            gender1 = in.readLine();
+            gender1 = in().readLine();
             System.out.println("Input Patient Address: ");
-            address1 = in.readLine();
+            address1 = in().readLine();
 
 
-            String query = "INSERT INTO Patient(patient_ID, name, gtype, age, address, number_of_appts) VALUES(?, ?, ?, ?, ?, ?);\n";
-            PreparedStatement preparedStmt = esql._connection.prepareStatement(query);
-            preparedStmt.setInt (1, patient_id1);
-            preparedStmt.setString (2, name1);
-            preparedStmt.setString (3, gender1);
-            preparedStmt.setInt (4, age1);
-            preparedStmt.setString(5, address1);
-            preparedStmt.setInt(6, num_appts1);
-            preparedStmt.execute();
+            patient_id1 = esql.getService().addPatient(name1, gender1, age1, address1);
 
             System.out.println("Patient ID: " + patient_id1);
           }catch(Exception e){
@@ -385,35 +659,19 @@ public class DBproject{
             int appnt_id1;
             java.sql.Date adate1;
             String status1, time_slot1, stringDate;
-            String query1 = "SELECT MAX(a.appnt_ID) FROM Appointment a";
-            List<List<String>> rs = esql.executeQueryAndReturnResult(query1);
-
-            appnt_id1 = Integer.parseInt(rs.get(0).get(0));
-
-            appnt_id1 += 1;
-            System.out.println("Max ID: " + appnt_id1);
-            if (appnt_id1 <= 0) {
-              appnt_id1 = 0;
-            }
 
             System.out.println("Input Appointment Date (YYYY/MM/DD): ");
-            stringDate = in.readLine();
+            stringDate = in().readLine();
             SimpleDateFormat sdf1 = new SimpleDateFormat("yyyy/MM/dd");
             java.util.Date date1 = sdf1.parse(stringDate);
             adate1 = new java.sql.Date(date1.getTime());
             System.out.println("Input Appointment Time Slot (HH:MM-HH:MM): ");
-            time_slot1 = in.readLine();
+            time_slot1 = in().readLine();
             System.out.println("Input Appointment Status (PA, AC, AV, or WL): ");
-            status1 = in.readLine();
+            status1 = in().readLine();
 
 
-            String query = "INSERT INTO Appointment (appnt_ID, adate, time_slot, status) VALUES(?, ?, ?, ?);\n";
-            PreparedStatement preparedStmt = esql._connection.prepareStatement(query);
-            preparedStmt.setInt (1, appnt_id1);
-            preparedStmt.setDate (2, adate1);
-            preparedStmt.setString (3, time_slot1);
-            preparedStmt.setString(4, status1);
-            preparedStmt.execute();
+            appnt_id1 = esql.getService().addAppointment(adate1, time_slot1, status1);
 
             System.out.println("Appointment ID: " + appnt_id1);
           }catch(Exception e){
@@ -426,113 +684,43 @@ public class DBproject{
 	  // Given a patient, a doctor and an appointment of the doctor that s/he wants to take, add an appointment to the DB
 	  try{
             String patient_name1, patient_gender1, address1;
-            int patient_age1 = -1, patient_id1 = -1, total = 0, appnt_id1 = -1, doctor_id1 = -1;
+            int patient_age1 = -1, appnt_id1 = -1, doctor_id1 = -1;
             
             System.out.println("Input Patient Name: ");
-            patient_name1 = in.readLine();
+            patient_name1 = in().readLine();
             System.out.println("Input Patient Gender (F or M): ");
-            patient_gender1 = in.readLine();
+            patient_gender1 = in().readLine();
             System.out.println("Input Patient Age: ");
-            patient_age1 = Integer.parseInt(in.readLine());
+            patient_age1 = Integer.parseInt(in().readLine());
             System.out.println("Input Patient Address: ");
-            address1 = in.readLine();
-
-            String query = "SELECT p.patient_ID FROM Patient p WHERE p.name = ? AND p.gtype = ? AND p.age = ? AND p.address = ?;\n";
-            PreparedStatement preparedStmt = esql._connection.prepareStatement(query);
-            preparedStmt.setString(1, patient_name1);
-            preparedStmt.setString(2, patient_gender1);
-            preparedStmt.setInt(3, patient_age1);
-            preparedStmt.setString(4, address1);
-            ResultSet rs1 = preparedStmt.executeQuery();
-            if (rs1.next() ) {
-              patient_id1 = rs1.getInt("patient_ID");
-            } else {
-              patient_id1 = -1;
-            }
-
-
-            //List<List<String>> rs = esql.executeQueryAndReturnResult(query);
-            //patient_id1 = Integer.parseInt(rs.get(0).get(0));
-            if (patient_id1 == -1) { //Create Patient
-              System.out.println("Patient does not exist. Creating patient");
-              query = "SELECT MAX(p.patient_id) FROM Patient p";
-              List<List<String>> rs = esql.executeQueryAndReturnResult(query);
-
-              patient_id1 = Integer.parseInt(rs.get(0).get(0));
-
-              patient_id1 += 1;
-              //System.out.println("Max ID: " + patient_id1);
-              if (patient_id1 <= 0) {
-                patient_id1 = 0;
-              }
-
-              query = "INSERT INTO Patient(patient_ID, name, gtype, age, address, number_of_appts) VALUES(?, ?, ?, ?, ?, ?);\n";
-              preparedStmt = esql._connection.prepareStatement(query);
-              preparedStmt.setInt (1, patient_id1);
-              preparedStmt.setString (2, patient_name1);
-              preparedStmt.setString (3, patient_gender1);
-              preparedStmt.setInt (4, patient_age1);
-              preparedStmt.setString(5, address1);
-              preparedStmt.setInt(6, 0);
-              preparedStmt.execute();
-              //Patient Created.
-            }
-            //Check if doctor ID and appointment ID exist. Also increment number_of_appts
+            address1 = in().readLine();
             System.out.println("Input Doctor ID: ");
-            doctor_id1 = Integer.parseInt(in.readLine());
-            query = "SELECT COUNT(*) AS total FROM Doctor d WHERE d.doctor_ID = ?;\n";
-            preparedStmt = esql._connection.prepareStatement(query);
-            preparedStmt.setInt(1, doctor_id1);
-            rs1 = preparedStmt.executeQuery();
-            rs1.next();
-            total = rs1.getInt("total");
-            if (total < 1) {
-              System.out.println("Doctor does not exist. Returning to menu.");
-            }
-            else { //Doctor and patient exist
-              System.out.println("Input Appointment ID: ");
-              appnt_id1 = Integer.parseInt(in.readLine());
-              query = "SELECT COUNT(*) AS total2 FROM has_appointment ha WHERE ha.appt_id = ? AND ha.doctor_id = ?;\n";
-              preparedStmt = esql._connection.prepareStatement(query);
-              preparedStmt.setInt(1, appnt_id1);
-              preparedStmt.setInt(2, doctor_id1);
-              rs1 = preparedStmt.executeQuery();
-              rs1.next();
-              total = rs1.getInt("total2");
-              if (total < 1) {
-                System.out.println("Error. Appointment ID is not associated with Doctor ID");
-              }
-              else { //Appointment ID with matching doctor ID exists.
-                query = "SELECT a.status FROM Appointment a WHERE a.appnt_ID = ?;\n";
-                preparedStmt = esql._connection.prepareStatement(query);
-                preparedStmt.setInt(1, appnt_id1);
-                rs1 = preparedStmt.executeQuery();
-                rs1.next();
-                String stat1 = rs1.getString("status");
-                if (stat1 == "AV") { //Update Status and increment appnt_num
-                  query = "UPDATE Appointment SET status = AC WHERE appnt_ID = ?;\n";
-                  preparedStmt = esql._connection.prepareStatement(query);
-                  preparedStmt.setInt(1, appnt_id1);
-                  preparedStmt.execute();
-                  query = "UPDATE Patient SET number_of_appts = number_of_appts + 1 WHERE patient_ID = ?;\n";
-                  preparedStmt = esql._connection.prepareStatement(query);
-                  preparedStmt.setInt(1, patient_id1);
-                  preparedStmt.execute();
-                } else if (stat1 == "AC") { //Update Status and increment appnt_num
-                  query = "UPDATE Appointment SET status = WL WHERE appnt_ID = ?;\n";
-                  preparedStmt = esql._connection.prepareStatement(query);
-                  preparedStmt.setInt(1, appnt_id1);
-                  preparedStmt.execute();
-                  query = "UPDATE Patient SET number_of_appts = number_of_appts + 1 WHERE patient_ID = ?;\n";
-                  preparedStmt = esql._connection.prepareStatement(query);
-                  preparedStmt.setInt(1, patient_id1);
-                  preparedStmt.execute();
+            doctor_id1 = Integer.parseInt(in().readLine());
+            System.out.println("Input Appointment ID: ");
+            appnt_id1 = Integer.parseInt(in().readLine());
+
+            //Lookup/create patient, validate, update status and increment number_of_appts in one transaction
+            BookingEngine.Result result = esql.getService().makeAppointment(patient_name1, patient_gender1, patient_age1, address1, doctor_id1, appnt_id1);
+            switch (result.outcome) {
+              case BOOKED:
+                if (result.patientCreated) {
+                  System.out.println("Patient does not exist. Created patient " + result.patientId);
                 }
-                
-              }
+                System.out.println("Appointment " + appnt_id1 + " booked for patient " + result.patientId + ", status " + result.oldStatus + " -> " + result.newStatus);
+                break;
+              case NO_DOCTOR:
+                System.out.println("Doctor does not exist. Returning to menu.");
+                break;
+              case NOT_DOCTORS_APPOINTMENT:
+                System.out.println("Error. Appointment ID is not associated with Doctor ID");
+                break;
+              case NOT_BOOKABLE:
+                System.out.println("Appointment has status " + result.oldStatus + " and cannot be booked.");
+                break;
+              case ALREADY_BOOKED:
+                System.out.println("Patient already holds or is waitlisted for appointment " + appnt_id1 + ".");
+                break;
             }
-            
-
           }catch(Exception e){
             System.err.println (e.getMessage());
           }
@@ -544,33 +732,32 @@ public class DBproject{
             int doctor_id1;
             String stringDate;
             java.sql.Date start_date1, end_date1;
-            //String query1 = "SELECT MAX(d.doctor_id) FROM Doctor d";
-            //List<List<String>> rs = esql.executeQueryAndReturnResult(query1);
-
-            //doctor_id1 = Integer.parseInt(rs.get(0).get(0));
 
             System.out.println("Input Doctor ID: ");
-            doctor_id1 = Integer.parseInt(in.readLine());
+            doctor_id1 = Integer.parseInt(in().readLine());
             System.out.println("Input Start Date (YYYY/MM/DD): ");
-            stringDate = in.readLine();
+            stringDate = in().readLine();
             SimpleDateFormat sdf1 = new SimpleDateFormat("yyyy/MM/dd");
             java.util.Date date1 = sdf1.parse(stringDate);
             start_date1 = new java.sql.Date(date1.getTime());
             System.out.println("Input End Date (YYYY/MM/DD): ");
-            stringDate = in.readLine();
+            stringDate = in().readLine();
             date1 = sdf1.parse(stringDate);
             end_date1 = new java.sql.Date(date1.getTime());
 
-            //Initial Input Read In. Write Query
-            String query = "SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a INNER JOIN has_appointment ha ON a.appnt_id = ha.appt_id WHERE a.adate > ? AND a.adate < ? AND (a.status = 'AV' OR a.status = 'AC') AND ha.doctor_id = ?;\n";
-            PreparedStatement preparedStmt = esql._connection.prepareStatement(query);
-            preparedStmt.setDate (1, start_date1);
-            preparedStmt.setDate (2, end_date1);
-            preparedStmt.setInt (3, doctor_id1);
-            ResultSet rs = preparedStmt.executeQuery();
-
-            while(rs.next()) {
-              System.out.println("appnt_ID: " + rs.getInt("appnt_ID") + ", date: " + rs.getDate("adate") + ", time_slot: " + rs.getString("time_slot") + ", status: " + rs.getString("status"));
+            ResultWriter out = outputWriter(ResultWriter.Format.TEXT, "appnt_ID", "date", "time_slot", "status");
+            try {
+              if (out.getPageSize() > 0) {
+                //one query per page, so no connection is held while the user reads
+                HospitalService.Page page = null;
+                do {
+                  page = esql.getService().listAppointmentsOfDoctor(doctor_id1, start_date1, end_date1, page == null ? null : page.nextCursor, out.getPageSize());
+                } while (out.page(page.rows, HospitalService.Page.TYPES, page.nextCursor != null) && page.nextCursor != null);
+              } else {
+                esql.getService().listAppointmentsOfDoctor(doctor_id1, start_date1, end_date1, out);
+              }
+            } finally {
+              out.finish();
             }
           }catch(Exception e){
             System.err.println (e.getMessage());
@@ -582,23 +769,28 @@ public class DBproject{
 	  try{
             String department_name1, stringDate;
             java.sql.Date adate1;
-            String query = "SELECT a.appnt_ID, a.adate, a.time_slot, a.status FROM Appointment a INNER JOIN has_appointment ha ON a.appnt_id = ha.appt_id INNER JOIN Doctor d ON ha.doctor_id = d.doctor_ID INNER JOIN Department de ON d.did = de.dept_ID WHERE a.adate = ? AND de.name = ? AND a.status = 'AV'";
 
             System.out.println("Input Department Name: ");
-            department_name1 = in.readLine();
+            department_name1 = in().readLine();
             System.out.println("Input Date (YYYY/MM/DD): ");
-            stringDate = in.readLine();
+            stringDate = in().readLine();
             SimpleDateFormat sdf1 = new SimpleDateFormat("yyyy/MM/dd");
             java.util.Date date1 = sdf1.parse(stringDate);
             adate1 = new java.sql.Date(date1.getTime());
             
-            PreparedStatement preparedStmt = esql._connection.prepareStatement(query);
-            preparedStmt.setString (2, department_name1);
-            preparedStmt.setDate (1, adate1);
-            ResultSet rs = preparedStmt.executeQuery();
-
-            while (rs.next() ) {
-              System.out.println("appnt_ID: " + rs.getInt("appnt_ID") + ", date: " + rs.getDate("adate") + ", time_slot: " + rs.getString("time_slot") + ", status: " + rs.getString("status"));
+            ResultWriter out = outputWriter(ResultWriter.Format.TEXT, "appnt_ID", "date", "time_slot", "status");
+            try {
+              if (out.getPageSize() > 0) {
+                //one query per page, so no connection is held while the user reads
+                HospitalService.Page page = null;
+                do {
+                  page = esql.getService().listAvailableAppointmentsOfDepartment(department_name1, adate1, page == null ? null : page.nextCursor, out.getPageSize());
+                } while (out.page(page.rows, HospitalService.Page.TYPES, page.nextCursor != null) && page.nextCursor != null);
+              } else {
+                esql.getService().listAvailableAppointmentsOfDepartment(department_name1, adate1, out);
+              }
+            } finally {
+              out.finish();
             }
           }catch(Exception e){
             System.err.println (e.getMessage());
@@ -608,13 +800,11 @@ public class DBproject{
 	public static void ListStatusNumberOfAppointmentsPerDoctor(DBproject esql) {//7
           // Count number of different types of appointments per doctors and list them in descending order
           try {
-            String query = "SELECT d.doctor_ID, COUNT(DISTINCT a.status) AS count FROM Doctor d INNER JOIN has_appointment ha ON d.doctor_ID = ha.doctor_id INNER JOIN Appointment a ON ha.appt_id = a.appnt_ID GROUP BY d.doctor_ID ORDER BY count DESC;\n";
-            
-            PreparedStatement preparedStmt = esql._connection.prepareStatement(query);
-            ResultSet rs = preparedStmt.executeQuery();
-
-            while (rs.next() ) {
-              System.out.println("doctor_ID: " + rs.getString("doctor_ID") + ", types of appointments: " + rs.getInt("count"));
+            ResultWriter out = outputWriter(ResultWriter.Format.TEXT, "doctor_ID", "types of appointments");
+            try {
+              esql.getService().listStatusNumberOfAppointmentsPerDoctor(out);
+            } finally {
+              out.finish();
             }
           }catch(Exception e){
             System.err.println (e.getMessage());
@@ -626,17 +816,15 @@ public class DBproject{
 	  // Find how many patients per doctor there are with a given status (i.e. PA, AC, AV, WL) and list that number per doctor.
 	  try {
             String status1;
-            String query = "SELECT d.doctor_ID, COUNT(a.appnt_id) AS count FROM Doctor d INNER JOIN has_appointment ha ON d.doctor_ID = ha.doctor_id INNER JOIN Appointment a ON ha.appt_id = a .appnt_ID WHERE a.status = ? GROUP BY d.doctor_ID;\n";
             
             System.out.println("Input Status: (PA, AC, AV, or WL): ");
-            status1 = in.readLine();
-
-            PreparedStatement preparedStmt = esql._connection.prepareStatement(query);
-            preparedStmt.setString (1, status1);
-            ResultSet rs = preparedStmt.executeQuery();
+            status1 = in().readLine();
 
-            while (rs.next()) {
-              System.out.println("doctor_ID: " + rs.getInt("doctor_ID") + ", num_appnts with status " + status1 + ": " + rs.getInt("count"));
+            ResultWriter out = outputWriter(ResultWriter.Format.TEXT, "doctor_ID", "num_appnts with status " + status1);
+            try {
+              esql.getService().findPatientsCountWithStatus(status1, out);
+            } finally {
+              out.finish();
             }
           }catch(Exception e){
             System.err.println (e.getMessage());
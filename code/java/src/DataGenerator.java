@@ -0,0 +1,247 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+
+/**
+ * This class writes synthetic versions of the data/*.csv files in the format
+ * the COPY statements of create.sql expect, at a configurable scale factor.
+ * Scale 1 is roughly the size of the bundled fixtures; scale 20000 yields
+ * about 11 million appointments.
+ *
+ * Rows are generated and written one at a time, so memory use does not
+ * depend on the scale. Output is deterministic for a given scale and seed.
+ * Appointments before the anchor date are mostly past (PA); later ones are
+ * mostly available (AV) with a share of active (AC) and waitlisted (WL)
+ * ones, and a small set of popular doctors owns a large share of them.
+ *
+ * Usage: java DataGenerator <outDir> [scale] [seed]
+ *
+ */
+
+public class DataGenerator{
+	//dates of the generated appointments and the day that separates past from future
+	private static final LocalDate FIRST_DAY = LocalDate.of(2018, 1, 1);
+	private static final LocalDate ANCHOR_DAY = LocalDate.of(2021, 5, 20);
+	private static final LocalDate LAST_DAY = LocalDate.of(2022, 12, 31);
+
+	private static final String[] TIME_SLOTS = {
+		"8:00-10:00", "8:00-10:30", "8:00-10:50", "8:00-17:00",
+		"10:00-15:00", "10:00-17:00", "13:00-15:00", "14:00-16:00" };
+	private static final String[] DEPARTMENTS = {
+		"Cardiology", "Finance", "Gastroenterology", "Neurology", "Oncology",
+		"Pediatric", "Radiology", "Dermatology", "Orthopedics", "Urology",
+		"Allergy and Immunology", "Obstetrics/Gynecology", "Psychiatry",
+		"Ophthalmology", "Emergency", "Nephrology" };
+	private static final String[] SPECIALTIES = {
+		"Allergist", "Cardiologist", "Dermatologist", "Endocrinologist",
+		"Gastroenterologist", "Neurologist", "Oncologist", "Pediatrician",
+		"Psychiatrist", "Radiologist", "Surgeon", "Urologist" };
+	private static final String[] FIRST_NAMES = {
+		"Alvin", "Carrie", "Calvin", "Armand", "Alberto", "Wyatt", "Camille",
+		"Lindsey", "Maria", "James", "Linda", "Robert", "Patricia", "Michael",
+		"Jennifer", "David", "Elizabeth", "Daniel", "Susan", "Thomas" };
+	private static final String[] LAST_NAMES = {
+		"Saunders", "Cortez", "Morrison", "Enderle", "Scarlett", "Ruoff",
+		"Holmes", "Sullivan", "Newton", "Garcia", "Smith", "Nguyen", "Lee",
+		"Patel", "Kim", "Brown", "Lopez", "Wilson", "Clark", "Young" };
+	private static final String[] STREETS = {
+		"Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Oak Lane",
+		"Main Street", "Sunset Blvd.", "Pine Road", "Lake View Court" };
+	private static final String[] CITIES = {
+		"Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Fresno",
+		"Sacramento", "San Diego", "Irvine" };
+	private static final String[] HOSPITALS = {
+		"Medical Center", "General Hospital", "Community Hospital", "Clinic" };
+
+	private final File _dir;
+	private final SplittableRandom _random;
+	private final StringBuilder _row = new StringBuilder(128);
+
+	//table sizes
+	final int hospitals, departments, doctors, staff, patients, appointments;
+	final int searches, schedules, maintenance;
+
+	public DataGenerator(File dir, double scale, long seed){
+		if (scale <= 0){
+			throw new IllegalArgumentException("Scale must be positive: " + scale);
+		}//end if
+		this._dir = dir;
+		this._random = new SplittableRandom(seed);
+		//reference data grows with the square root of the scale, activity linearly
+		double root = Math.sqrt(scale);
+		this.hospitals = atLeastOne(4 * root);
+		this.departments = Math.max(this.hospitals, atLeastOne(125 * root));
+		this.doctors = Math.max(this.departments, atLeastOne(250 * root));
+		this.staff = Math.max(this.hospitals, atLeastOne(250 * root));
+		this.maintenance = Math.min(this.doctors, atLeastOne(100 * root));
+		this.patients = atLeastOne(250 * scale);
+		this.appointments = atLeastOne(550 * scale);
+		this.searches = Math.min(this.appointments, atLeastOne(250 * scale));
+		this.schedules = Math.min(this.appointments, atLeastOne(100 * scale));
+	}
+
+	private static int atLeastOne(double n){
+		if (n > Integer.MAX_VALUE) throw new IllegalArgumentException("Scale too large");
+		return Math.max(1, (int) Math.round(n));
+	}
+
+	/**
+	 * Writes all tables, parents before children.
+	 *
+	 * @throws java.io.IOException when a file cannot be written
+	 */
+	public void generateAll() throws IOException {
+		if (!this._dir.isDirectory() && !this._dir.mkdirs()){
+			throw new IOException("Cannot create directory " + this._dir);
+		}//end if
+		generate("hospital.csv", this.hospitals, this::hospital);
+		generate("department.csv", this.departments, this::department);
+		generate("staff.csv", this.staff, this::staffMember);
+		generate("doctor.csv", this.doctors, this::doctor);
+		generate("patient.csv", this.patients, this::patient);
+		generate("appointment.csv", this.appointments, this::appointment);
+		generate("has_appointment.csv", this.appointments, this::hasAppointment);
+		generate("request_maintenance.csv", this.maintenance, this::requestMaintenance);
+		generate("searches.csv", this.searches, this::search);
+		generate("schedules.csv", this.schedules, this::schedule);
+	}
+
+	/**
+	 * Appends row i of a table, without the line terminator, to the buffer.
+	 */
+	private interface RowWriter{
+		void write(int i, StringBuilder row);
+	}
+
+	private void generate(String file, int rows, RowWriter writer) throws IOException {
+		long start = System.nanoTime();
+		File out = new File(this._dir, file);
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8), 1 << 16)){
+			for (int i = 0; i < rows; ++i){
+				this._row.setLength(0);
+				writer.write(i, this._row);
+				this._row.append('\n');
+				w.append(this._row);
+			}//end for
+		}//end try
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-24s %,12d rows %8.2fs %,12.0f rows/s",
+			file, rows, seconds, seconds > 0 ? rows / seconds : 0.0));
+	}
+
+	private void hospital(int i, StringBuilder row){
+		row.append(i).append(',').append(pick(CITIES)).append(' ').append(pick(HOSPITALS)).append(' ').append(i);
+	}
+
+	private void department(int i, StringBuilder row){
+		//every hospital gets at least one department
+		int hid = i < this.hospitals ? i : this._random.nextInt(this.hospitals);
+		row.append(i).append(',').append(DEPARTMENTS[i % DEPARTMENTS.length]).append(',').append(hid);
+	}
+
+	private void staffMember(int i, StringBuilder row){
+		row.append(i).append(',');
+		name(row);
+		row.append(',').append(this._random.nextInt(this.hospitals));
+	}
+
+	private void doctor(int i, StringBuilder row){
+		//every department gets at least one doctor
+		int did = i < this.departments ? i : this._random.nextInt(this.departments);
+		row.append(i).append(',');
+		name(row);
+		row.append(',').append(pick(SPECIALTIES)).append(',').append(did);
+	}
+
+	private void patient(int i, StringBuilder row){
+		row.append(i).append(',');
+		name(row);
+		row.append(',').append(this._random.nextBoolean() ? 'F' : 'M');
+		row.append(',').append(this._random.nextInt(100));
+		row.append(',').append(1 + this._random.nextInt(9999)).append(' ').append(pick(STREETS)).append(' ').append(pick(CITIES));
+		row.append(',').append(this._random.nextInt(6));
+	}
+
+	private void appointment(int i, StringBuilder row){
+		long first = FIRST_DAY.toEpochDay();
+		long day = first + this._random.nextLong(LAST_DAY.toEpochDay() - first + 1);
+		LocalDate date = LocalDate.ofEpochDay(day);
+		String status;
+		int p = this._random.nextInt(100);
+		if (day < ANCHOR_DAY.toEpochDay()){
+			status = p < 97 ? "PA" : "AC";
+		}else{
+			status = p < 60 ? "AV" : (p < 90 ? "AC" : "WL");
+		}//end if
+		row.append(i).append(',')
+			.append(date.getMonthValue()).append('/').append(date.getDayOfMonth()).append('/').append(date.getYear())
+			.append(',').append(pick(TIME_SLOTS)).append(',').append(status);
+	}
+
+	private void hasAppointment(int i, StringBuilder row){
+		row.append(i).append(',').append(skewed(this.doctors));
+	}
+
+	private void requestMaintenance(int i, StringBuilder row){
+		//one row per doctor keeps (did, sid) unique
+		row.append(1 + this._random.nextInt(4)).append(',').append(pick(DEPARTMENTS)).append(',').append(pick(TIME_SLOTS))
+			.append(',').append(i).append(',').append(this._random.nextInt(this.staff));
+	}
+
+	private void search(int i, StringBuilder row){
+		row.append(this._random.nextInt(this.hospitals)).append(',').append(this._random.nextInt(this.patients))
+			.append(',').append(spread(i, this.appointments));
+	}
+
+	private void schedule(int i, StringBuilder row){
+		row.append(spread(i, this.appointments)).append(',').append(this._random.nextInt(this.staff));
+	}
+
+	private void name(StringBuilder row){
+		row.append(pick(FIRST_NAMES)).append(' ').append(pick(LAST_NAMES));
+	}
+
+	private String pick(String[] values){
+		return values[this._random.nextInt(values.length)];
+	}
+
+	/**
+	 * @return a value in [0, n) biased towards small values, so that low IDs
+	 *         are the popular ones
+	 */
+	private int skewed(int n){
+		double u = this._random.nextDouble();
+		return (int) (n * u * u * u);
+	}
+
+	/**
+	 * Maps 0, 1, 2, ... to distinct values spread over [0, n), so that rows
+	 * referring to appointments do not cluster at the lowest IDs.
+	 */
+	private static int spread(int i, int n){
+		//a large prime is coprime with n unless n is a multiple of it
+		long stride = (n % 1000003 == 0) ? 1 : 1000003;
+		return (int) ((i * stride) % n);
+	}
+
+	public static void main(String[] args){
+		if (args.length < 1){
+			System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName() + " <outDir> [scale] [seed]");
+			System.exit(2);
+		}//end if
+		double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 166L;
+		try{
+			new DataGenerator(new File(args[0]), scale, seed).generateAll();
+		}catch (IOException e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}//end try
+	}
+}
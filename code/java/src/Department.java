@@ -0,0 +1,26 @@
+/**
+ * A row of the Department table.
+ *
+ */
+
+public class Department{
+	//reads dept_ID, name, hid as the first three columns
+	public static final RowMapper<Department> MAPPER = rs -> new Department(rs.getInt(1), rs.getString(2), rs.getInt(3));
+
+	//dept_ID
+	public final int id;
+	public final String name;
+	//hospital_ID of the hospital (hid)
+	public final int hospitalId;
+
+	public Department(int id, String name, int hospitalId){
+		this.id = id;
+		this.name = name;
+		this.hospitalId = hospitalId;
+	}
+
+	@Override
+	public String toString(){
+		return "dept_ID: " + this.id + ", name: " + this.name + ", hid: " + this.hospitalId;
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ * A row of the Doctor table.
+ *
+ */
+
+public class Doctor{
+	//reads doctor_ID, name, specialty, did as the first four columns
+	public static final RowMapper<Doctor> MAPPER = rs -> new Doctor(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4));
+
+	//doctor_ID, or -1 if not assigned yet
+	public final int id;
+	public final String name;
+	public final String specialty;
+	//dept_ID of the department (did)
+	public final int departmentId;
+
+	public Doctor(int id, String name, String specialty, int departmentId){
+		this.id = id;
+		this.name = name;
+		this.specialty = specialty;
+		this.departmentId = departmentId;
+	}
+
+	@Override
+	public String toString(){
+		return "doctor_ID: " + this.id + ", name: " + this.name + ", specialty: " + this.specialty + ", did: " + this.departmentId;
+	}
+}
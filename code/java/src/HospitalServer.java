@@ -0,0 +1,446 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class serves the eight menu operations over HTTP on localhost, so one
+ * JVM and one connection pool can serve many clients at once. Every request
+ * runs on its own virtual thread when the JVM has them (Java 21+), otherwise
+ * on a bounded platform thread pool; either way the connection pool limits
+ * how many run against the database at a time.
+ *
+ * Parameters are passed in the query string; operations that write must be
+ * POSTed. Listings are streamed as a JSON array, everything else is a JSON
+ * object. Dates are YYYY-MM-DD. With limit, listings 5 and 6 return one page
+ * {"rows":[...],"next":cursor} instead; pass next as cursor for the
+ * following page. Listing 6 is answered from the AvailabilityIndex, which
+ * the server loads at startup unless -Ddbproject.availability.index=false.
+ *
+ *   POST /doctors?name=&specialty=&did=                     (1)
+ *   POST /patients?name=&gender=&age=&address=              (2)
+ *   POST /appointments?date=&timeSlot=&status=              (3)
+ *   POST /bookings?name=&gender=&age=&address=&doctor=&appointment=  (4)
+ *   POST /cancellations?appointment=[&patient=]
+ *   GET  /doctors/appointments?doctor=&start=&end=[&limit=&cursor=]  (5)
+ *   GET  /departments/available?name=&date=[&limit=&cursor=]        (6)
+ *   GET  /reports/status-types                              (7)
+ *   GET  /reports/status-count?status=                      (8)
+ *   GET  /stats
+ *   GET  /metrics
+ *
+ * Only the server's user can call it: every request must carry the header
+ * "Authorization: Bearer <token>", with the random token the server writes
+ * at startup to http-<port>.token in the user's private directory (the
+ * MenuDaemon's, rwx------). Requests a web page of another site sends, i.e.
+ * with an Origin other than the server's own, are refused.
+ *
+ * Usage: java HospitalServer <dbname> <port> <user> [-listen port] [-threads N] [-dir path]
+ *
+ */
+
+public class HospitalServer{
+	/**
+	 * Handles one request; throws IllegalArgumentException for bad parameters.
+	 */
+	private interface Operation{
+		void handle(HttpExchange exchange, Map<String, String> params) throws IOException, SQLException;
+	}
+
+	/**
+	 * Writer over a response body that sends the 200 headers on the first
+	 * write, so a request that fails before producing output can still be
+	 * answered with an error status.
+	 */
+	private static final class ResponseWriter extends Writer{
+		private final HttpExchange _exchange;
+		private Writer _out = null;
+
+		ResponseWriter(HttpExchange exchange){
+			this._exchange = exchange;
+		}
+
+		private Writer out() throws IOException {
+			if (this._out == null){
+				this._exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				this._exchange.sendResponseHeaders(200, 0);
+				this._out = new OutputStreamWriter(this._exchange.getResponseBody(), StandardCharsets.UTF_8);
+			}//end if
+			return this._out;
+		}
+
+		boolean started(){
+			return this._out != null;
+		}
+
+		@Override
+		public void write(char[] buf, int off, int len) throws IOException {
+			out().write(buf, off, len);
+		}
+
+		@Override
+		public Writer append(CharSequence s) throws IOException {
+			return out().append(s);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out().flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out().close();
+		}
+	}
+
+	private final DBproject _db;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	//what requests must send after "Bearer "
+	private final byte[] _token;
+	private final Path _tokenFile;
+
+	/**
+	 * @param db the database, whose pool the requests share
+	 * @param port the port to listen on, on the loopback interface only
+	 * @param threads platform threads to use when virtual threads are not available
+	 * @param dir the user's private directory, created like the MenuDaemon's, where the token is written
+	 * @throws java.io.IOException when the directory exists and is not private to this user
+	 */
+	public HospitalServer(DBproject db, int port, int threads, Path dir) throws IOException {
+		this._db = db;
+		MenuDaemon.privateDirectory(dir);
+		this._executor = newExecutor(threads);
+		this._server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 128);
+		this._server.setExecutor(this._executor);
+
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+		this._token = token.getBytes(StandardCharsets.US_ASCII);
+		this._tokenFile = dir.resolve("http-" + getPort() + ".token");
+		//a new file, readable by the user alone, never one planted in its place
+		Files.deleteIfExists(this._tokenFile);
+		Files.createFile(this._tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		Files.write(this._tokenFile, token.getBytes(StandardCharsets.US_ASCII));
+
+		HospitalService service = db.getService();
+		route("POST", "/doctors", (ex, p) -> writeObject(ex, "doctor_id",
+			service.addDoctor(p.get("name"), p.get("specialty"), intParam(p, "did"))));
+		route("POST", "/patients", (ex, p) -> writeObject(ex, "patient_id",
+			service.addPatient(required(p, "name"), required(p, "gender"), intParam(p, "age"), p.get("address"))));
+		route("POST", "/appointments", (ex, p) -> writeObject(ex, "appointment_id",
+			service.addAppointment(dateParam(p, "date"), p.get("timeSlot"), p.get("status"))));
+		route("POST", "/bookings", (ex, p) -> {
+			BookingEngine.Result r = service.makeAppointment(required(p, "name"), required(p, "gender"), intParam(p, "age"),
+				p.get("address"), intParam(p, "doctor"), intParam(p, "appointment"));
+			writeObject(ex, "outcome", r.outcome.name(), "patient_id", r.patientId < 0 ? null : r.patientId,
+				"patient_created", r.patientCreated, "old_status", r.oldStatus, "new_status", r.newStatus);
+		});
+		route("POST", "/cancellations", (ex, p) -> {
+			BookingEngine.Cancellation c = service.cancelAppointment(intParam(p, "appointment"),
+				p.containsKey("patient") ? intParam(p, "patient") : -1);
+			writeObject(ex, "cancelled", c.cancelled, "promoted_patient_id", c.promotedPatientId < 0 ? null : c.promotedPatientId,
+				"old_status", c.oldStatus, "new_status", c.newStatus);
+		});
+		route("GET", "/doctors/appointments", (ex, p) -> {
+			int doctorId = intParam(p, "doctor");
+			java.sql.Date start = dateParam(p, "start");
+			java.sql.Date end = dateParam(p, "end");
+			if (p.containsKey("limit")){
+				writePage(ex, service.listAppointmentsOfDoctor(doctorId, start, end, p.get("cursor"), intParam(p, "limit")));
+			}else{
+				stream(ex, out -> service.listAppointmentsOfDoctor(doctorId, start, end, out));
+			}//end if
+		});
+		route("GET", "/departments/available", (ex, p) -> {
+			String name = required(p, "name");
+			java.sql.Date date = dateParam(p, "date");
+			if (p.containsKey("limit")){
+				writePage(ex, service.listAvailableAppointmentsOfDepartment(name, date, p.get("cursor"), intParam(p, "limit")));
+			}else{
+				stream(ex, out -> service.listAvailableAppointmentsOfDepartment(name, date, out));
+			}//end if
+		});
+		route("GET", "/reports/status-types", (ex, p) -> stream(ex, service::listStatusNumberOfAppointmentsPerDoctor));
+		route("GET", "/reports/status-count", (ex, p) -> {
+			String status = required(p, "status");
+			stream(ex, out -> service.findPatientsCountWithStatus(status, out));
+		});
+		route("GET", "/stats", (ex, p) -> writeObject(ex, "in_flight", this._inFlight.get() - 1,
+			"pool", db.getPool().getStats(), "reference_cache", db.getReferenceCache().getStats(),
+			"availability_index", db.getAvailabilityIndex() == null ? null : db.getAvailabilityIndex().getStats()));
+		route("GET", "/metrics", (ex, p) -> writeObject(ex, "metrics", db.getMetrics().dump()));
+	}
+
+	/**
+	 * @return an executor with one virtual thread per task if the JVM has
+	 *         them, else a fixed pool of platform threads
+	 */
+	static ExecutorService newExecutor(int threads){
+		try{
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtual.invoke(null);
+		}catch (ReflectiveOperationException e){
+			AtomicInteger n = new AtomicInteger();
+			return Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "hospital-server-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}//end try
+	}
+
+	public void start(){
+		this._server.start();
+	}
+
+	/**
+	 * Stops accepting requests and waits up to delaySeconds for the running
+	 * ones to finish.
+	 */
+	public void stop(int delaySeconds){
+		this._server.stop(delaySeconds);
+		this._executor.shutdown();
+		try{
+			Files.deleteIfExists(this._tokenFile);
+		}catch (IOException e){
+			// ignored.
+		}//end try
+	}
+
+	public int getPort(){
+		return this._server.getAddress().getPort();
+	}
+
+	/**
+	 * @return where the token requests must send is written
+	 */
+	public Path getTokenFile(){
+		return this._tokenFile;
+	}
+
+	/**
+	 * @return whether the request carries no Origin, or the server's own
+	 */
+	private boolean sameOrigin(HttpExchange exchange){
+		String origin = exchange.getRequestHeaders().getFirst("Origin");
+		return origin == null || origin.equals("http://127.0.0.1:" + getPort()) || origin.equals("http://localhost:" + getPort());
+	}
+
+	private boolean authorized(HttpExchange exchange){
+		String header = exchange.getRequestHeaders().getFirst("Authorization");
+		if (header == null || !header.startsWith("Bearer ")) return false;
+		//compares in constant time, so the token cannot be guessed byte by byte
+		return MessageDigest.isEqual(this._token, header.substring(7).trim().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private void route(String method, String path, Operation op){
+		this._server.createContext(path, exchange -> {
+			this._inFlight.incrementAndGet();
+			try{
+				if (!sameOrigin(exchange)){
+					error(exchange, 403, "Cross-origin requests are not allowed");
+				}else if (!authorized(exchange)){
+					exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+					error(exchange, 401, "Send Authorization: Bearer <token>, the token is in " + this._tokenFile);
+				}else if (!exchange.getRequestURI().getPath().equals(path)){
+					error(exchange, 404, "No such operation: " + exchange.getRequestURI().getPath());
+				}else if (!exchange.getRequestMethod().equals(method)){
+					exchange.getResponseHeaders().set("Allow", method);
+					error(exchange, 405, "Use " + method);
+				}else{
+					op.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+				}//end if
+			}catch (IllegalArgumentException e){
+				error(exchange, 400, e.getMessage());
+			}catch (SQLException e){
+				error(exchange, 500, e.getMessage());
+			}catch (RuntimeException e){
+				error(exchange, 500, e.toString());
+			}finally{
+				this._inFlight.decrementAndGet();
+				exchange.close();
+			}//end try
+		});
+	}
+
+	/**
+	 * Streams the rows a listing passes to its handler as a JSON array.
+	 */
+	private interface Listing{
+		int run(RowHandler out) throws SQLException;
+	}
+
+	private static void stream(HttpExchange exchange, Listing listing) throws IOException, SQLException {
+		ResponseWriter body = new ResponseWriter(exchange);
+		ResultWriter out = new ResultWriter(body, ResultWriter.Format.JSON, 0, null);
+		try{
+			listing.run(out);
+			out.finish();
+		}catch (SQLException | RuntimeException e){
+			//too late for an error status once rows have been sent
+			if (body.started()) throw new IOException("Listing failed after the response started: " + e.getMessage(), e);
+			throw e;
+		}//end try
+	}
+
+	/**
+	 * Writes a JSON object of the given name/value pairs.
+	 */
+	private static void writeObject(HttpExchange exchange, Object... pairs) throws IOException {
+		StringBuilder b = new StringBuilder("{");
+		for (int i = 0; i < pairs.length; i += 2){
+			if (i > 0) b.append(',');
+			ResultWriter.appendJson(b, (String) pairs[i]).append(':');
+			Object v = pairs[i + 1];
+			if (v == null) b.append("null");
+			else if (v instanceof Number || v instanceof Boolean) b.append(v);
+			else ResultWriter.appendJson(b, v.toString());
+		}//end for
+		b.append("}\n");
+		send(exchange, 200, b);
+	}
+
+	/**
+	 * Writes a page of appointments as {"rows":[{...},...],"next":cursor}.
+	 */
+	private static void writePage(HttpExchange exchange, HospitalService.Page page) throws IOException {
+		StringBuilder b = new StringBuilder("{\"rows\":[");
+		appendAppointments(b, page.rows);
+		b.append("],\"next\":");
+		if (page.nextCursor == null) b.append("null"); else ResultWriter.appendJson(b, page.nextCursor);
+		b.append("}\n");
+		send(exchange, 200, b);
+	}
+
+	//rows of appnt_ID, adate, time_slot, status as comma separated objects, one per line
+	private static void appendAppointments(StringBuilder b, List<List<String>> rows){
+		for (int i = 0; i < rows.size(); ++i){
+			List<String> row = rows.get(i);
+			b.append(i == 0 ? "\n" : ",\n").append("{\"appnt_id\":").append(row.get(0)).append(",\"adate\":");
+			ResultWriter.appendJson(b, row.get(1)).append(",\"time_slot\":");
+			if (row.get(2) == null) b.append("null"); else ResultWriter.appendJson(b, row.get(2));
+			b.append(",\"status\":");
+			if (row.get(3) == null) b.append("null"); else ResultWriter.appendJson(b, row.get(3));
+			b.append('}');
+		}//end for
+	}
+
+	private static void error(HttpExchange exchange, int status, String message) throws IOException {
+		StringBuilder b = new StringBuilder("{\"error\":");
+		ResultWriter.appendJson(b, message == null ? "" : message).append("}\n");
+		send(exchange, status, b);
+	}
+
+	private static void send(HttpExchange exchange, int status, CharSequence body) throws IOException {
+		byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()){
+			out.write(bytes);
+		}//end try
+	}
+
+	static Map<String, String> parseQuery(String rawQuery){
+		Map<String, String> params = new HashMap<String, String>();
+		if (rawQuery == null) return params;
+		for (String pair : rawQuery.split("&")){
+			if (pair.isEmpty()) continue;
+			int eq = pair.indexOf('=');
+			String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+			String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+			params.put(key, value);
+		}//end for
+		return params;
+	}
+
+	static String required(Map<String, String> params, String name){
+		String v = params.get(name);
+		if (v == null || v.isEmpty()) throw new IllegalArgumentException("Missing parameter " + name);
+		return v;
+	}
+
+	static int intParam(Map<String, String> params, String name){
+		String v = required(params, name);
+		try{
+			return Integer.parseInt(v);
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException("Parameter " + name + " is not an integer: " + v);
+		}//end try
+	}
+
+	static java.sql.Date dateParam(Map<String, String> params, String name){
+		String v = required(params, name);
+		try{
+			return java.sql.Date.valueOf(v);
+		}catch (IllegalArgumentException e){
+			throw new IllegalArgumentException("Parameter " + name + " is not a YYYY-MM-DD date: " + v);
+		}//end try
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + HospitalServer.class.getName()
+				+ " <dbname> <port> <user> [-listen port] [-threads N] [-dir path]");
+			System.exit(2);
+		}//end if
+
+		int listen = 8080;
+		int threads = 64;
+		String dir = Paths.get(System.getProperty("java.io.tmpdir"), "dbproject-" + args[2]).toString();
+		for (int i = 3; i < args.length; ++i){
+			switch (args[i]){
+				case "-listen": listen = Integer.parseInt(args[++i]); break;
+				case "-threads": threads = Integer.parseInt(args[++i]); break;
+				case "-dir": dir = args[++i]; break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}//end for
+
+		//a long running process amortizes loading the index
+		if (System.getProperty("dbproject.availability.index") == null){
+			System.setProperty("dbproject.availability.index", "true");
+		}//end if
+
+		try{
+			Class.forName("org.postgresql.Driver");
+			DBproject esql = new DBproject(args[0], args[1], args[2], "");
+			HospitalServer server = new HospitalServer(esql, listen, threads, Paths.get(dir));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				server.stop(5);
+				System.out.println(esql.getPool().getStats());
+				esql.cleanup();
+			}));
+			server.start();
+			System.out.println("Listening on http://127.0.0.1:" + server.getPort() + "/, token in " + server.getTokenFile());
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}//end try
+	}
+}
@@ -0,0 +1,609 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class implements the eight menu operations without any console
+ * interaction. DBproject's menu reads the parameters from the user and
+ * calls into it; benchmarks and other non-interactive clients call it
+ * directly. It is thread safe: every call borrows its own pooled
+ * connection.
+ *
+ */
+
+public class HospitalService{
+	/**
+	 * The outcome of a batch insert.
+	 */
+	public static final class BatchResult{
+		//ID assigned to each input row, in input order, or -1 if the row failed
+		public final int[] ids;
+		//error message of every failed row, by input index
+		public final Map<Integer, String> errors = new TreeMap<Integer, String>();
+
+		BatchResult(int rows){
+			this.ids = new int[rows];
+			Arrays.fill(this.ids, -1);
+		}
+
+		public int inserted(){
+			return this.ids.length - this.errors.size();
+		}
+	}
+
+	//rows of a call that inserts one row and returns its ID
+	private static final ToLongFunction<Object> ONE_ROW = id -> 1;
+
+	/**
+	 * A call to the database, timed by timed().
+	 */
+	private interface Call<T>{
+		T run() throws SQLException;
+	}
+
+	/**
+	 * One page of a listing in (adate, time_slot, appnt_ID) order. Pages are
+	 * found by seeking past the last row of the previous page, which the
+	 * cursor encodes, so every page costs the same however deep it is and
+	 * rows added or removed meanwhile do not shift the pages.
+	 */
+	public static final class Page{
+		//names and java.sql.Types of the columns of the rows
+		public static final String[] COLUMNS = { "appnt_id", "adate", "time_slot", "status" };
+		public static final int[] TYPES = { Types.INTEGER, Types.DATE, Types.VARCHAR, Types.VARCHAR };
+
+		//rows of appnt_ID, adate, time_slot, status
+		public final List<List<String>> rows;
+		//cursor of the next page, or null if this is the last one
+		public final String nextCursor;
+
+		Page(List<List<String>> rows, String nextCursor){
+			this.rows = rows;
+			this.nextCursor = nextCursor;
+		}
+	}
+
+	/**
+	 * An appointment count per doctor (menu option 7 and 8) as parallel
+	 * arrays, in the order of the report.
+	 */
+	public static final class DoctorCounts{
+		public final int[] doctorIds;
+		public final long[] counts;
+
+		DoctorCounts(int[] doctorIds, long[] counts){
+			this.doctorIds = doctorIds;
+			this.counts = counts;
+		}
+
+		public int size(){
+			return this.doctorIds.length;
+		}
+	}
+
+	/**
+	 * Binds one input row, with its assigned ID, to an insert statement.
+	 */
+	private interface Binder<T>{
+		void bind(PreparedStatement stmt, int id, T row) throws SQLException;
+	}
+
+	private final DBproject _db;
+	//rows per batch (and per transaction) of the batch inserts
+	private final int _batchSize;
+
+	public HospitalService(DBproject db){
+		this._db = db;
+		this._batchSize = Integer.getInteger("dbproject.batchSize", 1000);
+	}
+
+	/**
+	 * Adds a doctor to an existing department (menu option 1).
+	 *
+	 * @return the ID assigned to the doctor
+	 * @throws java.sql.SQLException when the insert fails, e.g. the department does not exist
+	 */
+	public int addDoctor(String name, String specialty, int departmentId) throws SQLException {
+		return timed("addDoctor", ONE_ROW, () -> {
+			int doctorId = this._db.getIdAllocator().next(IdAllocator.DOCTOR);
+			this._db.executeUpdate(DBproject.INSERT_DOCTOR_SQL, doctorId, name, specialty, departmentId);
+			this._db.getReferenceCache().doctorAdded(doctorId, departmentId);
+			return doctorId;
+		});
+	}
+
+	/**
+	 * Adds a patient with no appointments (menu option 2).
+	 *
+	 * @return the ID assigned to the patient
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int addPatient(String name, String gender, int age, String address) throws SQLException {
+		return timed("addPatient", ONE_ROW, () -> {
+			int patientId = this._db.getIdAllocator().next(IdAllocator.PATIENT);
+			this._db.executeUpdate(DBproject.INSERT_PATIENT_SQL, patientId, name, gender, age, address, 0);
+			return patientId;
+		});
+	}
+
+	/**
+	 * Adds an appointment slot (menu option 3).
+	 *
+	 * @return the ID assigned to the appointment
+	 * @throws java.sql.SQLException when the insert fails, e.g. the status is invalid
+	 */
+	public int addAppointment(java.sql.Date date, String timeSlot, String status) throws SQLException {
+		return timed("addAppointment", ONE_ROW, () -> {
+			int appointmentId = this._db.getIdAllocator().next(IdAllocator.APPOINTMENT);
+			this._db.executeUpdate(DBproject.INSERT_APPOINTMENT_SQL, appointmentId, date, timeSlot, status);
+			return appointmentId;
+		});
+	}
+
+	/**
+	 * Adds many doctors in batches. The ID fields of the input are ignored.
+	 *
+	 * @see #insertBatch
+	 */
+	public BatchResult addDoctors(List<Doctor> doctors) throws SQLException {
+		return timed("addDoctors", () -> {
+			BatchResult result = insertBatch(DBproject.INSERT_DOCTOR_SQL, IdAllocator.DOCTOR, doctors, (stmt, id, d) -> {
+				stmt.setInt(1, id);
+				stmt.setString(2, d.name);
+				stmt.setString(3, d.specialty);
+				stmt.setInt(4, d.departmentId);
+			});
+			for (int i = 0; i < result.ids.length; ++i){
+				if (result.ids[i] >= 0) this._db.getReferenceCache().doctorAdded(result.ids[i], doctors.get(i).departmentId);
+			}//end for
+			return result;
+		});
+	}
+
+	/**
+	 * Adds many patients, with no appointments, in batches. The ID fields of
+	 * the input are ignored.
+	 *
+	 * @see #insertBatch
+	 */
+	public BatchResult addPatients(List<Patient> patients) throws SQLException {
+		return timed("addPatients", () -> insertBatch(DBproject.INSERT_PATIENT_SQL, IdAllocator.PATIENT, patients, (stmt, id, p) -> {
+			stmt.setInt(1, id);
+			stmt.setString(2, p.name);
+			stmt.setString(3, p.gender);
+			stmt.setInt(4, p.age);
+			stmt.setString(5, p.address);
+			stmt.setInt(6, 0);
+		}));
+	}
+
+	/**
+	 * Adds many appointment slots in batches. The ID fields of the input are
+	 * ignored.
+	 *
+	 * @see #insertBatch
+	 */
+	public BatchResult addAppointments(List<Appointment> appointments) throws SQLException {
+		return timed("addAppointments", () -> insertBatch(DBproject.INSERT_APPOINTMENT_SQL, IdAllocator.APPOINTMENT, appointments, (stmt, id, a) -> {
+			stmt.setInt(1, id);
+			stmt.setDate(2, a.date);
+			stmt.setString(3, a.timeSlot);
+			stmt.setString(4, a.status);
+		}));
+	}
+
+	/**
+	 * Inserts rows with addBatch/executeBatch, batchSize rows per batch and
+	 * one transaction per batch. The driver rewrites each batch into
+	 * multi-row INSERTs (reWriteBatchedInserts), so a batch costs about one
+	 * round trip. If a batch fails it is rolled back and its rows are retried
+	 * one by one, so that only the offending rows are rejected and each of
+	 * them is reported with its error.
+	 *
+	 * @return the assigned IDs and the per-row errors
+	 * @throws java.sql.SQLException when no connection can be obtained or a transaction cannot be ended
+	 */
+	private <T> BatchResult insertBatch(String sql, String sequence, List<T> rows, Binder<T> binder) throws SQLException {
+		BatchResult result = new BatchResult(rows.size());
+		int[] ids = new int[rows.size()];
+		for (int i = 0; i < ids.length; ++i){
+			ids[i] = this._db.getIdAllocator().next(sequence);
+		}//end for
+
+		PooledConnection conn = this._db.getConnection();
+		try{
+			Connection c = conn.getConnection();
+			c.setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			for (int from = 0; from < ids.length; from += this._batchSize){
+				int to = Math.min(ids.length, from + this._batchSize);
+				try{
+					for (int i = from; i < to; ++i){
+						binder.bind(stmt, ids[i], rows.get(i));
+						stmt.addBatch();
+					}//end for
+					long start = System.nanoTime();
+					boolean ok = false;
+					try{
+						stmt.executeBatch();
+						c.commit();
+						ok = true;
+					}finally{
+						this._db.getMetrics().recordStatement(sql, start, ok ? to - from : 0, ok, "batch of " + (to - from));
+					}//end try
+					for (int i = from; i < to; ++i) result.ids[i] = ids[i];
+				}catch (SQLException e){
+					stmt.clearBatch();
+					c.rollback();
+					//find the offending rows
+					for (int i = from; i < to; ++i){
+						long start = System.nanoTime();
+						try{
+							binder.bind(stmt, ids[i], rows.get(i));
+							stmt.executeUpdate();
+							c.commit();
+							result.ids[i] = ids[i];
+							this._db.getMetrics().recordStatement(sql, start, 1, true);
+						}catch (SQLException rowError){
+							c.rollback();
+							result.errors.put(i, rowError.getMessage());
+							this._db.getMetrics().recordStatement(sql, start, 0, false, rowError.getMessage());
+						}//end try
+					}//end for
+				}//end try
+			}//end for
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+		return result;
+	}
+
+	/**
+	 * Books an appointment of a doctor for a patient (menu option 4).
+	 *
+	 * @see BookingEngine#book
+	 */
+	public BookingEngine.Result makeAppointment(String name, String gender, int age, String address,
+			int doctorId, int appointmentId) throws SQLException {
+		return timed("makeAppointment", () -> this._db.getBookingEngine().book(name, gender, age, address, doctorId, appointmentId));
+	}
+
+	/**
+	 * Cancels a booking and promotes the next waitlisted patient.
+	 *
+	 * @see BookingEngine#cancel
+	 */
+	public BookingEngine.Cancellation cancelAppointment(int appointmentId, int patientId) throws SQLException {
+		return timed("cancelAppointment", () -> this._db.getBookingEngine().cancel(appointmentId, patientId));
+	}
+
+	/**
+	 * Lists the active and available appointments of a doctor in a date
+	 * range (menu option 5).
+	 *
+	 * @return rows of appnt_ID, adate, time_slot, status
+	 */
+	public List<List<String>> listAppointmentsOfDoctor(int doctorId, java.sql.Date start, java.sql.Date end) throws SQLException {
+		return timed("listAppointmentsOfDoctor", () -> this._db.executeQueryAndReturnResult(DBproject.APPOINTMENTS_OF_DOCTOR_SQL, start, end, doctorId));
+	}
+
+	/**
+	 * Lists the active and available appointments of a doctor in a date
+	 * range (menu option 5) as Appointment objects.
+	 */
+	public List<Appointment> appointmentsOfDoctor(int doctorId, java.sql.Date start, java.sql.Date end) throws SQLException {
+		return timed("appointmentsOfDoctor", () -> this._db.executeQueryAndMap(DBproject.APPOINTMENTS_OF_DOCTOR_SQL, Appointment.MAPPER, start, end, doctorId));
+	}
+
+	/**
+	 * Streams the active and available appointments of a doctor in a date
+	 * range to a handler (menu option 5).
+	 *
+	 * @return the number of rows
+	 */
+	public int listAppointmentsOfDoctor(int doctorId, java.sql.Date start, java.sql.Date end, RowHandler handler) throws SQLException {
+		return timed("listAppointmentsOfDoctor", () -> this._db.executeQueryStreaming(DBproject.APPOINTMENTS_OF_DOCTOR_SQL, handler, start, end, doctorId));
+	}
+
+	/**
+	 * Lists one page of the active and available appointments of a doctor in
+	 * a date range (menu option 5).
+	 *
+	 * @param cursor nextCursor of the previous page, or null for the first page
+	 * @param pageSize rows per page
+	 * @throws IllegalArgumentException when the cursor is malformed
+	 */
+	public Page listAppointmentsOfDoctor(int doctorId, java.sql.Date start, java.sql.Date end, String cursor, int pageSize) throws SQLException {
+		return timed("listAppointmentsOfDoctorPage", () -> {
+			checkPageSize(pageSize);
+			Object[] after = decodeCursor(cursor, start);
+			return page(this._db.executeQueryAndReturnResult(DBproject.APPOINTMENTS_OF_DOCTOR_PAGE_SQL,
+				start, end, doctorId, after[0], after[1], after[2], pageSize + 1), pageSize);
+		});
+	}
+
+	/**
+	 * Lists the available appointments of a department on a date (menu
+	 * option 6), from the AvailabilityIndex when it is loaded.
+	 *
+	 * @return rows of appnt_ID, adate, time_slot, status
+	 */
+	public List<List<String>> listAvailableAppointmentsOfDepartment(String departmentName, java.sql.Date date) throws SQLException {
+		return timed("listAvailableAppointmentsOfDepartment", () -> {
+			AvailabilityIndex index = this._db.getAvailabilityIndex();
+			if (index != null && index.isLoaded()){
+				return fromIndex(index.find(departmentName, date), date, decodeCursor(null, date), Integer.MAX_VALUE);
+			}//end if
+			int[] doctors = this._db.getReferenceCache().doctorsOfDepartment(departmentName);
+			if (doctors.length == 0) return new ArrayList<List<String>>();
+			return this._db.executeQueryAndReturnResult(DBproject.AVAILABLE_APPOINTMENTS_OF_DOCTORS_SQL, date, toArrayLiteral(doctors));
+		});
+	}
+
+	/**
+	 * Lists the available appointments of a department on a date (menu
+	 * option 6) as Appointment objects, from the AvailabilityIndex when it
+	 * is loaded.
+	 */
+	public List<Appointment> availableAppointmentsOfDepartment(String departmentName, java.sql.Date date) throws SQLException {
+		return timed("availableAppointmentsOfDepartment", () -> {
+			AvailabilityIndex index = this._db.getAvailabilityIndex();
+			if (index != null && index.isLoaded()){
+				AvailabilityIndex.Day day = index.find(departmentName, date);
+				List<Appointment> appointments = new ArrayList<Appointment>(day.size());
+				for (int s = 0; s < day.slotCount(); ++s){
+					String slot = day.slot(s).isEmpty() ? null : day.slot(s);
+					for (int id : day.ids(s)) appointments.add(new Appointment(id, date, slot, "AV"));
+				}//end for
+				return appointments;
+			}//end if
+			int[] doctors = this._db.getReferenceCache().doctorsOfDepartment(departmentName);
+			if (doctors.length == 0) return new ArrayList<Appointment>();
+			return this._db.executeQueryAndMap(DBproject.AVAILABLE_APPOINTMENTS_OF_DOCTORS_SQL, Appointment.MAPPER, date, toArrayLiteral(doctors));
+		});
+	}
+
+	/**
+	 * Streams the available appointments of a department on a date to a
+	 * handler (menu option 6), from the AvailabilityIndex when it is loaded
+	 * and the handler takes the rows.
+	 *
+	 * @return the number of rows
+	 */
+	public int listAvailableAppointmentsOfDepartment(String departmentName, java.sql.Date date, RowHandler handler) throws SQLException {
+		return timed("listAvailableAppointmentsOfDepartment", () -> {
+			AvailabilityIndex index = this._db.getAvailabilityIndex();
+			if (index != null && index.isLoaded()){
+				List<List<String>> rows = fromIndex(index.find(departmentName, date), date, decodeCursor(null, date), Integer.MAX_VALUE);
+				if (handler.rows(rows, Page.COLUMNS, Page.TYPES)) return rows.size();
+			}//end if
+			int[] doctors = this._db.getReferenceCache().doctorsOfDepartment(departmentName);
+			if (doctors.length == 0) return 0;
+			return this._db.executeQueryStreaming(DBproject.AVAILABLE_APPOINTMENTS_OF_DOCTORS_SQL, handler, date, toArrayLiteral(doctors));
+		});
+	}
+
+	/**
+	 * Runs an operation and records its latency, outcome and row count
+	 * under the operation's name.
+	 */
+	private <T> T timed(String operation, Call<T> call) throws SQLException {
+		return timed(operation, HospitalService::rowsOf, call);
+	}
+
+	/**
+	 * @param rows the rows a successful result stands for
+	 */
+	private <T> T timed(String operation, ToLongFunction<? super T> rows, Call<T> call) throws SQLException {
+		long start = System.nanoTime();
+		T result = null;
+		boolean ok = false;
+		try{
+			result = call.run();
+			ok = true;
+			return result;
+		}finally{
+			this._db.getMetrics().operation(operation).record(System.nanoTime() - start, ok ? rows.applyAsLong(result) : 0, ok);
+		}//end try
+	}
+
+	//an Integer result is the row count of a streamed listing; calls returning an ID pass ONE_ROW instead
+	private static long rowsOf(Object result){
+		if (result instanceof Integer) return (Integer) result;
+		if (result instanceof List) return ((List<?>) result).size();
+		if (result instanceof BatchResult) return ((BatchResult) result).inserted();
+		if (result instanceof DoctorCounts) return ((DoctorCounts) result).size();
+		if (result instanceof BookingEngine.Result) return ((BookingEngine.Result) result).isBooked() ? 1 : 0;
+		if (result instanceof BookingEngine.Cancellation) return ((BookingEngine.Cancellation) result).cancelled ? 1 : 0;
+		return 0;
+	}
+
+	/**
+	 * Lists one page of the available appointments of a department on a date
+	 * (menu option 6), from the AvailabilityIndex when it is loaded.
+	 *
+	 * @param cursor nextCursor of the previous page, or null for the first page
+	 * @param pageSize rows per page
+	 * @throws IllegalArgumentException when the cursor is malformed
+	 */
+	public Page listAvailableAppointmentsOfDepartment(String departmentName, java.sql.Date date, String cursor, int pageSize) throws SQLException {
+		return timed("listAvailableAppointmentsOfDepartmentPage", () -> {
+			checkPageSize(pageSize);
+			Object[] after = decodeCursor(cursor, date);
+			AvailabilityIndex index = this._db.getAvailabilityIndex();
+			if (index != null && index.isLoaded()){
+				return page(fromIndex(index.find(departmentName, date), date, after, pageSize + 1), pageSize);
+			}//end if
+			int[] doctors = this._db.getReferenceCache().doctorsOfDepartment(departmentName);
+			if (doctors.length == 0) return new Page(new ArrayList<List<String>>(), null);
+			return page(this._db.executeQueryAndReturnResult(DBproject.AVAILABLE_APPOINTMENTS_OF_DOCTORS_PAGE_SQL,
+				date, toArrayLiteral(doctors), after[0], after[1], after[2], pageSize + 1), pageSize);
+		});
+	}
+
+	/**
+	 * @param after the adate, time_slot and appnt_ID to seek past, as from decodeCursor
+	 * @return up to limit rows of appnt_ID, adate, time_slot, status, in page order
+	 */
+	private static List<List<String>> fromIndex(AvailabilityIndex.Day day, java.sql.Date date, Object[] after, int limit){
+		List<List<String>> rows = new ArrayList<List<String>>();
+		int afterDate = date.compareTo((java.sql.Date) after[0]);
+		if (afterDate < 0) return rows;
+		String adate = date.toString();
+		for (int s = 0; s < day.slotCount() && rows.size() < limit; ++s){
+			String slot = day.slot(s);
+			int afterSlot = afterDate > 0 ? 1 : slot.compareTo((String) after[1]);
+			if (afterSlot < 0) continue;
+			int[] ids = day.ids(s);
+			for (int i = 0; i < ids.length && rows.size() < limit; ++i){
+				if (afterSlot == 0 && ids[i] <= (Integer) after[2]) continue;
+				rows.add(Arrays.asList(Integer.toString(ids[i]), adate, slot.isEmpty() ? null : slot, "AV"));
+			}//end for
+		}//end for
+		return rows;
+	}
+
+	private static void checkPageSize(int pageSize){
+		if (pageSize < 1) throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+	}
+
+	/**
+	 * @param rows up to pageSize + 1 rows; the extra one only shows there is a next page
+	 */
+	private static Page page(List<List<String>> rows, int pageSize){
+		if (rows.size() <= pageSize) return new Page(rows, null);
+		List<List<String>> pageRows = new ArrayList<List<String>>(rows.subList(0, pageSize));
+		List<String> last = pageRows.get(pageSize - 1);
+		return new Page(pageRows, encodeCursor(last.get(1), last.get(2), Integer.parseInt(last.get(0))));
+	}
+
+	/**
+	 * @return an opaque, URL-safe token for the position after the given row
+	 */
+	static String encodeCursor(String date, String timeSlot, int appointmentId){
+		String position = date + "|" + (timeSlot == null ? "" : timeSlot) + "|" + appointmentId;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param first a date before every row of the listing, used when there is no cursor
+	 * @return the adate, time_slot and appnt_ID to seek past
+	 */
+	static Object[] decodeCursor(String cursor, java.sql.Date first){
+		if (cursor == null || cursor.isEmpty()) return new Object[]{ first, "", Integer.MIN_VALUE };
+		try{
+			String position = new String(Base64.getUrlDecoder().decode(cursor), java.nio.charset.StandardCharsets.UTF_8);
+			int a = position.indexOf('|');
+			int b = position.lastIndexOf('|');
+			return new Object[]{ java.sql.Date.valueOf(position.substring(0, a)), position.substring(a + 1, b),
+				Integer.parseInt(position.substring(b + 1)) };
+		}catch (RuntimeException e){
+			throw new IllegalArgumentException("Invalid cursor: " + cursor);
+		}//end try
+	}
+
+	/**
+	 * @return the IDs as a PostgreSQL array literal, e.g. {1,2,3}
+	 */
+	static String toArrayLiteral(int[] ids){
+		StringBuilder b = new StringBuilder(ids.length * 6 + 2).append('{');
+		for (int i = 0; i < ids.length; ++i){
+			if (i > 0) b.append(',');
+			b.append(ids[i]);
+		}//end for
+		return b.append('}').toString();
+	}
+
+	/**
+	 * Counts the distinct appointment statuses per doctor, most first (menu
+	 * option 7).
+	 *
+	 * @return rows of doctor_ID, count
+	 */
+	public List<List<String>> listStatusNumberOfAppointmentsPerDoctor() throws SQLException {
+		return timed("listStatusNumberOfAppointmentsPerDoctor", () -> this._db.executeQueryAndReturnResult(DBproject.STATUS_TYPES_PER_DOCTOR_SQL));
+	}
+
+	/**
+	 * Streams the distinct appointment status counts per doctor to a handler
+	 * (menu option 7).
+	 *
+	 * @return the number of rows
+	 */
+	public int listStatusNumberOfAppointmentsPerDoctor(RowHandler handler) throws SQLException {
+		return timed("listStatusNumberOfAppointmentsPerDoctor", () -> this._db.executeQueryStreaming(DBproject.STATUS_TYPES_PER_DOCTOR_SQL, handler));
+	}
+
+	/**
+	 * Counts the appointments with a status per doctor (menu option 8).
+	 *
+	 * @return rows of doctor_ID, count
+	 */
+	public List<List<String>> findPatientsCountWithStatus(String status) throws SQLException {
+		return timed("findPatientsCountWithStatus", () -> this._db.executeQueryAndReturnResult(DBproject.PATIENTS_PER_DOCTOR_WITH_STATUS_SQL, status));
+	}
+
+	/**
+	 * Streams the appointment counts with a status per doctor to a handler
+	 * (menu option 8).
+	 *
+	 * @return the number of rows
+	 */
+	public int findPatientsCountWithStatus(String status, RowHandler handler) throws SQLException {
+		return timed("findPatientsCountWithStatus", () -> this._db.executeQueryStreaming(DBproject.PATIENTS_PER_DOCTOR_WITH_STATUS_SQL, handler, status));
+	}
+
+	/**
+	 * Counts the distinct appointment statuses per doctor, most first (menu
+	 * option 7), as parallel arrays.
+	 */
+	public DoctorCounts statusTypesPerDoctor() throws SQLException {
+		return timed("statusTypesPerDoctor", () -> doctorCounts(DBproject.STATUS_TYPES_PER_DOCTOR_SQL));
+	}
+
+	/**
+	 * Counts the appointments with a status per doctor (menu option 8), as
+	 * parallel arrays.
+	 */
+	public DoctorCounts patientsPerDoctorWithStatus(String status) throws SQLException {
+		return timed("patientsPerDoctorWithStatus", () -> doctorCounts(DBproject.PATIENTS_PER_DOCTOR_WITH_STATUS_SQL, status));
+	}
+
+	private DoctorCounts doctorCounts(String query, Object... params) throws SQLException {
+		CountCollector collector = new CountCollector();
+		this._db.executeQueryStreaming(query, collector, params);
+		return collector.toCounts();
+	}
+
+	/**
+	 * Collects streamed doctor_id, count rows into growing arrays.
+	 */
+	private static final class CountCollector implements RowHandler{
+		private int[] _doctorIds = new int[64];
+		private long[] _counts = new long[64];
+		private int _size = 0;
+
+		@Override
+		public void row(java.sql.ResultSet rs) throws SQLException {
+			if (this._size == this._doctorIds.length){
+				this._doctorIds = Arrays.copyOf(this._doctorIds, this._size * 2);
+				this._counts = Arrays.copyOf(this._counts, this._size * 2);
+			}//end if
+			this._doctorIds[this._size] = rs.getInt(1);
+			this._counts[this._size] = rs.getLong(2);
+			++this._size;
+		}
+
+		DoctorCounts toCounts(){
+			return new DoctorCounts(Arrays.copyOf(this._doctorIds, this._size), Arrays.copyOf(this._counts, this._size));
+		}
+	}
+}
@@ -0,0 +1,154 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out primary keys for Doctor, Patient and Appointment.
+ *
+ * Each key space is backed by a PostgreSQL sequence (see create.sql) whose
+ * INCREMENT BY is the block size. One nextval() call claims a whole block of
+ * IDs [value, value + increment) for this JVM; IDs inside the block are then
+ * handed out from an AtomicLong without touching the database. Because every
+ * client claims blocks from the same sequence, IDs are unique across threads
+ * and processes. IDs left in a block when the JVM exits are never used, so
+ * keys may have gaps.
+ *
+ */
+
+public class IdAllocator{
+	//sequence names, as created in create.sql
+	public static final String DOCTOR = "doctor_id_seq";
+	public static final String PATIENT = "patient_id_seq";
+	public static final String APPOINTMENT = "appointment_id_seq";
+
+	//claims the next block of a sequence and reads its size
+	private static final String CLAIM_SQL =
+		"SELECT nextval(?::regclass), (SELECT s.increment::bigint FROM information_schema.sequences s WHERE s.sequence_name = ?)";
+
+	private final DBproject _db;
+	private final ConcurrentHashMap<String, Sequence> _sequences = new ConcurrentHashMap<String, Sequence>();
+
+	public IdAllocator(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Returns the next unused ID of a key space. Only claiming a new block
+	 * costs a round trip to the database.
+	 *
+	 * @param sequence one of DOCTOR, PATIENT or APPOINTMENT
+	 * @return a unique ID
+	 * @throws java.sql.SQLException when a new block cannot be claimed
+	 */
+	public int next(String sequence) throws SQLException {
+		return this._sequences.computeIfAbsent(sequence, Sequence::new).next();
+	}
+
+	/**
+	 * Method to fetch the last value claimed from a sequence by any client.
+	 * Unlike currval() this does not depend on the session having called
+	 * nextval(), so it works on any pooled connection.
+	 *
+	 * @param sequence one of DOCTOR, PATIENT or APPOINTMENT
+	 * @return the start of the most recently claimed block
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long getLastValue(String sequence) throws SQLException {
+		PooledConnection conn = this._db.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement("SELECT last_value FROM " + checkName(sequence));
+			ResultSet rs = stmt.executeQuery();
+			try{
+				if (rs.next()) return rs.getLong(1);
+				return -1;
+			}finally{
+				rs.close();
+			}//end try
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+	}
+
+	private static String checkName(String sequence){
+		if (!DOCTOR.equals(sequence) && !PATIENT.equals(sequence) && !APPOINTMENT.equals(sequence)){
+			throw new IllegalArgumentException("Unknown sequence: " + sequence);
+		}//end if
+		return sequence;
+	}
+
+	/**
+	 * A block of IDs [next, end) claimed from the database.
+	 */
+	private static final class Block{
+		final AtomicLong next;
+		final long end;
+
+		Block(long start, long end){
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Allocation state of one sequence. The fast path is a single
+	 * getAndIncrement on the current block; only threads that exhaust the
+	 * block serialize on the refill.
+	 */
+	private final class Sequence{
+		private final String _name;
+		private volatile Block _block = new Block(0, 0);
+
+		Sequence(String name){
+			this._name = checkName(name);
+		}
+
+		int next() throws SQLException {
+			while (true){
+				Block block = this._block;
+				long id = block.next.getAndIncrement();
+				if (id < block.end){
+					if (id > Integer.MAX_VALUE){
+						throw new SQLException("Sequence " + this._name + " exceeded the INTEGER key range");
+					}//end if
+					return (int) id;
+				}//end if
+
+				synchronized (this){
+					if (this._block == block){
+						this._block = claim();
+					}//end if
+				}
+			}//end while
+		}
+
+		private Block claim() throws SQLException {
+			PooledConnection conn = IdAllocator.this._db.getConnection();
+			try{
+				PreparedStatement stmt = conn.prepareStatement(CLAIM_SQL);
+				stmt.setString(1, this._name);
+				stmt.setString(2, this._name);
+				long started = System.nanoTime();
+				boolean ok = false;
+				try{
+					ResultSet rs = stmt.executeQuery();
+					try{
+						rs.next();
+						long start = rs.getLong(1);
+						long size = rs.getLong(2);
+						if (size < 1) size = 1;
+						ok = true;
+						return new Block(start, start + size);
+					}finally{
+						rs.close();
+					}//end try
+				}finally{
+					IdAllocator.this._db.getMetrics().recordStatement(CLAIM_SQL, started, 1, ok, this._name);
+				}//end try
+			}finally{
+				IdAllocator.this._db.releaseConnection(conn);
+			}//end try
+		}
+	}
+}
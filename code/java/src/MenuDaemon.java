@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class keeps one DBproject warm, with its connection pool, statement
+ * caches, reference cache and availability index, and runs the main menu for
+ * every client that connects to its Unix domain socket. A scripted workflow
+ * that starts the client over and over then pays for a socket connect per
+ * run (see client.sh) instead of a JVM start, the driver load and a new
+ * connection. Only the daemon's user can connect: the socket is bound in a
+ * directory the daemon creates accessible to its owner alone.
+ *
+ * Each session runs on its own thread; its input and output are the
+ * client's (see MenuSession). The daemon logs how long each session took to
+ * reach its menu.
+ *
+ * Usage: java MenuDaemon <dbname> <port> <user> [-dir path] [-sessions N]
+ *
+ */
+
+public class MenuDaemon{
+	//name of the socket in the daemon's directory, see client.sh
+	static final String SOCKET = "menu.sock";
+
+	private final DBproject _db;
+	private final Path _dir;
+	private final Path _path;
+	private final ServerSocketChannel _server;
+	private final ExecutorService _sessions;
+	private final AtomicInteger _count = new AtomicInteger();
+
+	/**
+	 * Creates the directory with permissions rwx------ and binds the socket
+	 * in it, so there is no moment in which other users can reach the socket.
+	 * A socket a previous daemon of the same user left behind is replaced.
+	 *
+	 * @param sessions clients served at a time; later ones wait for a free session
+	 * @throws java.io.IOException when the directory exists and is not private to this user
+	 */
+	public MenuDaemon(DBproject db, Path dir, int sessions) throws IOException {
+		this._db = db;
+		this._dir = dir;
+		this._path = dir.resolve(SOCKET);
+		privateDirectory(dir);
+		Files.deleteIfExists(this._path);
+		this._server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		this._server.bind(UnixDomainSocketAddress.of(this._path));
+		AtomicInteger created = new AtomicInteger();
+		this._sessions = Executors.newFixedThreadPool(sessions, r -> {
+			Thread t = new Thread(r, "session-" + created.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Borrows up to count pooled connections at once and prepares the menu
+	 * statements on each, so the first sessions find them in the statement
+	 * caches.
+	 *
+	 * @return the number of connections warmed
+	 */
+	public int warm(int count) throws SQLException {
+		String[] statements = { DBproject.INSERT_DOCTOR_SQL, DBproject.INSERT_PATIENT_SQL, DBproject.INSERT_APPOINTMENT_SQL,
+			DBproject.APPOINTMENTS_OF_DOCTOR_SQL, DBproject.APPOINTMENTS_OF_DOCTOR_PAGE_SQL,
+			DBproject.AVAILABLE_APPOINTMENTS_OF_DOCTORS_SQL, DBproject.AVAILABLE_APPOINTMENTS_OF_DOCTORS_PAGE_SQL,
+			DBproject.STATUS_TYPES_PER_DOCTOR_SQL, DBproject.PATIENTS_PER_DOCTOR_WITH_STATUS_SQL };
+		List<PooledConnection> borrowed = new ArrayList<PooledConnection>();
+		try{
+			for (int i = 0; i < Math.min(count, this._db.getPool().getMaxSize()); ++i){
+				PooledConnection conn = this._db.getConnection();
+				borrowed.add(conn);
+				for (String sql : statements){
+					conn.prepareStatement(sql);
+				}//end for
+			}//end for
+		}finally{
+			for (PooledConnection conn : borrowed){
+				this._db.releaseConnection(conn);
+			}//end for
+		}//end try
+		return borrowed.size();
+	}
+
+	/**
+	 * Accepts clients until the socket is closed.
+	 */
+	public void serve(){
+		while (this._server.isOpen()){
+			try{
+				SocketChannel client = this._server.accept();
+				long accepted = System.nanoTime();
+				this._sessions.execute(() -> session(client, accepted));
+			}catch (IOException e){
+				if (this._server.isOpen()) MenuSession.console().println("accept failed: " + e.getMessage());
+			}//end try
+		}//end while
+	}
+
+	private void session(SocketChannel client, long accepted){
+		int id = this._count.incrementAndGet();
+		MenuSession session = new MenuSession(Channels.newInputStream(client), Channels.newOutputStream(client));
+		session.attach();
+		try{
+			MenuSession.console().println(String.format("session %d: menu after %.2f ms", id, (System.nanoTime() - accepted) / 1e6));
+			DBproject.menu(this._db);
+			System.out.println("Bye !");
+		}finally{
+			session.detach();
+			try{
+				client.close();
+			}catch (IOException e){
+				// ignored.
+			}//end try
+			MenuSession.console().println(String.format("session %d: closed after %.1f s", id, (System.nanoTime() - accepted) / 1e9));
+		}//end try
+	}
+
+	/**
+	 * Stops accepting clients, ends the sessions and removes the socket and
+	 * its directory.
+	 */
+	/**
+	 * Creates the directory with permissions rwx------, or checks that the
+	 * existing one is a directory of this user that only the user can
+	 * access. HospitalServer keeps its token in the same directory.
+	 *
+	 * @throws java.io.IOException when the directory exists and is not private to this user
+	 */
+	static void privateDirectory(Path dir) throws IOException {
+		Set<PosixFilePermission> owner = PosixFilePermissions.fromString("rwx------");
+		if (Files.exists(dir, LinkOption.NOFOLLOW_LINKS)){
+			if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)
+					|| !Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS).getName().equals(System.getProperty("user.name"))
+					|| !Files.getPosixFilePermissions(dir, LinkOption.NOFOLLOW_LINKS).equals(owner)){
+				throw new IOException(dir + " exists and is not a directory only this user can access; remove it or pass -dir");
+			}//end if
+		}else{
+			Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(owner));
+		}//end if
+	}
+
+	public void stop(){
+		try{
+			this._server.close();
+			Files.deleteIfExists(this._path);
+			Files.deleteIfExists(this._dir);
+		}catch (IOException e){
+			// ignored.
+		}//end try
+		this._sessions.shutdownNow();
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + MenuDaemon.class.getName()
+				+ " <dbname> <port> <user> [-dir path] [-sessions N]");
+			System.exit(2);
+		}//end if
+
+		String dir = Paths.get(System.getProperty("java.io.tmpdir"), "dbproject-" + args[2]).toString();
+		int sessions = 16;
+		for (int i = 3; i < args.length; ++i){
+			switch (args[i]){
+				case "-dir": dir = args[++i]; break;
+				case "-sessions": sessions = Integer.parseInt(args[++i]); break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}//end for
+
+		//a long running process amortizes loading the index
+		if (System.getProperty("dbproject.availability.index") == null){
+			System.setProperty("dbproject.availability.index", "true");
+		}//end if
+
+		try{
+			Class.forName("org.postgresql.Driver");
+			long connectStart = System.nanoTime();
+			DBproject esql = new DBproject(args[0], args[1], args[2], "");
+			MenuDaemon daemon = new MenuDaemon(esql, Paths.get(dir), sessions);
+			int warmed = daemon.warm(Integer.getInteger("dbproject.pool.min", 1));
+			System.out.println(DBproject.startupReport(connectStart) + ", " + warmed + " connection(s) warmed");
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				daemon.stop();
+				System.out.println(esql.getPool().getStats());
+				esql.cleanup();
+			}));
+			MenuSession.install();
+			System.out.println("Listening on " + daemon._path);
+			daemon.serve();
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}//end try
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The console of one menu session attached to MenuDaemon. While a session is
+ * attached to a thread, the menu that thread runs reads its input from the
+ * session (through DBproject.in()) and everything it prints through
+ * System.out, System.err or a ResultWriter goes to the session instead of
+ * the daemon's own console. Threads without a session are not affected.
+ *
+ */
+
+public class MenuSession{
+	private static final ThreadLocal<MenuSession> CURRENT = new ThreadLocal<MenuSession>();
+	//the daemon's own standard out and error, saved by install()
+	private static PrintStream _console = System.out;
+	private static PrintStream _consoleErr = System.err;
+	private static boolean _installed = false;
+
+	private final BufferedReader _in;
+	private final OutputStream _out;
+	private final Writer _writer;
+
+	public MenuSession(InputStream in, OutputStream out){
+		this._in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		this._out = new BufferedOutputStream(out, 16 * 1024);
+		this._writer = new OutputStreamWriter(this._out, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Routes System.out and System.err to the session of the printing
+	 * thread. Called once by the daemon before the first session.
+	 */
+	public static synchronized void install(){
+		if (_installed) return;
+		_installed = true;
+		_console = System.out;
+		_consoleErr = System.err;
+		System.setOut(new PrintStream(new Routed(_console), true));
+		System.setErr(new PrintStream(new Routed(_consoleErr), true));
+	}
+
+	/**
+	 * @return the daemon's own standard out, for its log lines
+	 */
+	public static PrintStream console(){
+		return _console;
+	}
+
+	/**
+	 * @return the session attached to the calling thread, or null
+	 */
+	public static MenuSession current(){
+		return CURRENT.get();
+	}
+
+	public void attach(){
+		CURRENT.set(this);
+	}
+
+	/**
+	 * Flushes what is left for the client and detaches the session from the
+	 * calling thread.
+	 */
+	public void detach(){
+		try{
+			flush();
+		}finally{
+			CURRENT.remove();
+		}//end try
+	}
+
+	/**
+	 * @return the client's input; the pending output, normally a prompt, is
+	 *         flushed first so the client sees it before it answers
+	 */
+	public BufferedReader input(){
+		flush();
+		return this._in;
+	}
+
+	/**
+	 * @return the client's output for ResultWriter, shares the buffer of System.out
+	 */
+	public Writer writer(){
+		return this._writer;
+	}
+
+	public void flush(){
+		try{
+			this._writer.flush();
+		}catch (IOException e){
+			// the client is gone, the next read ends the session
+		}//end try
+	}
+
+	/**
+	 * Standard out or error that writes to the session of the calling thread
+	 * and falls back to the daemon's console.
+	 */
+	private static class Routed extends OutputStream{
+		private final OutputStream _fallback;
+
+		Routed(OutputStream fallback){
+			this._fallback = fallback;
+		}
+
+		private OutputStream target(){
+			MenuSession session = CURRENT.get();
+			return session == null ? this._fallback : session._out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target().flush();
+		}
+	}
+}
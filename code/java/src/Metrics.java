@@ -0,0 +1,322 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class records how often each service operation and each SQL statement
+ * shape runs, how long it takes, how many rows it touches and how often it
+ * fails. Latencies go into log-linear histograms (16 buckets per power of
+ * two, about 6% precision) of atomic counters, so recording is a few
+ * uncontended increments and never allocates.
+ *
+ * Every operation and statement shape is registered as an MXBean under
+ * dbproject:type=Operation or dbproject:type=Statement. The statistics can
+ * also be dumped as text periodically, and statements slower than a
+ * threshold are logged with their parameter count. The values are left out:
+ * they are patient names, ages and addresses.
+ *
+ */
+
+public class Metrics{
+	/**
+	 * The JMX view of one operation or statement shape.
+	 */
+	public interface StatMXBean{
+		String getName();
+		long getCount();
+		long getErrors();
+		long getRows();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP99Millis();
+		double getMaxMillis();
+	}
+
+	/**
+	 * Log-linear histogram of non-negative values: values below 16 have a
+	 * bucket each, above that every power of two is split into 16 buckets.
+	 */
+	static final class Histogram{
+		private static final int SUB_BITS = 4;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private final AtomicLongArray _counts = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+
+		static int bucket(long v){
+			if (v < SUB_COUNT) return (int) Math.max(0, v);
+			int exponent = 63 - Long.numberOfLeadingZeros(v);
+			int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+			return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+		}
+
+		//largest value that falls into the bucket
+		static long upperBound(int bucket){
+			if (bucket < SUB_COUNT) return bucket;
+			int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+			long sub = bucket % SUB_COUNT;
+			return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+		}
+
+		void record(long v){
+			this._counts.incrementAndGet(bucket(v));
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return an upper bound of the value at the quantile, 0 if empty
+		 */
+		long valueAt(double quantile){
+			long total = 0;
+			int n = this._counts.length();
+			for (int i = 0; i < n; ++i) total += this._counts.get(i);
+			if (total == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for (int i = 0; i < n; ++i){
+				seen += this._counts.get(i);
+				if (seen >= rank) return upperBound(i);
+			}//end for
+			return upperBound(n - 1);
+		}
+	}
+
+	/**
+	 * Counters and latency histogram of one operation or statement shape.
+	 */
+	public static final class Stat implements StatMXBean{
+		private final String _name;
+		private final LongAdder _count = new LongAdder();
+		private final LongAdder _errors = new LongAdder();
+		private final LongAdder _rows = new LongAdder();
+		private final LongAdder _totalNanos = new LongAdder();
+		private final AtomicLong _maxNanos = new AtomicLong();
+		private final Histogram _latency = new Histogram();
+
+		Stat(String name){
+			this._name = name;
+		}
+
+		/**
+		 * Records one call.
+		 *
+		 * @param nanos how long it took
+		 * @param rows rows returned or written, 0 if unknown
+		 * @param ok false if it failed
+		 */
+		public void record(long nanos, long rows, boolean ok){
+			this._count.increment();
+			if (!ok) this._errors.increment();
+			if (rows > 0) this._rows.add(rows);
+			this._totalNanos.add(nanos);
+			this._latency.record(nanos);
+			long max;
+			while (nanos > (max = this._maxNanos.get()) && !this._maxNanos.compareAndSet(max, nanos)){
+				//retry
+			}//end while
+		}
+
+		@Override public String getName(){ return this._name; }
+		@Override public long getCount(){ return this._count.sum(); }
+		@Override public long getErrors(){ return this._errors.sum(); }
+		@Override public long getRows(){ return this._rows.sum(); }
+		//bucket bounds can exceed the largest recorded value
+		@Override public double getP50Millis(){ return Math.min(this._latency.valueAt(0.50), this._maxNanos.get()) / 1e6; }
+		@Override public double getP99Millis(){ return Math.min(this._latency.valueAt(0.99), this._maxNanos.get()) / 1e6; }
+		@Override public double getMaxMillis(){ return this._maxNanos.get() / 1e6; }
+
+		@Override
+		public double getMeanMillis(){
+			long count = this._count.sum();
+			return count == 0 ? 0.0 : this._totalNanos.sum() / 1e6 / count;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%10d calls %6d errors %12d rows  mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms  %s",
+				getCount(), getErrors(), getRows(), getMeanMillis(), getP50Millis(), getP99Millis(), getMaxMillis(), this._name);
+		}
+	}
+
+	//distinct SQL strings whose shape is remembered; beyond this shapes are recomputed
+	private static final int MAX_SHAPES = 1024;
+
+	private final ConcurrentHashMap<String, Stat> _operations = new ConcurrentHashMap<String, Stat>();
+	private final ConcurrentHashMap<String, Stat> _statements = new ConcurrentHashMap<String, Stat>();
+	private final ConcurrentHashMap<String, String> _shapes = new ConcurrentHashMap<String, String>();
+	private final boolean _jmx;
+	private final List<ObjectName> _registered = new ArrayList<ObjectName>();
+	private final long _slowNanos;
+	private final PrintWriter _log;
+	private final ScheduledExecutorService _dumper;
+
+	/**
+	 * @param jmx register the statistics as MXBeans
+	 * @param slowMillis log statements slower than this, 0 for no slow query log
+	 * @param dumpSeconds dump the statistics this often, 0 for never
+	 * @param logFile where the slow query log and dumps go, null for standard error
+	 */
+	public Metrics(boolean jmx, long slowMillis, long dumpSeconds, String logFile) throws IOException {
+		this._jmx = jmx;
+		this._slowNanos = slowMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowMillis) : Long.MAX_VALUE;
+		this._log = logFile == null
+			? new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), true)
+			: new PrintWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8), true);
+		if (dumpSeconds > 0){
+			this._dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "metrics-dump");
+				t.setDaemon(true);
+				return t;
+			});
+			this._dumper.scheduleAtFixedRate(() -> this._log.print(dump()), dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+		}else{
+			this._dumper = null;
+		}//end if
+	}
+
+	/**
+	 * @return the statistics of a service operation, e.g. makeAppointment
+	 */
+	public Stat operation(String name){
+		Stat s = this._operations.get(name);
+		return s != null ? s : register(this._operations, "Operation", name);
+	}
+
+	/**
+	 * @return the statistics of the shape of a statement: its text with
+	 *         literals replaced by ? and whitespace collapsed
+	 */
+	public Stat statement(String sql){
+		String shape = this._shapes.get(sql);
+		if (shape == null){
+			shape = shapeOf(sql);
+			if (this._shapes.size() < MAX_SHAPES) this._shapes.put(sql, shape);
+		}//end if
+		Stat s = this._statements.get(shape);
+		return s != null ? s : register(this._statements, "Statement", shape);
+	}
+
+	/**
+	 * Records one statement execution and logs it if it was slow.
+	 *
+	 * @param startNanos System.nanoTime() before the statement ran
+	 * @param params the bound parameters; the slow query log only counts them
+	 */
+	public void recordStatement(String sql, long startNanos, long rows, boolean ok, Object... params){
+		long nanos = System.nanoTime() - startNanos;
+		statement(sql).record(nanos, rows, ok);
+		if (nanos >= this._slowNanos){
+			this._log.println(String.format("slow query: %.3fms rows=%d%s %s params=%d", nanos / 1e6, rows, ok ? "" : " FAILED",
+				shapeOf(sql), params == null ? 0 : params.length));
+		}//end if
+	}
+
+	private Stat register(ConcurrentHashMap<String, Stat> stats, String type, String name){
+		Stat created = new Stat(name);
+		Stat s = stats.putIfAbsent(name, created);
+		if (s != null) return s;
+		if (this._jmx){
+			try{
+				ObjectName on = new ObjectName("dbproject:type=" + type + ",name=" + ObjectName.quote(name));
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if (!server.isRegistered(on)){
+					server.registerMBean(created, on);
+					synchronized (this._registered){
+						this._registered.add(on);
+					}
+				}//end if
+			}catch (Exception e){
+				//statistics are still recorded and dumped
+			}//end try
+		}//end if
+		return created;
+	}
+
+	/**
+	 * @return the statistics of every operation and statement shape, one per line
+	 */
+	public String dump(){
+		StringBuilder b = new StringBuilder();
+		b.append("-- operations\n");
+		for (Stat s : new TreeMap<String, Stat>(this._operations).values()) b.append(s).append('\n');
+		b.append("-- statements\n");
+		for (Stat s : new TreeMap<String, Stat>(this._statements).values()) b.append(s).append('\n');
+		return b.toString();
+	}
+
+	public Map<String, Stat> getOperations(){
+		return new TreeMap<String, Stat>(this._operations);
+	}
+
+	public Map<String, Stat> getStatements(){
+		return new TreeMap<String, Stat>(this._statements);
+	}
+
+	/**
+	 * Stops the periodic dump, after a final one, and unregisters the MXBeans.
+	 */
+	public void close(){
+		if (this._dumper != null){
+			this._dumper.shutdownNow();
+			this._log.print(dump());
+		}//end if
+		synchronized (this._registered){
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (ObjectName on : this._registered){
+				try{
+					server.unregisterMBean(on);
+				}catch (Exception e){
+					//already gone
+				}//end try
+			}//end for
+			this._registered.clear();
+		}
+		this._log.flush();
+	}
+
+	/**
+	 * @return the SQL with string and numeric literals replaced by ?,
+	 *         whitespace collapsed and any trailing semicolon removed
+	 */
+	static String shapeOf(String sql){
+		StringBuilder b = new StringBuilder(sql.length());
+		int n = sql.length();
+		for (int i = 0; i < n; ++i){
+			char c = sql.charAt(i);
+			if (c == '\''){
+				//skip the literal, '' is an escaped quote
+				++i;
+				while (i < n && (sql.charAt(i) != '\'' || (i + 1 < n && sql.charAt(i + 1) == '\''))){
+					if (sql.charAt(i) == '\'') ++i;
+					++i;
+				}//end while
+				b.append('?');
+			}else if (Character.isDigit(c) && (b.length() == 0 || !Character.isLetterOrDigit(b.charAt(b.length() - 1)) && b.charAt(b.length() - 1) != '_')){
+				while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) ++i;
+				b.append('?');
+			}else if (Character.isWhitespace(c)){
+				if (b.length() > 0 && b.charAt(b.length() - 1) != ' ') b.append(' ');
+			}else{
+				b.append(c);
+			}//end if
+		}//end for
+		int end = b.length();
+		while (end > 0 && (b.charAt(end - 1) == ' ' || b.charAt(end - 1) == ';')) --end;
+		b.setLength(end);
+		return b.toString();
+	}
+}
@@ -0,0 +1,152 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class maintains the monthly partitions of a partitioned Appointment
+ * table (see sql/partition.sql): it creates the partitions of the coming
+ * months before appointments are added to them, and archives the
+ * past-appointment partitions of months older than the retention period.
+ * It runs once, or every few minutes with -every.
+ *
+ * Usage: java PartitionManager <dbname> <port> <user> [-ahead months]
+ *        [-retain months] [-every minutes]
+ *
+ */
+
+public class PartitionManager{
+	static final String IS_PARTITIONED_SQL =
+		"SELECT 1 FROM pg_partitioned_table pt INNER JOIN pg_class c ON c.oid = pt.partrelid "
+		+ "WHERE c.relname = 'appointment' AND c.relnamespace = (SELECT n.oid FROM pg_namespace n WHERE n.nspname = current_schema())";
+	static final String CREATE_AHEAD_SQL =
+		"SELECT create_appointment_partitions(current_date, (date_trunc('month', current_date) + make_interval(months => ? + 1))::date)";
+	static final String ARCHIVE_SQL =
+		"SELECT archive_appointment_partitions((date_trunc('month', current_date) - make_interval(months => ?))::date)";
+
+	private final DBproject _db;
+	//months after the current one to have partitions for
+	private final int _aheadMonths;
+	//months before the current one whose past appointments stay in Appointment, -1 to never archive
+	private final int _retainMonths;
+
+	public PartitionManager(DBproject db, int aheadMonths, int retainMonths){
+		this._db = db;
+		this._aheadMonths = aheadMonths;
+		this._retainMonths = retainMonths;
+	}
+
+	/**
+	 * @return whether Appointment has been converted by partition.sql
+	 */
+	public boolean isPartitioned() throws SQLException {
+		return this._db.executeQuery(IS_PARTITIONED_SQL) > 0;
+	}
+
+	/**
+	 * Creates the missing partitions up to the end of the month aheadMonths
+	 * from now.
+	 *
+	 * @return the number of months created
+	 */
+	public int createAhead() throws SQLException {
+		return this._db.executeQueryAndMap(CREATE_AHEAD_SQL, rs -> rs.getInt(1), this._aheadMonths).get(0);
+	}
+
+	/**
+	 * Archives the past-appointment partitions of the months that ended more
+	 * than retainMonths months ago.
+	 *
+	 * @return the names of the archived partitions
+	 */
+	public List<String> archive() throws SQLException {
+		List<String> archived = new ArrayList<String>();
+		if (this._retainMonths < 0) return archived;
+		PooledConnection conn = this._db.getConnection();
+		try{
+			//one transaction, so the counter adjustments and detaches commit together
+			conn.getConnection().setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement(ARCHIVE_SQL);
+			stmt.setInt(1, this._retainMonths);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				archived.add(rs.getString(1));
+			}//end while
+			rs.close();
+			conn.getConnection().commit();
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+		return archived;
+	}
+
+	/**
+	 * Runs both maintenance steps and reports what they did.
+	 */
+	public void runOnce() throws SQLException {
+		long start = System.nanoTime();
+		int created = createAhead();
+		List<String> archived = archive();
+		System.out.println(String.format("created %d month partition%s, archived %d: %s (%.2fs)",
+			created, created == 1 ? "" : "s", archived.size(), archived, (System.nanoTime() - start) / 1e9));
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + PartitionManager.class.getName()
+				+ " <dbname> <port> <user> [-ahead months] [-retain months] [-every minutes]");
+			System.exit(2);
+		}//end if
+
+		int ahead = 12;
+		int retain = -1;
+		int everyMinutes = 0;
+		for (int i = 3; i < args.length; ++i){
+			switch (args[i]){
+				case "-ahead": ahead = Integer.parseInt(args[++i]); break;
+				case "-retain": retain = Integer.parseInt(args[++i]); break;
+				case "-every": everyMinutes = Integer.parseInt(args[++i]); break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}//end for
+
+		DBproject esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "");
+			PartitionManager manager = new PartitionManager(esql, ahead, retain);
+			if (!manager.isPartitioned()){
+				throw new SQLException("Appointment is not partitioned; run sql/partition.sql first");
+			}//end if
+			manager.runOnce();
+
+			if (everyMinutes > 0){
+				ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+				CountDownLatch failed = new CountDownLatch(1);
+				scheduler.scheduleWithFixedDelay(() -> {
+					try{
+						manager.runOnce();
+					}catch (SQLException e){
+						System.err.println(e.getMessage());
+						failed.countDown();
+					}//end try
+				}, everyMinutes, everyMinutes, TimeUnit.MINUTES);
+				failed.await();
+				scheduler.shutdownNow();
+				throw new SQLException("Stopped after a failed run");
+			}//end if
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (esql != null) esql.cleanup();
+		}//end try
+	}
+}
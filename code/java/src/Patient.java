@@ -0,0 +1,34 @@
+/**
+ * A row of the Patient table.
+ *
+ */
+
+public class Patient{
+	//reads patient_ID, name, gtype, age, address, number_of_appts as the first six columns
+	public static final RowMapper<Patient> MAPPER = rs -> new Patient(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4),
+		rs.getString(5), rs.getInt(6));
+
+	//patient_ID, or -1 if not assigned yet
+	public final int id;
+	public final String name;
+	//gtype, F or M
+	public final String gender;
+	public final int age;
+	public final String address;
+	public final int numberOfAppointments;
+
+	public Patient(int id, String name, String gender, int age, String address, int numberOfAppointments){
+		this.id = id;
+		this.name = name;
+		this.gender = gender;
+		this.age = age;
+		this.address = address;
+		this.numberOfAppointments = numberOfAppointments;
+	}
+
+	@Override
+	public String toString(){
+		return "patient_ID: " + this.id + ", name: " + this.name + ", gtype: " + this.gender + ", age: " + this.age
+			+ ", address: " + this.address + ", number_of_appts: " + this.numberOfAppointments;
+	}
+}
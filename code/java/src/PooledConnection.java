@@ -0,0 +1,107 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A physical database connection handed out by a ConnectionPool. Besides the
+ * JDBC connection itself it keeps the timestamps the pool needs for idle
+ * eviction and utilisation accounting, and the cache of statements prepared
+ * on it.
+ *
+ */
+
+public class PooledConnection{
+	//reference to physical database connection
+	private final Connection _connection;
+	//statements prepared on this connection, reused across borrows
+	private final StatementCache _statements;
+	//last time (System.currentTimeMillis) the connection was borrowed or returned
+	private volatile long _lastUsed;
+	//System.nanoTime of the current borrow, used for busy-time accounting
+	private long _borrowedAt;
+	//whether a borrower holds the connection, so a second release can be told apart
+	private final AtomicBoolean _borrowed = new AtomicBoolean(false);
+
+	PooledConnection(Connection connection, int statementCacheSize){
+		this._connection = connection;
+		this._statements = new StatementCache(connection, statementCacheSize);
+		this._lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the underlying JDBC connection. Callers must not close it;
+	 * hand the PooledConnection back to the pool instead.
+	 *
+	 * @return the physical connection
+	 */
+	public Connection getConnection(){
+		return this._connection;
+	}
+
+	/**
+	 * Returns a prepared statement for the SQL text from this connection's
+	 * statement cache. The statement stays open for reuse, so callers must
+	 * not close it; they should close the ResultSets they obtain from it.
+	 *
+	 * @param sql the SQL text
+	 * @return the cached prepared statement
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		return this._statements.prepare(sql);
+	}
+
+	public StatementCache getStatementCache(){
+		return this._statements;
+	}
+
+	long getLastUsed(){
+		return this._lastUsed;
+	}
+
+	void markBorrowed(){
+		this._borrowed.set(true);
+		this._lastUsed = System.currentTimeMillis();
+		this._borrowedAt = System.nanoTime();
+	}
+
+	/**
+	 * Marks the connection as returned.
+	 *
+	 * @return nanoseconds the connection was held by the borrower, -1 if it
+	 *         was not borrowed (already returned)
+	 */
+	long markReturned(){
+		if (!this._borrowed.compareAndSet(true, false)) return -1L;
+		this._lastUsed = System.currentTimeMillis();
+		return System.nanoTime() - this._borrowedAt;
+	}
+
+	/**
+	 * Checks the connection with a round trip to the server.
+	 *
+	 * @param timeoutSeconds seconds to wait for the server to answer
+	 * @return true if the connection is still usable
+	 */
+	boolean isValid(int timeoutSeconds){
+		try{
+			return !this._connection.isClosed() && this._connection.isValid(timeoutSeconds);
+		}catch (SQLException e){
+			return false;
+		}//end try
+	}
+
+	/**
+	 * Method to close the cached statements and the physical connection,
+	 * ignoring errors.
+	 */
+	void close(){
+		this._statements.close();
+		try{
+			this._connection.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+}
@@ -0,0 +1,194 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs EXPLAIN ANALYZE on every query DBproject issues, using
+ * parameter values taken from the loaded data, and fails if any of them
+ * reads a large table with a sequential scan. Tables with fewer than minRows
+ * rows (by the planner's estimate) are ignored, since scanning them is
+ * cheaper than an index lookup; load a scaled dataset before running it.
+ * Statements that write are explained in a transaction that is rolled back.
+ *
+ * Usage: java QueryPlanCheck <dbname> <port> <user> [minRows]
+ *
+ */
+
+public class QueryPlanCheck{
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+
+	//the statements make_appointment() and cancel_appointment() run, see create.sql
+	static final String PATIENT_IDENTITY_SQL =
+		"SELECT p.patient_ID FROM Patient p WHERE p.name = ? AND p.gtype = ? AND p.age = ? AND p.address = ? LIMIT 1";
+	static final String APPOINTMENT_OF_DOCTOR_SQL =
+		"SELECT 1 FROM has_appointment ha WHERE ha.appt_id = ? AND ha.doctor_id = ?";
+	static final String APPOINTMENT_VERSION_SQL =
+		"SELECT a.status, a.version, a.patient_ID FROM Appointment a WHERE a.appnt_ID = ?";
+	static final String VERSION_UPDATE_SQL =
+		"UPDATE Appointment SET version = version + 1 WHERE appnt_ID = ? AND adate = ? AND status = ? AND version = ?";
+	static final String WAITLIST_MEMBER_SQL =
+		"SELECT 1 FROM waitlist w WHERE w.appnt_ID = ? AND w.patient_ID = ?";
+	static final String WAITLIST_INSERT_SQL =
+		"INSERT INTO waitlist (appnt_ID, patient_ID) SELECT a.appnt_ID, ? FROM Appointment a WHERE a.appnt_ID = ? AND a.adate = ? AND a.status = ? AND a.version = ? "
+		+ "FOR SHARE OF a ON CONFLICT (appnt_ID, patient_ID) DO NOTHING";
+	static final String WAITLIST_PROMOTE_SQL =
+		"DELETE FROM waitlist w WHERE w.appnt_ID = ? AND w.ticket = (SELECT MIN(x.ticket) FROM waitlist x WHERE x.appnt_ID = ?) "
+		+ "RETURNING w.patient_ID";
+
+	/**
+	 * One query to check and the parameter values to run it with.
+	 */
+	private static final class Check{
+		final String name;
+		final String sql;
+		final Object[] params;
+		//true for queries that read every row by design
+		final boolean fullScan;
+
+		Check(String name, String sql, boolean fullScan, Object... params){
+			this.name = name;
+			this.sql = sql;
+			this.fullScan = fullScan;
+			this.params = params;
+		}
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + QueryPlanCheck.class.getName()
+				+ " <dbname> <port> <user> [minRows]");
+			System.exit(2);
+		}//end if
+
+		long minRows = args.length > 3 ? Long.parseLong(args[3]) : 10000L;
+		DBproject esql = null;
+		int failures = 0;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "");
+			failures = run(esql, minRows);
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			failures = -1;
+		}finally{
+			if (esql != null) esql.cleanup();
+		}//end try
+
+		if (failures != 0){
+			System.out.println(failures < 0 ? "FAILED" : "FAILED: " + failures + " quer" + (failures == 1 ? "y" : "ies") + " fell back to a sequential scan");
+			System.exit(1);
+		}//end if
+		System.out.println("OK");
+	}
+
+	/**
+	 * Explains every check and prints its plan.
+	 *
+	 * @return the number of queries that sequentially scan a large table
+	 */
+	static int run(DBproject esql, long minRows) throws SQLException {
+		esql.executeUpdate("ANALYZE");
+		Map<String, Long> rowCounts = new HashMap<String, Long>();
+		for (List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT c.relname, c.reltuples::bigint FROM pg_class c WHERE c.relkind IN ('r', 'p')")){
+			rowCounts.put(row.get(0), Long.parseLong(row.get(1)));
+		}//end for
+
+		int failures = 0;
+		for (Check check : checks(esql)){
+			List<String> plan = explain(esql, check);
+			List<String> scanned = new ArrayList<String>();
+			for (String line : plan){
+				Matcher m = SEQ_SCAN.matcher(line);
+				while (m.find()){
+					Long rows = rowCounts.get(m.group(1));
+					if (rows != null && rows >= minRows) scanned.add(m.group(1));
+				}//end while
+			}//end for
+
+			boolean failed = !scanned.isEmpty() && !check.fullScan;
+			String verdict = scanned.isEmpty() ? "ok" : (check.fullScan ? "full scan (expected)" : "SEQ SCAN on " + scanned);
+			System.out.println("== " + check.name + ": " + verdict);
+			if (failed){
+				++failures;
+				for (String line : plan) System.out.println("   " + line);
+			}//end if
+		}//end for
+		return failures;
+	}
+
+	private static List<Check> checks(DBproject esql) throws SQLException {
+		List<List<String>> doctor = esql.executeQueryAndReturnResult(
+			"SELECT ha.doctor_id, ha.appt_id, a.adate, a.version, a.status FROM has_appointment ha INNER JOIN Appointment a ON a.appnt_ID = ha.appt_id LIMIT 1");
+		List<List<String>> department = esql.executeQueryAndReturnResult(
+			"SELECT de.name, a.adate FROM Appointment a INNER JOIN has_appointment ha ON a.appnt_id = ha.appt_id INNER JOIN Doctor d ON ha.doctor_id = d.doctor_ID INNER JOIN Department de ON d.did = de.dept_ID WHERE a.status = 'AV' LIMIT 1");
+		List<List<String>> patient = esql.executeQueryAndReturnResult(
+			"SELECT p.name, p.gtype, p.age, p.address, p.patient_ID FROM Patient p LIMIT 1");
+		if (doctor.isEmpty() || department.isEmpty() || patient.isEmpty()){
+			throw new SQLException("No data to check against; load the data/*.csv files first");
+		}//end if
+
+		int doctorId = Integer.parseInt(doctor.get(0).get(0));
+		int appointmentId = Integer.parseInt(doctor.get(0).get(1));
+		java.sql.Date day = java.sql.Date.valueOf(doctor.get(0).get(2));
+		int version = Integer.parseInt(doctor.get(0).get(3));
+		String status = doctor.get(0).get(4);
+		int patientId = Integer.parseInt(patient.get(0).get(4));
+		java.sql.Date monthLater = new java.sql.Date(day.getTime() + 30L * 24 * 60 * 60 * 1000);
+
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("4 doctor lookup", ReferenceCache.DOCTOR_DEPARTMENT_SQL, false, doctorId));
+		checks.add(new Check("4 patient lookup", PATIENT_IDENTITY_SQL, false,
+			patient.get(0).get(0), patient.get(0).get(1), Integer.parseInt(patient.get(0).get(2)), patient.get(0).get(3)));
+		checks.add(new Check("4 appointment of doctor", APPOINTMENT_OF_DOCTOR_SQL, false, appointmentId, doctorId));
+		checks.add(new Check("4 appointment version", APPOINTMENT_VERSION_SQL, false, appointmentId));
+		checks.add(new Check("4 version-conditional update", VERSION_UPDATE_SQL, false, appointmentId, day, status, version));
+		checks.add(new Check("4 waitlist membership", WAITLIST_MEMBER_SQL, false, appointmentId, patientId));
+		checks.add(new Check("4 waitlist insert", WAITLIST_INSERT_SQL, false, patientId, appointmentId, day, status, version));
+		checks.add(new Check("0 waitlist promotion", WAITLIST_PROMOTE_SQL, false, appointmentId, appointmentId));
+		checks.add(new Check("5 appointments of doctor", DBproject.APPOINTMENTS_OF_DOCTOR_SQL, false, day, monthLater, doctorId));
+		checks.add(new Check("6 doctors of department", ReferenceCache.DOCTORS_OF_DEPARTMENT_SQL, false, department.get(0).get(0)));
+		checks.add(new Check("6 available appointments of department", DBproject.AVAILABLE_APPOINTMENTS_OF_DOCTORS_SQL, false,
+			java.sql.Date.valueOf(department.get(0).get(1)), HospitalService.toArrayLiteral(esql.getReferenceCache().doctorsOfDepartment(department.get(0).get(0)))));
+		checks.add(new Check("5 appointments of doctor, one page", DBproject.APPOINTMENTS_OF_DOCTOR_PAGE_SQL, false,
+			day, monthLater, doctorId, day, "", Integer.MIN_VALUE, 51));
+		checks.add(new Check("6 available appointments of department, one page", DBproject.AVAILABLE_APPOINTMENTS_OF_DOCTORS_PAGE_SQL, false,
+			java.sql.Date.valueOf(department.get(0).get(1)), HospitalService.toArrayLiteral(esql.getReferenceCache().doctorsOfDepartment(department.get(0).get(0))),
+			java.sql.Date.valueOf(department.get(0).get(1)), "", Integer.MIN_VALUE, 51));
+		checks.add(new Check("6 availability index refresh", AvailabilityIndex.REFRESH_SQL, false,
+			HospitalService.toArrayLiteral(new int[]{ appointmentId })));
+		checks.add(new Check("7 status types per doctor", DBproject.STATUS_TYPES_PER_DOCTOR_SQL, true));
+		checks.add(new Check("8 patients per doctor with status", DBproject.PATIENTS_PER_DOCTOR_WITH_STATUS_SQL, false, "AV"));
+		checks.add(new Check("staff roster of a week", StaffScheduler.ROSTER_SQL, false,
+			day, new java.sql.Date(day.getTime() + 7L * 24 * 60 * 60 * 1000)));
+		checks.add(new Check("staff capacities", StaffScheduler.CAPACITY_SQL, true));
+		return checks;
+	}
+
+	private static List<String> explain(DBproject esql, Check check) throws SQLException {
+		List<String> plan = new ArrayList<String>();
+		PooledConnection conn = esql.getConnection();
+		try{
+			//EXPLAIN ANALYZE runs the statement; releasing the connection rolls back what it wrote
+			conn.getConnection().setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement("EXPLAIN ANALYZE " + check.sql);
+			for (int i = 0; i < check.params.length; ++i){
+				stmt.setObject(i + 1, check.params[i]);
+			}//end for
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				plan.add(rs.getString(1));
+			}//end while
+			rs.close();
+		}finally{
+			esql.releaseConnection(conn);
+		}//end try
+		return plan;
+	}
+}
@@ -0,0 +1,378 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the rarely changing reference data the menu operations
+ * look up on every call: the department of each doctor, the doctors of each
+ * department name and the hospital names. Lookups read through to the
+ * database on a miss and cache the answer, including "does not exist", so
+ * repeated existence checks and name resolutions cost no round trip.
+ *
+ * Entries expire after the TTL, and each map holds at most maxEntries
+ * entries. The create.sql triggers NOTIFY the reference_changed channel when
+ * Doctor, Department or Hospital change; through the ChangeFeed the cache
+ * drops the affected maps, so changes made by other clients are seen within
+ * a poll interval. Changes made through this client are applied
+ * directly (doctorAdded).
+ *
+ */
+
+public class ReferenceCache{
+	//channel the create.sql triggers notify, with the changed table and operation as payload, e.g. "doctor:INSERT"
+	static final String CHANNEL = "reference_changed";
+
+	static final String DOCTOR_DEPARTMENT_SQL = "SELECT d.did FROM Doctor d WHERE d.doctor_ID = ?";
+	static final String DOCTORS_OF_DEPARTMENT_SQL =
+		"SELECT d.doctor_ID FROM Doctor d INNER JOIN Department de ON d.did = de.dept_ID WHERE de.name = ? ORDER BY d.doctor_ID";
+	static final String HOSPITAL_NAME_SQL = "SELECT h.name FROM Hospital h WHERE h.hospital_ID = ?";
+
+	/**
+	 * Open addressing hash map from int keys to values, with the time each
+	 * entry was stored. Not thread safe; guarded by the owning cache.
+	 */
+	static final class IntMap<V>{
+		private final int _initialCapacity;
+		private int[] _keys;
+		private Object[] _values;
+		//System.currentTimeMillis() when the entry was stored, 0 for a free slot
+		private long[] _stored;
+		private int _size;
+
+		IntMap(int initialCapacity){
+			this._initialCapacity = Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1;
+			allocate(this._initialCapacity);
+		}
+
+		private void allocate(int capacity){
+			this._keys = new int[capacity];
+			this._values = new Object[capacity];
+			this._stored = new long[capacity];
+			this._size = 0;
+		}
+
+		private int slot(int key){
+			int mask = this._keys.length - 1;
+			int h = key * 0x9E3779B9;
+			int i = (h ^ (h >>> 16)) & mask;
+			while (this._stored[i] != 0 && this._keys[i] != key){
+				i = (i + 1) & mask;
+			}//end while
+			return i;
+		}
+
+		/**
+		 * @return the value, or null if there is none or it is older than ttlMillis
+		 */
+		@SuppressWarnings("unchecked")
+		V get(int key, long now, long ttlMillis){
+			int i = slot(key);
+			if (this._stored[i] == 0 || now - this._stored[i] > ttlMillis) return null;
+			return (V) this._values[i];
+		}
+
+		void put(int key, V value, long now){
+			int i = slot(key);
+			if (this._stored[i] == 0){
+				if ((this._size + 1) * 4 > this._keys.length * 3){
+					grow();
+					i = slot(key);
+				}//end if
+				++this._size;
+			}//end if
+			this._keys[i] = key;
+			this._values[i] = value;
+			this._stored[i] = now;
+		}
+
+		private void grow(){
+			int[] keys = this._keys;
+			Object[] values = this._values;
+			long[] stored = this._stored;
+			allocate(keys.length * 2);
+			for (int i = 0; i < keys.length; ++i){
+				if (stored[i] != 0){
+					int j = slot(keys[i]);
+					this._keys[j] = keys[i];
+					this._values[j] = values[i];
+					this._stored[j] = stored[i];
+					++this._size;
+				}//end if
+			}//end for
+		}
+
+		int size(){
+			return this._size;
+		}
+
+		void clear(){
+			allocate(this._initialCapacity);
+		}
+	}
+
+	/**
+	 * The doctors of one department name and when they were read.
+	 */
+	private static final class DoctorIds{
+		final int[] ids;
+		final long stored;
+
+		DoctorIds(int[] ids, long stored){
+			this.ids = ids;
+			this.stored = stored;
+		}
+	}
+
+	private final DBproject _db;
+	private final long _ttlMillis;
+	private final int _maxEntries;
+
+	//doctor ID -> department ID, or -1 for no such doctor. guarded by this
+	private final IntMap<Integer> _doctorDepartment;
+	//hospital ID -> name, or "" for no such hospital. guarded by this
+	private final IntMap<String> _hospitalName;
+	//department name -> doctor IDs, least recently used first. guarded by this
+	private final Map<String, DoctorIds> _departmentDoctors;
+	//bumped by every invalidation, so loads that raced with one are not stored. guarded by this
+	private long _generation = 0;
+
+	//statistics
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _invalidations = new AtomicLong();
+
+	/**
+	 * @param db the database to read through to
+	 * @param ttlMillis how long an entry is used before it is read again; 0 disables caching
+	 * @param maxEntries upper bound on the entries of each map
+	 * @param feed where to LISTEN for changes made by other clients, null to rely on the TTL
+	 */
+	public ReferenceCache(DBproject db, long ttlMillis, int maxEntries, ChangeFeed feed){
+		this._db = db;
+		this._ttlMillis = ttlMillis;
+		this._maxEntries = Math.max(1, maxEntries);
+		this._doctorDepartment = new IntMap<Integer>(Math.min(this._maxEntries, 1024));
+		this._hospitalName = new IntMap<String>(Math.min(this._maxEntries, 64));
+		this._departmentDoctors = new LinkedHashMap<String, DoctorIds>(64, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DoctorIds> eldest){
+				return size() > ReferenceCache.this._maxEntries;
+			}
+		};
+
+		if (feed != null && ttlMillis > 0){
+			feed.subscribe(CHANNEL, new ChangeFeed.Listener(){
+				@Override
+				public void changed(String payload){
+					invalidate(payload.split(":", 2)[0]);
+				}
+
+				@Override
+				public void reset(){
+					invalidateAll();
+				}
+			});
+		}//end if
+	}
+
+	/**
+	 * @return the department of the doctor, or -1 if there is no such doctor
+	 */
+	public int departmentOfDoctor(int doctorId) throws SQLException {
+		long generation;
+		synchronized (this){
+			Integer did = this._doctorDepartment.get(doctorId, System.currentTimeMillis(), this._ttlMillis);
+			if (did != null){
+				this._hits.incrementAndGet();
+				return did;
+			}//end if
+			generation = this._generation;
+		}
+		this._misses.incrementAndGet();
+
+		int did = -1;
+		PooledConnection conn = this._db.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(DOCTOR_DEPARTMENT_SQL);
+			stmt.setInt(1, doctorId);
+			long start = System.nanoTime();
+			boolean ok = false;
+			try{
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) did = rs.getInt(1);
+				rs.close();
+				ok = true;
+			}finally{
+				this._db.getMetrics().recordStatement(DOCTOR_DEPARTMENT_SQL, start, did < 0 ? 0 : 1, ok, doctorId);
+			}//end try
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+
+		synchronized (this){
+			if (generation == this._generation) putBounded(this._doctorDepartment, doctorId, did);
+		}
+		return did;
+	}
+
+	public boolean doctorExists(int doctorId) throws SQLException {
+		return departmentOfDoctor(doctorId) >= 0;
+	}
+
+	/**
+	 * @return the IDs of the doctors of every department with the name, in
+	 *         ascending order; empty if there are none. Do not modify.
+	 */
+	public int[] doctorsOfDepartment(String name) throws SQLException {
+		long generation;
+		synchronized (this){
+			DoctorIds cached = this._departmentDoctors.get(name);
+			if (cached != null && System.currentTimeMillis() - cached.stored <= this._ttlMillis){
+				this._hits.incrementAndGet();
+				return cached.ids;
+			}//end if
+			generation = this._generation;
+		}
+		this._misses.incrementAndGet();
+
+		int[] ids = new int[16];
+		int n = 0;
+		PooledConnection conn = this._db.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(DOCTORS_OF_DEPARTMENT_SQL);
+			stmt.setString(1, name);
+			long start = System.nanoTime();
+			boolean ok = false;
+			try{
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()){
+					if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+					ids[n++] = rs.getInt(1);
+				}//end while
+				rs.close();
+				ok = true;
+			}finally{
+				this._db.getMetrics().recordStatement(DOCTORS_OF_DEPARTMENT_SQL, start, n, ok, name);
+			}//end try
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+		ids = Arrays.copyOf(ids, n);
+
+		synchronized (this){
+			if (generation == this._generation && this._ttlMillis > 0){
+				this._departmentDoctors.put(name, new DoctorIds(ids, System.currentTimeMillis()));
+			}//end if
+		}
+		return ids;
+	}
+
+	/**
+	 * @return the name of the hospital, or null if there is no such hospital
+	 */
+	public String hospitalName(int hospitalId) throws SQLException {
+		long generation;
+		synchronized (this){
+			String name = this._hospitalName.get(hospitalId, System.currentTimeMillis(), this._ttlMillis);
+			if (name != null){
+				this._hits.incrementAndGet();
+				return name.isEmpty() ? null : name;
+			}//end if
+			generation = this._generation;
+		}
+		this._misses.incrementAndGet();
+
+		String name = null;
+		PooledConnection conn = this._db.getConnection();
+		try{
+			PreparedStatement stmt = conn.prepareStatement(HOSPITAL_NAME_SQL);
+			stmt.setInt(1, hospitalId);
+			long start = System.nanoTime();
+			boolean ok = false;
+			try{
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) name = rs.getString(1);
+				rs.close();
+				ok = true;
+			}finally{
+				this._db.getMetrics().recordStatement(HOSPITAL_NAME_SQL, start, name == null ? 0 : 1, ok, hospitalId);
+			}//end try
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+
+		synchronized (this){
+			if (generation == this._generation) putBounded(this._hospitalName, hospitalId, name == null ? "" : name);
+		}
+		return name;
+	}
+
+	/**
+	 * Records a doctor this client has just inserted. The doctor lists of the
+	 * department names are dropped, since the doctor joins one of them.
+	 */
+	public synchronized void doctorAdded(int doctorId, int departmentId){
+		++this._generation;
+		putBounded(this._doctorDepartment, doctorId, departmentId);
+		this._departmentDoctors.clear();
+	}
+
+	/**
+	 * Drops what was read from a table.
+	 *
+	 * @param table doctor, department or hospital (any case); anything else drops everything
+	 */
+	public synchronized void invalidate(String table){
+		++this._generation;
+		this._invalidations.incrementAndGet();
+		switch (table.toLowerCase()){
+			case "doctor":
+				this._doctorDepartment.clear();
+				this._departmentDoctors.clear();
+				break;
+			case "department":
+				this._departmentDoctors.clear();
+				break;
+			case "hospital":
+				this._hospitalName.clear();
+				break;
+			default:
+				invalidateAll();
+		}
+	}
+
+	public synchronized void invalidateAll(){
+		++this._generation;
+		this._doctorDepartment.clear();
+		this._departmentDoctors.clear();
+		this._hospitalName.clear();
+	}
+
+	private <V> void putBounded(IntMap<V> map, int key, V value){
+		if (this._ttlMillis <= 0) return;
+		//a full map starts over rather than tracking recency per entry
+		if (map.size() >= this._maxEntries) map.clear();
+		map.put(key, value, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return a one-line summary of the cache statistics
+	 */
+	public String getStats(){
+		long hits = this._hits.get();
+		long lookups = hits + this._misses.get();
+		int doctors, departments, hospitals;
+		synchronized (this){
+			doctors = this._doctorDepartment.size();
+			departments = this._departmentDoctors.size();
+			hospitals = this._hospitalName.size();
+		}
+		return String.format("reference cache: doctors=%d departments=%d hospitals=%d hits=%d misses=%d"
+			+ " hitRate=%.1f%% invalidations=%d", doctors, departments, hospitals, hits, this._misses.get(),
+			lookups == 0 ? 0.0 : hits * 100.0 / lookups, this._invalidations.get());
+	}
+}
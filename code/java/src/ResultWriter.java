@@ -0,0 +1,366 @@
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class formats streamed rows into a large reusable buffer and writes
+ * the buffer out in batches, instead of printing every column through the
+ * synchronized, autoflushing System.out. Integer columns are appended
+ * without creating a String. Rows can be written as TEXT (label: value
+ * pairs, the menu's format), TSV with a header line, CSV or a JSON array, and
+ * can be shown a page at a time.
+ *
+ * Use it as the RowHandler of a streamed query and call finish() afterwards.
+ * A streamed query holds a pooled connection, so when paging the rows are
+ * only kept while it runs and finish() shows them page by page; beyond the
+ * buffer size they go to a temporary file only the user can read, so memory
+ * use stays the same however long the listing is. To page through listings
+ * without storing them, fetch one page at a time and pass each to page()
+ * instead, which prompts with no connection held.
+ *
+ */
+
+public class ResultWriter implements RowHandler{
+	public enum Format{ TEXT, TSV, CSV, JSON }
+
+	//flush once the buffer holds this many characters
+	private static final int FLUSH_THRESHOLD = 60 * 1024;
+	//standard out without PrintStream's locking and autoflush
+	private static final Writer STDOUT = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
+
+	private final Writer _out;
+	private final Format _format;
+	private final int _pageSize;
+	private final BufferedReader _pager;
+	private final StringBuilder _buffer = new StringBuilder(FLUSH_THRESHOLD + 4096);
+	private String[] _labels;
+	private boolean[] _integer;
+	private long _rows = 0;
+	private boolean _stopped = false;
+	//offsets (spilled characters included) where the pages of a streamed query end, shown by finish()
+	private final List<Long> _pageEnds = new ArrayList<Long>();
+	//where a paged streamed query's rows go once the buffer is full, null until then
+	private Path _spillFile = null;
+	private Writer _spill = null;
+	//characters written to the spill file
+	private long _spilled = 0;
+
+	/**
+	 * @param out where to write; not closed by finish()
+	 * @param format the output format
+	 * @param pageSize rows per page, or 0 to write everything without pausing
+	 * @param pager where to read the keypress between pages, may be null if pageSize is 0
+	 * @param labels column labels to use instead of the column names, may be empty
+	 */
+	public ResultWriter(Writer out, Format format, int pageSize, BufferedReader pager, String... labels){
+		this._out = out;
+		this._format = format;
+		this._pageSize = pager == null ? 0 : pageSize;
+		this._pager = pager;
+		this._labels = labels.length == 0 ? null : labels;
+	}
+
+	/**
+	 * Creates a writer to standard out, or to the client of the MenuSession
+	 * attached to the calling thread. Anything already printed through
+	 * System.out is flushed first so the output stays in order.
+	 */
+	public static ResultWriter toStdout(Format format, int pageSize, BufferedReader pager, String... labels){
+		System.out.flush();
+		MenuSession session = MenuSession.current();
+		return new ResultWriter(session == null ? STDOUT : session.writer(), format, pageSize, pager, labels);
+	}
+
+	/**
+	 * @return rows per page, 0 if the output is not paged
+	 */
+	public int getPageSize(){
+		return this._pageSize;
+	}
+
+	@Override
+	public void row(ResultSet rs) throws SQLException {
+		if (this._integer == null) start(rs.getMetaData());
+
+		StringBuilder b = this._buffer;
+		int numCol = this._integer.length;
+		if (this._format == Format.JSON) b.append(this._rows == 0 ? "[\n{" : ",\n{");
+		for (int i = 1; i <= numCol; ++i){
+			if (i > 1) b.append(this._format == Format.TSV ? "\t" : (this._format == Format.CSV ? "," : ", "));
+			if (this._format == Format.TEXT) b.append(this._labels[i - 1]).append(": ");
+			if (this._format == Format.JSON) appendJson(b, this._labels[i - 1]).append(':');
+
+			if (this._integer[i - 1]){
+				long v = rs.getLong(i);
+				if (rs.wasNull()) appendNull(b); else b.append(v);
+			}else{
+				String v = rs.getString(i);
+				if (v == null) appendNull(b);
+				else if (this._format == Format.JSON) appendJson(b, v);
+				else if (this._format == Format.CSV) appendCsv(b, v);
+				else b.append(v);
+			}//end if
+		}//end for
+		b.append(this._format == Format.JSON ? "}" : "\n");
+		endRow();
+	}
+
+	/**
+	 * Takes rows that are already in memory, e.g. from the AvailabilityIndex,
+	 * like the rows of a streamed query.
+	 */
+	@Override
+	public boolean rows(List<List<String>> rows, String[] names, int[] types){
+		for (List<String> row : rows){
+			if (this._integer == null) start(types, names);
+			append(row);
+			endRow();
+		}//end for
+		return true;
+	}
+
+	private void endRow(){
+		++this._rows;
+		//never wait for the user here: a streamed query's connection is checked out
+		if (this._pageSize > 0){
+			if (this._rows % this._pageSize == 0) this._pageEnds.add(this._spilled + this._buffer.length());
+			if (this._buffer.length() >= FLUSH_THRESHOLD) spill();
+		}else if (this._buffer.length() >= FLUSH_THRESHOLD){
+			flush();
+		}//end if
+	}
+
+	/**
+	 * Writes one page of rows that were already fetched, e.g. a
+	 * HospitalService.Page, and waits for the keypress if more pages follow.
+	 *
+	 * @param rows the page, one list of column values per row
+	 * @param types the java.sql.Types of the columns; integer columns are written as numbers
+	 * @param more whether another page follows
+	 * @return false if the user stopped the listing, so no further page
+	 *         should be fetched
+	 */
+	public boolean page(List<List<String>> rows, int[] types, boolean more){
+		if (this._stopped) return false;
+		for (List<String> row : rows){
+			if (this._integer == null) start(types, null);
+			append(row);
+			++this._rows;
+		}//end for
+		flush();
+		if (more && this._pageSize > 0) pause();
+		return !this._stopped;
+	}
+
+	private void append(List<String> row){
+		StringBuilder b = this._buffer;
+		if (this._format == Format.JSON) b.append(this._rows == 0 ? "[\n{" : ",\n{");
+		for (int i = 0; i < this._integer.length; ++i){
+			if (i > 0) b.append(this._format == Format.TSV ? "\t" : (this._format == Format.CSV ? "," : ", "));
+			if (this._format == Format.TEXT) b.append(this._labels[i]).append(": ");
+			if (this._format == Format.JSON) appendJson(b, this._labels[i]).append(':');
+
+			String v = i < row.size() ? row.get(i) : null;
+			if (v == null) appendNull(b);
+			else if (this._format == Format.JSON && !this._integer[i]) appendJson(b, v);
+			else if (this._format == Format.CSV) appendCsv(b, v);
+			else b.append(v);
+		}//end for
+		b.append(this._format == Format.JSON ? "}" : "\n");
+	}
+
+	/**
+	 * Writes what is left in the buffer, closing the JSON array if needed,
+	 * a page at a time if paging.
+	 *
+	 * @return the number of rows written
+	 */
+	public long finish(){
+		if (this._format == Format.JSON) this._buffer.append(this._rows == 0 ? "[]\n" : "\n]\n");
+		Reader in = null;
+		try{
+			if (this._spill == null){
+				in = new StringReader(this._buffer.toString());
+			}else{
+				spill();
+				this._spill.close();
+				in = Files.newBufferedReader(this._spillFile, StandardCharsets.UTF_8);
+			}//end if
+			long written = 0;
+			for (int k = 0; k < this._pageEnds.size(); ++k){
+				//no prompt after the last page
+				if (this._stopped || (k + 1L) * this._pageSize >= this._rows) break;
+				long end = this._pageEnds.get(k);
+				copy(in, end - written);
+				written = end;
+				pause();
+			}//end for
+			if (!this._stopped) copy(in, Long.MAX_VALUE);
+		}catch (IOException e){
+			throw new UncheckedIOException(e);
+		}finally{
+			this._buffer.setLength(0);
+			this._pageEnds.clear();
+			closeSpill(in);
+		}//end try
+		return this._rows;
+	}
+
+	private void start(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = rsmd.getColumnCount();
+		int[] types = new int[numCol];
+		String[] names = new String[numCol];
+		for (int i = 1; i <= numCol; ++i){
+			types[i - 1] = rsmd.getColumnType(i);
+			names[i - 1] = rsmd.getColumnLabel(i);
+		}//end for
+		start(types, names);
+	}
+
+	/**
+	 * @param names the column names, or null to number the columns the labels do not cover
+	 */
+	private void start(int[] types, String[] names){
+		int numCol = types.length;
+		this._integer = new boolean[numCol];
+		String[] labels = new String[numCol];
+		for (int i = 0; i < numCol; ++i){
+			this._integer[i] = types[i] == Types.INTEGER || types[i] == Types.BIGINT || types[i] == Types.SMALLINT;
+			if (this._labels != null && i < this._labels.length) labels[i] = this._labels[i];
+			else labels[i] = names != null ? names[i] : "column" + (i + 1);
+		}//end for
+		this._labels = labels;
+		header();
+	}
+
+	private void header(){
+		String[] labels = this._labels;
+		int numCol = labels.length;
+		if (this._format == Format.TSV || this._format == Format.CSV){
+			for (int i = 0; i < numCol; ++i){
+				if (i > 0) this._buffer.append(this._format == Format.TSV ? '\t' : ',');
+				this._buffer.append(labels[i]);
+			}//end for
+			this._buffer.append('\n');
+		}//end if
+	}
+
+	private void pause(){
+		try{
+			System.out.print("-- more (Enter to continue, q to stop) --");
+			System.out.flush();
+			String line = this._pager.readLine();
+			if (line == null || line.trim().equalsIgnoreCase("q")) this._stopped = true;
+		}catch (IOException e){
+			this._stopped = true;
+		}//end try
+	}
+
+	private void flush(){
+		write(this._buffer, 0, this._buffer.length());
+		this._buffer.setLength(0);
+	}
+
+	//moves the buffer to the spill file, created readable by the user alone
+	private void spill(){
+		try{
+			if (this._spill == null){
+				this._spillFile = Files.createTempFile("dbproject-pages", ".txt");
+				this._spill = Files.newBufferedWriter(this._spillFile, StandardCharsets.UTF_8);
+			}//end if
+			this._spill.append(this._buffer);
+			this._spilled += this._buffer.length();
+			this._buffer.setLength(0);
+		}catch (IOException e){
+			throw new UncheckedIOException(e);
+		}//end try
+	}
+
+	private void closeSpill(Reader in){
+		try{
+			if (in != null) in.close();
+			if (this._spill != null) this._spill.close();
+			if (this._spillFile != null) Files.deleteIfExists(this._spillFile);
+		}catch (IOException e){
+			// ignored.
+		}finally{
+			this._spill = null;
+			this._spillFile = null;
+			this._spilled = 0;
+		}//end try
+	}
+
+	//writes count characters of in, or all that is left
+	private void copy(Reader in, long count) throws IOException {
+		char[] chars = new char[8192];
+		while (count > 0){
+			int n = in.read(chars, 0, (int) Math.min(chars.length, count));
+			if (n < 0) break;
+			this._out.write(chars, 0, n);
+			count -= n;
+		}//end while
+		this._out.flush();
+	}
+
+	private void write(StringBuilder b, int from, int to){
+		try{
+			this._out.append(b, from, to);
+			this._out.flush();
+		}catch (IOException e){
+			throw new UncheckedIOException(e);
+		}//end try
+	}
+
+	private void appendNull(StringBuilder b){
+		b.append(this._format == Format.JSON ? "null" : (this._format == Format.CSV ? "" : "null"));
+	}
+
+	private static StringBuilder appendCsv(StringBuilder b, String v){
+		boolean quote = false;
+		for (int i = 0; i < v.length() && !quote; ++i){
+			char c = v.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}//end for
+		if (!quote) return b.append(v);
+		b.append('"');
+		for (int i = 0; i < v.length(); ++i){
+			char c = v.charAt(i);
+			if (c == '"') b.append('"');
+			b.append(c);
+		}//end for
+		return b.append('"');
+	}
+
+	static StringBuilder appendJson(StringBuilder b, String v){
+		b.append('"');
+		for (int i = 0; i < v.length(); ++i){
+			char c = v.charAt(i);
+			switch (c){
+				case '"': b.append("\\\""); break;
+				case '\\': b.append("\\\\"); break;
+				case '\n': b.append("\\n"); break;
+				case '\r': b.append("\\r"); break;
+				case '\t': b.append("\\t"); break;
+				default:
+					if (c < 0x20) b.append(String.format("\\u%04x", (int) c));
+					else b.append(c);
+			}
+		}//end for
+		return b.append('"');
+	}
+}
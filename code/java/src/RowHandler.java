@@ -0,0 +1,29 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Callback that receives the rows of a streamed query one at a time. The
+ * ResultSet is positioned on the current row; read its columns with the
+ * typed getters. It is only valid for the duration of the call, so copy out
+ * anything that must be kept.
+ *
+ * A listing that can be answered from memory, e.g. from the
+ * AvailabilityIndex, offers all its rows to rows() first and only runs the
+ * query if the handler does not take them.
+ *
+ */
+
+public interface RowHandler{
+	void row(ResultSet rs) throws SQLException;
+
+	/**
+	 * @param rows the rows as column values
+	 * @param names the column names, as the query would label them
+	 * @param types the java.sql.Types of the columns
+	 * @return false if the rows were not taken, so the query has to run
+	 */
+	default boolean rows(List<List<String>> rows, String[] names, int[] types) throws SQLException {
+		return false;
+	}
+}
@@ -0,0 +1,14 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a query to an object, reading the columns with
+ * the typed getters so values are never formatted to Strings and parsed
+ * back. Used by DBproject.executeQueryAndMap; the entity classes provide
+ * mappers for their tables.
+ *
+ */
+
+public interface RowMapper<T>{
+	T map(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,144 @@
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class reports the demand recorded in searches: how often the
+ * appointments of each hospital, department and time slot were looked at,
+ * and what share of the searched appointments has been booked since. The
+ * searches are first rolled up incrementally by rollup_searches() (see
+ * create.sql), which only reads the rows added since its previous call, so
+ * the reports read the small rollup tables instead of searches. It runs
+ * once, or every few minutes with -every.
+ *
+ * Usage: java SearchAnalytics <dbname> <port> <user> [-top N] [-every minutes]
+ *        [-rebuild]
+ *
+ */
+
+public class SearchAnalytics{
+	static final String ROLLUP_SQL = "SELECT rollup_searches()";
+	static final String REBUILD_SQL = "SELECT rebuild_search_rollups()";
+	//most searched hospital, department and time slot combinations
+	static final String DEMAND_SQL =
+		"SELECT sd.hid, COALESCE(de.name, '(no doctor)') AS department, sd.time_slot, sd.searches "
+		+ "FROM search_demand sd LEFT JOIN Department de ON de.dept_ID = sd.dept_id ORDER BY sd.searches DESC, 1, 2, 3 LIMIT ?";
+	//share of the searched appointments of each hospital and department that are booked (AC, WL) or past (PA)
+	static final String CONVERSION_SQL =
+		"SELECT c.hid, COALESCE(de.name, '(no doctor)') AS department, SUM(c.searches) AS searches, COUNT(*) AS appointments, "
+		+ "COUNT(*) FILTER (WHERE a.status IN ('AC', 'WL', 'PA')) AS booked, "
+		+ "ROUND(COUNT(*) FILTER (WHERE a.status IN ('AC', 'WL', 'PA'))::numeric / COUNT(*), 3) AS conversion "
+		+ "FROM search_appointment_count c INNER JOIN Appointment a ON a.appnt_ID = c.aid "
+		+ "LEFT JOIN has_appointment ha ON ha.appt_id = c.aid LEFT JOIN Doctor d ON d.doctor_ID = ha.doctor_id "
+		+ "LEFT JOIN Department de ON de.dept_ID = d.did "
+		+ "GROUP BY c.hid, de.name ORDER BY searches DESC, 1, 2 LIMIT ?";
+
+	private final DBproject _db;
+	//rows printed per report
+	private final int _top;
+
+	public SearchAnalytics(DBproject db, int top){
+		this._db = db;
+		this._top = top;
+	}
+
+	/**
+	 * Rolls up the searches added since the last rollup.
+	 *
+	 * @return the number of searches rolled up
+	 */
+	public long rollup() throws SQLException {
+		return this._db.executeQueryAndMap(ROLLUP_SQL, rs -> rs.getLong(1)).get(0);
+	}
+
+	/**
+	 * Empties the rollups and rolls up every search again.
+	 *
+	 * @return the number of searches rolled up
+	 */
+	public long rebuild() throws SQLException {
+		return this._db.executeQueryAndMap(REBUILD_SQL, rs -> rs.getLong(1)).get(0);
+	}
+
+	/**
+	 * Rolls up and prints both reports.
+	 */
+	public void runOnce() throws SQLException {
+		long start = System.nanoTime();
+		long added = rollup();
+		System.out.println(String.format("rolled up %d new search%s (%.2fs)", added, added == 1 ? "" : "es",
+			(System.nanoTime() - start) / 1e9));
+
+		System.out.println("-- demand per hospital, department and time slot");
+		ResultWriter out = DBproject.outputWriter(ResultWriter.Format.TEXT, "hid", "department", "time_slot", "searches");
+		try{
+			this._db.executeQueryStreaming(DEMAND_SQL, out, this._top);
+		}finally{
+			out.finish();
+		}//end try
+
+		System.out.println("-- search to booking conversion per hospital and department");
+		out = DBproject.outputWriter(ResultWriter.Format.TEXT, "hid", "department", "searches", "appointments", "booked", "conversion");
+		try{
+			this._db.executeQueryStreaming(CONVERSION_SQL, out, this._top);
+		}finally{
+			out.finish();
+		}//end try
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + SearchAnalytics.class.getName()
+				+ " <dbname> <port> <user> [-top N] [-every minutes] [-rebuild]");
+			System.exit(2);
+		}//end if
+
+		int top = 20;
+		int everyMinutes = 0;
+		boolean rebuild = false;
+		for (int i = 3; i < args.length; ++i){
+			switch (args[i]){
+				case "-top": top = Integer.parseInt(args[++i]); break;
+				case "-every": everyMinutes = Integer.parseInt(args[++i]); break;
+				case "-rebuild": rebuild = true; break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}//end for
+
+		DBproject esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "");
+			SearchAnalytics analytics = new SearchAnalytics(esql, top);
+			if (rebuild){
+				System.out.println("rebuilt the search rollups from " + analytics.rebuild() + " searches");
+			}//end if
+			analytics.runOnce();
+
+			if (everyMinutes > 0){
+				ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+				CountDownLatch failed = new CountDownLatch(1);
+				scheduler.scheduleWithFixedDelay(() -> {
+					try{
+						analytics.runOnce();
+					}catch (SQLException e){
+						System.err.println(e.getMessage());
+						failed.countDown();
+					}//end try
+				}, everyMinutes, everyMinutes, TimeUnit.MINUTES);
+				failed.await();
+				scheduler.shutdownNow();
+				throw new SQLException("Stopped after a failed run");
+			}//end if
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (esql != null) esql.cleanup();
+		}//end try
+	}
+}
@@ -0,0 +1,388 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class evaluates the staff roster of a date range. The load of a staff
+ * member in a time slot of a day is the number of appointments (PA or AC)
+ * the member is scheduled for (schedules); the capacity is the largest
+ * patient_per_hour any doctor requested of the member for that time slot
+ * (request_maintenance) times the length of the slot. Every slot where the
+ * load exceeds the capacity is a violation.
+ *
+ * For each violation it proposes moving the excess appointments to staff of
+ * the same hospital with spare capacity in the same slot, most spare first.
+ * The roster is read with two set-based queries; hospitals are then solved
+ * in parallel on a fork/join pool. With -apply the proposed moves are
+ * written to schedules in one transaction.
+ *
+ * Usage: java StaffScheduler <dbname> <port> <user> [-from YYYY-MM-DD]
+ *        [-days 7] [-threads N] [-apply]
+ *
+ */
+
+public class StaffScheduler{
+	//scheduled appointments per hospital, staff member, day and time slot
+	static final String ROSTER_SQL =
+		"SELECT st.hid, sc.staff_id, a.adate, a.time_slot, array_agg(a.appnt_ID ORDER BY a.appnt_ID) "
+		+ "FROM schedules sc INNER JOIN Appointment a ON a.appnt_ID = sc.appt_id INNER JOIN Staff st ON st.staff_ID = sc.staff_id "
+		+ "WHERE a.status IN ('PA', 'AC') AND a.adate >= ? AND a.adate < ? AND a.time_slot IS NOT NULL "
+		+ "GROUP BY st.hid, sc.staff_id, a.adate, a.time_slot";
+	//requested patients per hour per hospital, staff member and time slot
+	static final String CAPACITY_SQL =
+		"SELECT st.hid, rm.sid, rm.time_slot, MAX(rm.patient_per_hour) "
+		+ "FROM request_maintenance rm INNER JOIN Staff st ON st.staff_ID = rm.sid GROUP BY st.hid, rm.sid, rm.time_slot";
+	static final String MOVE_SQL = "UPDATE schedules SET staff_id = ? WHERE appt_id = ? AND staff_id = ?";
+
+	//violations and moves printed in full; the rest are only counted
+	private static final int MAX_PRINTED = 20;
+
+	/**
+	 * The appointments one staff member is scheduled for in one slot of a day.
+	 */
+	static final class Cell{
+		final int staffId;
+		final int epochDay;
+		final String timeSlot;
+		//appnt_IDs in ascending order
+		final int[] appointments;
+
+		Cell(int staffId, int epochDay, String timeSlot, int[] appointments){
+			this.staffId = staffId;
+			this.epochDay = epochDay;
+			this.timeSlot = timeSlot;
+			this.appointments = appointments;
+		}
+	}
+
+	/**
+	 * A slot where a staff member is scheduled for more than the capacity.
+	 */
+	public static final class Violation{
+		public final int hospitalId;
+		public final int staffId;
+		public final LocalDate date;
+		public final String timeSlot;
+		public final int load;
+		public final int capacity;
+
+		Violation(int hospitalId, int staffId, LocalDate date, String timeSlot, int load, int capacity){
+			this.hospitalId = hospitalId;
+			this.staffId = staffId;
+			this.date = date;
+			this.timeSlot = timeSlot;
+			this.load = load;
+			this.capacity = capacity;
+		}
+
+		@Override
+		public String toString(){
+			return "hospital=" + this.hospitalId + " staff=" + this.staffId + " " + this.date + " " + this.timeSlot
+				+ " load=" + this.load + " capacity=" + this.capacity;
+		}
+	}
+
+	/**
+	 * A proposed reassignment of one appointment.
+	 */
+	public static final class Move{
+		public final int appointmentId;
+		public final int fromStaffId;
+		public final int toStaffId;
+
+		Move(int appointmentId, int fromStaffId, int toStaffId){
+			this.appointmentId = appointmentId;
+			this.fromStaffId = fromStaffId;
+			this.toStaffId = toStaffId;
+		}
+
+		@Override
+		public String toString(){
+			return "appointment=" + this.appointmentId + " staff " + this.fromStaffId + " -> " + this.toStaffId;
+		}
+	}
+
+	/**
+	 * The evaluation of the roster of one or more hospitals.
+	 */
+	public static final class Report{
+		public final List<Violation> violations = new ArrayList<Violation>();
+		public final List<Move> moves = new ArrayList<Move>();
+		//scheduled (staff, day, slot) combinations evaluated
+		public long cells = 0;
+		//excess appointments no one in the hospital had room for
+		public long unresolved = 0;
+
+		Report merge(Report other){
+			this.violations.addAll(other.violations);
+			this.moves.addAll(other.moves);
+			this.cells += other.cells;
+			this.unresolved += other.unresolved;
+			return this;
+		}
+	}
+
+	/**
+	 * The roster and requested capacities of one hospital.
+	 */
+	static final class Hospital{
+		final int id;
+		final List<Cell> cells = new ArrayList<Cell>();
+		//time slot to staff_ID to patients per hour
+		final Map<String, Map<Integer, Integer>> perHour = new HashMap<String, Map<Integer, Integer>>();
+
+		Hospital(int id){
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Solves a range of hospitals, splitting it until one hospital is left.
+	 */
+	static final class SolveTask extends RecursiveTask<Report>{
+		private static final long serialVersionUID = 1L;
+		private final Hospital[] _hospitals;
+		private final int _from;
+		private final int _to;
+
+		SolveTask(Hospital[] hospitals, int from, int to){
+			this._hospitals = hospitals;
+			this._from = from;
+			this._to = to;
+		}
+
+		@Override
+		protected Report compute(){
+			if (this._to - this._from == 1) return solve(this._hospitals[this._from]);
+			int mid = (this._from + this._to) >>> 1;
+			SolveTask left = new SolveTask(this._hospitals, this._from, mid);
+			left.fork();
+			Report right = new SolveTask(this._hospitals, mid, this._to).compute();
+			return left.join().merge(right);
+		}
+	}
+
+	private final DBproject _db;
+
+	public StaffScheduler(DBproject db){
+		this._db = db;
+	}
+
+	/**
+	 * Reads the roster of [from, from + days) and the requested capacities.
+	 *
+	 * @return the hospitals with any schedule or request, by hospital_ID
+	 */
+	Map<Integer, Hospital> load(LocalDate from, int days) throws SQLException {
+		Map<Integer, Hospital> hospitals = new TreeMap<Integer, Hospital>();
+		this._db.executeQueryStreaming(ROSTER_SQL, rs -> {
+			Integer[] ids = (Integer[]) rs.getArray(5).getArray();
+			int[] appointments = new int[ids.length];
+			for (int i = 0; i < ids.length; ++i) appointments[i] = ids[i];
+			hospitals.computeIfAbsent(rs.getInt(1), Hospital::new).cells.add(new Cell(rs.getInt(2),
+				(int) rs.getDate(3).toLocalDate().toEpochDay(), rs.getString(4), appointments));
+		}, java.sql.Date.valueOf(from), java.sql.Date.valueOf(from.plusDays(days)));
+		this._db.executeQueryStreaming(CAPACITY_SQL, rs -> hospitals.computeIfAbsent(rs.getInt(1), Hospital::new)
+			.perHour.computeIfAbsent(rs.getString(3), s -> new HashMap<Integer, Integer>()).put(rs.getInt(2), rs.getInt(4)));
+		return hospitals;
+	}
+
+	/**
+	 * Evaluates the roster of [from, from + days) of every hospital.
+	 *
+	 * @param pool where the hospitals are solved
+	 */
+	public Report evaluate(LocalDate from, int days, ForkJoinPool pool) throws SQLException {
+		Hospital[] hospitals = load(from, days).values().toArray(new Hospital[0]);
+		if (hospitals.length == 0) return new Report();
+		return pool.invoke(new SolveTask(hospitals, 0, hospitals.length));
+	}
+
+	/**
+	 * Finds the violations of one hospital and moves excess appointments to
+	 * the staff with the most spare capacity in the same slot.
+	 */
+	static Report solve(Hospital hospital){
+		Report report = new Report();
+		report.cells = hospital.cells.size();
+		//"epochDay|slot" to the cells of that slot, in date and slot order
+		Map<String, List<Cell>> slots = new TreeMap<String, List<Cell>>();
+		for (Cell c : hospital.cells){
+			slots.computeIfAbsent(String.format("%08d|%s", c.epochDay, c.timeSlot), k -> new ArrayList<Cell>()).add(c);
+		}//end for
+
+		for (List<Cell> cells : slots.values()){
+			int epochDay = cells.get(0).epochDay;
+			String timeSlot = cells.get(0).timeSlot;
+			Map<Integer, Integer> perHour = hospital.perHour.getOrDefault(timeSlot, new HashMap<Integer, Integer>());
+			int minutes = minutesOf(timeSlot);
+
+			//staff_ID to spare capacity, negative when overloaded; staff with requests but no schedule start empty
+			Map<Integer, Integer> spare = new TreeMap<Integer, Integer>();
+			Map<Integer, int[]> scheduled = new HashMap<Integer, int[]>();
+			for (Map.Entry<Integer, Integer> e : perHour.entrySet()) spare.put(e.getKey(), e.getValue() * minutes / 60);
+			for (Cell c : cells){
+				int capacity = spare.getOrDefault(c.staffId, 0);
+				spare.put(c.staffId, capacity - c.appointments.length);
+				scheduled.put(c.staffId, c.appointments);
+				if (c.appointments.length > capacity){
+					report.violations.add(new Violation(hospital.id, c.staffId, LocalDate.ofEpochDay(epochDay), timeSlot,
+						c.appointments.length, capacity));
+				}//end if
+			}//end for
+
+			List<Integer> receivers = new ArrayList<Integer>();
+			for (Map.Entry<Integer, Integer> e : spare.entrySet()){
+				if (e.getValue() > 0) receivers.add(e.getKey());
+			}//end for
+			receivers.sort((a, b) -> Integer.compare(spare.get(b), spare.get(a)));
+
+			//receiver and appointment of the moves proposed so far; two members holding the same
+			//appointment must not both move it to one receiver, which already holds it after the first
+			Set<Long> proposed = new HashSet<Long>();
+			for (Cell c : cells){
+				int excess = -spare.get(c.staffId);
+				//the latest appointments move first
+				for (int i = c.appointments.length - 1; i >= 0 && excess > 0; --i){
+					int appointment = c.appointments[i];
+					for (int to : receivers){
+						int room = spare.get(to);
+						long pair = ((long) to << 32) | (appointment & 0xffffffffL);
+						if (room <= 0 || isScheduled(scheduled.get(to), appointment) || proposed.contains(pair)) continue;
+						proposed.add(pair);
+						report.moves.add(new Move(appointment, c.staffId, to));
+						spare.put(to, room - 1);
+						--excess;
+						break;
+					}//end for
+				}//end for
+				if (excess > 0) report.unresolved += excess;
+			}//end for
+		}//end for
+		return report;
+	}
+
+	private static boolean isScheduled(int[] appointments, int appointment){
+		return appointments != null && Arrays.binarySearch(appointments, appointment) >= 0;
+	}
+
+	/**
+	 * @return the length of a time slot such as 8:00-10:00 in minutes, 60 if it cannot be parsed
+	 */
+	static int minutesOf(String timeSlot){
+		try{
+			int dash = timeSlot.indexOf('-');
+			int minutes = minuteOfDay(timeSlot.substring(dash + 1)) - minuteOfDay(timeSlot.substring(0, dash));
+			return minutes > 0 ? minutes : 60;
+		}catch (RuntimeException e){
+			return 60;
+		}//end try
+	}
+
+	private static int minuteOfDay(String time){
+		int colon = time.indexOf(':');
+		return Integer.parseInt(time.substring(0, colon).trim()) * 60 + Integer.parseInt(time.substring(colon + 1).trim());
+	}
+
+	/**
+	 * Writes the moves to schedules in one transaction.
+	 *
+	 * @return the number of schedules changed
+	 */
+	public int apply(List<Move> moves) throws SQLException {
+		if (moves.isEmpty()) return 0;
+		PooledConnection conn = this._db.getConnection();
+		try{
+			conn.getConnection().setAutoCommit(false);
+			PreparedStatement stmt = conn.prepareStatement(MOVE_SQL);
+			for (Move m : moves){
+				stmt.setInt(1, m.toStaffId);
+				stmt.setInt(2, m.appointmentId);
+				stmt.setInt(3, m.fromStaffId);
+				stmt.addBatch();
+			}//end for
+			long start = System.nanoTime();
+			boolean ok = false;
+			int changed = 0;
+			try{
+				for (int n : stmt.executeBatch()) changed += Math.max(n, 0);
+				conn.getConnection().commit();
+				ok = true;
+			}finally{
+				this._db.getMetrics().recordStatement(MOVE_SQL, start, changed, ok, moves.size() + " moves");
+			}//end try
+			return changed;
+		}finally{
+			this._db.releaseConnection(conn);
+		}//end try
+	}
+
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + StaffScheduler.class.getName()
+				+ " <dbname> <port> <user> [-from YYYY-MM-DD] [-days 7] [-threads N] [-apply]");
+			System.exit(2);
+		}//end if
+
+		LocalDate from = LocalDate.now().with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+		int days = 7;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean apply = false;
+		for (int i = 3; i < args.length; ++i){
+			switch (args[i]){
+				case "-from": from = LocalDate.parse(args[++i]); break;
+				case "-days": days = Integer.parseInt(args[++i]); break;
+				case "-threads": threads = Integer.parseInt(args[++i]); break;
+				case "-apply": apply = true; break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}//end for
+
+		DBproject esql = null;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new DBproject(args[0], args[1], args[2], "");
+			StaffScheduler scheduler = new StaffScheduler(esql);
+			long start = System.nanoTime();
+			Report report = scheduler.evaluate(from, days, pool);
+			System.out.println(String.format("%s to %s: %d scheduled slots, %d violations, %d moves proposed, %d appointments without room (%.2fs)",
+				from, from.plusDays(days - 1), report.cells, report.violations.size(), report.moves.size(), report.unresolved,
+				(System.nanoTime() - start) / 1e9));
+			print("violation", report.violations);
+			print("move", report.moves);
+			if (apply){
+				System.out.println("applied " + scheduler.apply(report.moves) + " moves");
+			}//end if
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			pool.shutdown();
+			if (esql != null) esql.cleanup();
+		}//end try
+	}
+
+	private static void print(String label, List<?> items){
+		for (int i = 0; i < items.size() && i < MAX_PRINTED; ++i){
+			System.out.println(label + ": " + items.get(i));
+		}//end for
+		if (items.size() > MAX_PRINTED){
+			System.out.println("... " + (items.size() - MAX_PRINTED) + " more");
+		}//end if
+	}
+}
@@ -0,0 +1,104 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the PreparedStatements of one connection, keyed by their
+ * SQL text, so that repeated operations reuse the same statement instead of
+ * preparing it again. Reusing the statement object also lets the PostgreSQL
+ * driver switch to a named server-side statement once the prepare threshold
+ * is reached, which skips parsing and planning on the server.
+ *
+ * The least recently used statement is closed when the cache grows past its
+ * capacity. A cache belongs to a single connection and is only used by the
+ * thread that has borrowed that connection, so it is not synchronized.
+ *
+ */
+
+public class StatementCache{
+	private final Connection _connection;
+	private final int _capacity;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+
+	public StatementCache(Connection connection, int capacity){
+		if (capacity < 1){
+			throw new IllegalArgumentException("Invalid statement cache capacity: " + capacity);
+		}//end if
+		this._connection = connection;
+		this._capacity = capacity;
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if (size() <= StatementCache.this._capacity) return false;
+				StatementCache.this._evictions++;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached statement for the SQL text, preparing it on a miss.
+	 * The returned statement is owned by the cache: callers set its parameters
+	 * and execute it, close any ResultSet they obtain, but must not close the
+	 * statement itself.
+	 *
+	 * @param sql the SQL text, used verbatim as the cache key
+	 * @return a prepared statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt != null && !stmt.isClosed()){
+			this._hits++;
+			stmt.clearParameters();
+			return stmt;
+		}//end if
+
+		this._misses++;
+		stmt = this._connection.prepareStatement(sql);
+		this._statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * Closes every cached statement and empties the cache.
+	 */
+	public void close(){
+		Iterator<PreparedStatement> it = this._statements.values().iterator();
+		while (it.hasNext()){
+			closeQuietly(it.next());
+			it.remove();
+		}//end while
+	}
+
+	public int size(){
+		return this._statements.size();
+	}
+
+	public long getHits(){
+		return this._hits;
+	}
+
+	public long getMisses(){
+		return this._misses;
+	}
+
+	public long getEvictions(){
+		return this._evictions;
+	}
+
+	private static void closeQuietly(PreparedStatement stmt){
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+}
@@ -8,6 +8,15 @@ DROP TABLE IF EXISTS has_appointment CASCADE;--OK
 DROP TABLE IF EXISTS request_maintenance CASCADE;--OK
 DROP TABLE IF EXISTS searches CASCADE;--OK
 DROP TABLE IF EXISTS schedules CASCADE;--OK
+DROP TABLE IF EXISTS doctor_status_count CASCADE;
+DROP TABLE IF EXISTS waitlist CASCADE;
+DROP TABLE IF EXISTS search_watermark CASCADE;
+DROP TABLE IF EXISTS search_appointment_count CASCADE;
+DROP TABLE IF EXISTS search_demand CASCADE;
+DROP SCHEMA IF EXISTS appointment_archive CASCADE;
+DROP SEQUENCE IF EXISTS doctor_id_seq;
+DROP SEQUENCE IF EXISTS patient_id_seq;
+DROP SEQUENCE IF EXISTS appointment_id_seq;
 
 
 -------------
@@ -74,6 +83,10 @@ CREATE TABLE Appointment
 	adate DATE NOT NULL,
 	time_slot VARCHAR(11),
 	status _STATUS,
+	-- bumped by every status change, see make_appointment()
+	version INTEGER NOT NULL DEFAULT 0,
+	-- patient holding an AC or WL appointment, if booked through make_appointment()
+	patient_ID INTEGER,
 	PRIMARY KEY (appnt_ID)
 );
 
@@ -100,6 +113,8 @@ CREATE TABLE searches
 	hid INTEGER NOT NULL,	
 	pid INTEGER NOT NULL,
 	aid INTEGER NOT NULL,
+	-- transaction that added the row, the watermark of the search rollups
+	created_txid BIGINT NOT NULL DEFAULT txid_current(),
 	PRIMARY KEY (hid,pid,aid),
 	FOREIGN KEY (hid) REFERENCES Hospital(hospital_ID),
 	FOREIGN KEY (pid) REFERENCES Patient(patient_ID),
@@ -221,3 +236,582 @@ COPY has_appointment (
 FROM 'has_appointment.csv'
 WITH DELIMITER ',';
 
+
+
+-------------
+---INDEXES---
+-------------
+-- Built after the COPY statements so the bulk load does not maintain them row
+-- by row. Each one backs a query issued by DBproject; QueryPlanCheck verifies
+-- that none of those queries falls back to a sequential scan.
+
+-- appointments of a doctor (menu 5, 6)
+CREATE INDEX has_appointment_doctor_idx ON has_appointment (doctor_id, appt_id);
+-- appointments by status and date (menu 5, 6)
+CREATE INDEX appointment_status_date_idx ON Appointment (status, adate);
+-- bookable appointments in page order (menu 5, 6 with a cursor): a page seeks
+-- to the previous page's last row and reads on in index order until it is full
+CREATE INDEX appointment_page_idx ON Appointment (adate, (COALESCE(time_slot, '')) COLLATE "C", appnt_ID)
+	WHERE status IN ('AV', 'AC');
+-- department lookup by name (menu 6)
+CREATE INDEX department_name_idx ON Department (name);
+-- doctors of a department (menu 6)
+CREATE INDEX doctor_did_idx ON Doctor (did);
+-- patient lookup by identity (menu 4)
+CREATE INDEX patient_identity_idx ON Patient (name, gtype, age, address);
+-- searches added since the last rollup (SearchAnalytics)
+CREATE INDEX searches_created_txid_idx ON searches (created_txid);
+
+-- counters maintained by make_appointment() never go negative
+ALTER TABLE Patient ADD CONSTRAINT patient_appts_nonnegative CHECK (number_of_appts >= 0);
+ALTER TABLE Patient ADD CONSTRAINT patient_age_nonnegative CHECK (age >= 0);
+
+ANALYZE;
+
+---------------
+---SEQUENCES---
+---------------
+-- Key blocks for the client's IdAllocator: each nextval() claims INCREMENT BY
+-- consecutive IDs. The sequences start right after the loaded data.
+CREATE SEQUENCE doctor_id_seq MINVALUE 0 INCREMENT BY 20;
+CREATE SEQUENCE patient_id_seq MINVALUE 0 INCREMENT BY 20;
+CREATE SEQUENCE appointment_id_seq MINVALUE 0 INCREMENT BY 20;
+
+SELECT setval('doctor_id_seq', (SELECT COALESCE(MAX(doctor_ID) + 1, 0) FROM Doctor), false);
+SELECT setval('patient_id_seq', (SELECT COALESCE(MAX(patient_ID) + 1, 0) FROM Patient), false);
+SELECT setval('appointment_id_seq', (SELECT COALESCE(MAX(appnt_ID) + 1, 0) FROM Appointment), false);
+
+
+---------------
+---FUNCTIONS---
+---------------
+-- The current row of an appointment, read by make_appointment() and
+-- cancel_appointment(). adate and status are repeated in their updates:
+-- partition.sql replaces this function with one that finds them through
+-- appointment_key, so the reads and updates only touch one partition.
+CREATE OR REPLACE FUNCTION appointment_state(p_appnt_id INTEGER)
+RETURNS TABLE (o_adate DATE, o_status VARCHAR, o_version INTEGER, o_patient_id INTEGER) AS $$
+	SELECT a.adate, a.status::VARCHAR, a.version, a.patient_ID FROM Appointment a WHERE a.appnt_ID = p_appnt_id;
+$$ LANGUAGE sql STABLE;
+
+-- Books appointment p_appnt_id of doctor p_doctor_id for the patient with the
+-- given identity, creating the patient (with ID p_new_patient_id) if needed.
+-- An available appointment becomes active and held by the patient
+-- (AV -> AC); a held one puts the patient at the end of its waitlist (AC ->
+-- WL for the first). The appointment row is not locked up front: each
+-- status change is an update conditional on the version read, retried when
+-- a concurrent booking or cancellation changed the appointment first.
+-- Joining an existing waitlist does not write the row at all, it only
+-- share-locks it against a concurrent promotion, so the bookers of a hot
+-- slot do not wait for each other. Nothing is written unless the booking
+-- succeeds.
+CREATE OR REPLACE FUNCTION make_appointment(
+	p_name VARCHAR, p_gtype VARCHAR, p_age INTEGER, p_address VARCHAR,
+	p_doctor_id INTEGER, p_appnt_id INTEGER, p_new_patient_id INTEGER)
+RETURNS TABLE (o_outcome VARCHAR, o_patient_id INTEGER, o_patient_created BOOLEAN,
+	o_old_status VARCHAR, o_new_status VARCHAR) AS $$
+DECLARE
+	v_adate DATE;
+	v_version INTEGER;
+	v_holder INTEGER;
+	v_tries INTEGER := 0;
+BEGIN
+	o_patient_created := false;
+
+	PERFORM 1 FROM Doctor d WHERE d.doctor_ID = p_doctor_id;
+	IF NOT FOUND THEN
+		o_outcome := 'NO_DOCTOR';
+		RETURN NEXT;
+		RETURN;
+	END IF;
+
+	PERFORM 1 FROM has_appointment ha WHERE ha.appt_id = p_appnt_id AND ha.doctor_id = p_doctor_id;
+	IF NOT FOUND THEN
+		o_outcome := 'NOT_DOCTORS_APPOINTMENT';
+		RETURN NEXT;
+		RETURN;
+	END IF;
+
+	-- serializes concurrent creation of the same new patient
+	PERFORM pg_advisory_xact_lock(hashtext(p_name || '|' || p_gtype || '|' || p_age || '|' || COALESCE(p_address, '')));
+	SELECT p.patient_ID INTO o_patient_id FROM Patient p
+	WHERE p.name = p_name AND p.gtype = p_gtype AND p.age = p_age AND p.address = p_address
+	LIMIT 1;
+	IF NOT FOUND THEN
+		o_patient_id := p_new_patient_id;
+		o_patient_created := true;
+	END IF;
+
+	LOOP
+		v_tries := v_tries + 1;
+		IF v_tries > 100 THEN
+			RAISE EXCEPTION 'appointment % kept changing while it was booked', p_appnt_id
+				USING ERRCODE = 'serialization_failure';
+		END IF;
+
+		SELECT s.o_adate, s.o_status, s.o_version, s.o_patient_id INTO v_adate, o_old_status, v_version, v_holder
+		FROM appointment_state(p_appnt_id) s;
+
+		IF o_old_status IS NULL OR o_old_status NOT IN ('AV', 'AC', 'WL') THEN
+			o_outcome := 'NOT_BOOKABLE';
+		ELSIF o_old_status <> 'AV' AND (v_holder = o_patient_id
+				OR EXISTS (SELECT 1 FROM waitlist w WHERE w.appnt_ID = p_appnt_id AND w.patient_ID = o_patient_id)) THEN
+			o_outcome := 'ALREADY_BOOKED';
+		END IF;
+		IF o_outcome IS NOT NULL THEN
+			o_patient_id := NULL;
+			o_patient_created := false;
+			o_new_status := o_old_status;
+			RETURN NEXT;
+			RETURN;
+		END IF;
+
+		IF o_old_status = 'AV' THEN
+			UPDATE Appointment SET status = 'AC', patient_ID = o_patient_id, version = version + 1
+			WHERE appnt_ID = p_appnt_id AND adate = v_adate AND status = o_old_status AND version = v_version;
+			o_new_status := 'AC';
+			EXIT WHEN FOUND;
+		ELSIF o_old_status = 'AC' THEN
+			UPDATE Appointment SET status = 'WL', version = version + 1
+			WHERE appnt_ID = p_appnt_id AND adate = v_adate AND status = o_old_status AND version = v_version;
+			IF FOUND THEN
+				INSERT INTO waitlist (appnt_ID, patient_ID) VALUES (p_appnt_id, o_patient_id);
+				o_new_status := 'WL';
+				EXIT;
+			END IF;
+		ELSE
+			INSERT INTO waitlist (appnt_ID, patient_ID)
+			SELECT a.appnt_ID, o_patient_id FROM Appointment a
+			WHERE a.appnt_ID = p_appnt_id AND a.adate = v_adate AND a.status = o_old_status AND a.version = v_version
+			FOR SHARE OF a
+			ON CONFLICT (appnt_ID, patient_ID) DO NOTHING;
+			o_new_status := 'WL';
+			EXIT WHEN FOUND;
+		END IF;
+	END LOOP;
+
+	IF o_patient_created THEN
+		INSERT INTO Patient(patient_ID, name, gtype, age, address, number_of_appts)
+		VALUES (o_patient_id, p_name, p_gtype, p_age, p_address, 0);
+	END IF;
+	UPDATE Patient SET number_of_appts = COALESCE(number_of_appts, 0) + 1 WHERE patient_ID = o_patient_id;
+
+	o_outcome := 'BOOKED';
+	RETURN NEXT;
+END;
+$$ LANGUAGE plpgsql;
+
+
+--------------
+---WAITLIST---
+--------------
+-- Patients waiting for a held (WL) appointment, first come first served:
+-- the smallest ticket of an appointment is promoted when its holder
+-- cancels. The patient may be created later in the booking transaction.
+CREATE TABLE waitlist
+(
+	appnt_ID INTEGER NOT NULL,
+	ticket BIGSERIAL,
+	patient_ID INTEGER NOT NULL,
+	added TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (appnt_ID, ticket),
+	UNIQUE (appnt_ID, patient_ID),
+	FOREIGN KEY (appnt_ID) REFERENCES Appointment(appnt_ID),
+	FOREIGN KEY (patient_ID) REFERENCES Patient(patient_ID) DEFERRABLE INITIALLY DEFERRED
+);
+
+-- Every status change bumps the version, so make_appointment() and
+-- cancel_appointment() also notice writers that do not stamp it themselves.
+CREATE OR REPLACE FUNCTION stamp_appointment_version() RETURNS trigger AS $$
+BEGIN
+	IF NEW.version = OLD.version THEN
+		NEW.version := OLD.version + 1;
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER appointment_version_stamp BEFORE UPDATE OF status ON Appointment
+	FOR EACH ROW WHEN (NEW.status IS DISTINCT FROM OLD.status) EXECUTE PROCEDURE stamp_appointment_version();
+
+-- Cancels the booking of patient p_patient_id on appointment p_appnt_id, or
+-- whoever holds it if p_patient_id is NULL. When the holder cancels, the
+-- first waitlisted patient is promoted to holder (WL stays WL while others
+-- wait, else AC); with nobody waiting the appointment is available again.
+-- A waitlisted patient who cancels just leaves the queue. The cancelled
+-- patient's number_of_appts is decremented. Like make_appointment(), the
+-- appointment is claimed by a version-conditional update, which also waits
+-- for the bookers joining its waitlist at that moment.
+CREATE OR REPLACE FUNCTION cancel_appointment(p_appnt_id INTEGER, p_patient_id INTEGER)
+RETURNS TABLE (o_outcome VARCHAR, o_promoted_patient_id INTEGER, o_old_status VARCHAR, o_new_status VARCHAR) AS $$
+DECLARE
+	v_adate DATE;
+	v_version INTEGER;
+	v_holder INTEGER;
+	v_cancelled INTEGER;
+	v_tries INTEGER := 0;
+BEGIN
+	LOOP
+		v_tries := v_tries + 1;
+		IF v_tries > 100 THEN
+			RAISE EXCEPTION 'appointment % kept changing while it was cancelled', p_appnt_id
+				USING ERRCODE = 'serialization_failure';
+		END IF;
+
+		SELECT s.o_adate, s.o_status, s.o_version, s.o_patient_id INTO v_adate, o_old_status, v_version, v_holder
+		FROM appointment_state(p_appnt_id) s;
+		o_new_status := o_old_status;
+
+		IF o_old_status IN ('AC', 'WL') AND (p_patient_id IS NULL OR v_holder = p_patient_id) THEN
+			UPDATE Appointment SET version = version + 1
+			WHERE appnt_ID = p_appnt_id AND adate = v_adate AND status = o_old_status AND version = v_version;
+			CONTINUE WHEN NOT FOUND;
+			DELETE FROM waitlist w
+			WHERE w.appnt_ID = p_appnt_id AND w.ticket = (SELECT MIN(x.ticket) FROM waitlist x WHERE x.appnt_ID = p_appnt_id)
+			RETURNING w.patient_ID INTO o_promoted_patient_id;
+			o_new_status := CASE WHEN o_promoted_patient_id IS NULL THEN 'AV'
+				WHEN EXISTS (SELECT 1 FROM waitlist w WHERE w.appnt_ID = p_appnt_id) THEN 'WL' ELSE 'AC' END;
+			UPDATE Appointment SET status = o_new_status, patient_ID = o_promoted_patient_id
+			WHERE appnt_ID = p_appnt_id AND adate = v_adate AND status = o_old_status;
+			v_cancelled := v_holder;
+		ELSIF p_patient_id IS NOT NULL
+				AND EXISTS (SELECT 1 FROM waitlist w WHERE w.appnt_ID = p_appnt_id AND w.patient_ID = p_patient_id) THEN
+			UPDATE Appointment SET version = version + 1
+			WHERE appnt_ID = p_appnt_id AND adate = v_adate AND status = o_old_status AND version = v_version;
+			CONTINUE WHEN NOT FOUND;
+			DELETE FROM waitlist w WHERE w.appnt_ID = p_appnt_id AND w.patient_ID = p_patient_id;
+			IF o_old_status = 'WL' AND NOT EXISTS (SELECT 1 FROM waitlist w WHERE w.appnt_ID = p_appnt_id) THEN
+				o_new_status := 'AC';
+				UPDATE Appointment SET status = o_new_status
+				WHERE appnt_ID = p_appnt_id AND adate = v_adate AND status = o_old_status;
+			END IF;
+			v_cancelled := p_patient_id;
+		ELSE
+			o_outcome := 'NOT_BOOKED';
+			RETURN NEXT;
+			RETURN;
+		END IF;
+
+		UPDATE Patient SET number_of_appts = GREATEST(COALESCE(number_of_appts, 0) - 1, 0) WHERE patient_ID = v_cancelled;
+		o_outcome := 'CANCELLED';
+		RETURN NEXT;
+		RETURN;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+
+--------------
+---TRIGGERS---
+--------------
+-- Tell clients caching reference data (ReferenceCache) which table changed
+-- and how, as 'table:OPERATION'. An UPDATE of Doctor or Department adds the
+-- IDs of the doctors that moved to another department or of the renamed
+-- departments, 'doctor:UPDATE:4,9', so the AvailabilityIndex can move just
+-- their appointments; without the IDs (too many to fit) it reloads.
+-- Notifications are delivered on commit, once per distinct payload.
+CREATE OR REPLACE FUNCTION notify_reference_changed() RETURNS trigger AS $$
+DECLARE
+	v_ids TEXT;
+	v_count BIGINT;
+BEGIN
+	IF TG_OP <> 'UPDATE' OR TG_TABLE_NAME = 'hospital' THEN
+		PERFORM pg_notify('reference_changed', TG_TABLE_NAME || ':' || TG_OP);
+		RETURN NULL;
+	ELSIF TG_TABLE_NAME = 'doctor' THEN
+		SELECT string_agg(o.doctor_ID::text, ','), COUNT(*) INTO v_ids, v_count
+		FROM old_rows o LEFT JOIN new_rows n ON n.doctor_ID = o.doctor_ID
+		WHERE n.doctor_ID IS NULL OR n.did <> o.did;
+	ELSE
+		SELECT string_agg(o.dept_ID::text, ','), COUNT(*) INTO v_ids, v_count
+		FROM old_rows o LEFT JOIN new_rows n ON n.dept_ID = o.dept_ID
+		WHERE n.dept_ID IS NULL OR n.name <> o.name;
+	END IF;
+	-- 500 IDs stay below the 8000 byte payload limit
+	IF v_count > 500 THEN
+		PERFORM pg_notify('reference_changed', TG_TABLE_NAME || ':UPDATE');
+	ELSE
+		PERFORM pg_notify('reference_changed', TG_TABLE_NAME || ':UPDATE:' || COALESCE(v_ids, ''));
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER doctor_reference_changed AFTER INSERT OR DELETE OR TRUNCATE ON Doctor
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_changed();
+CREATE TRIGGER doctor_reference_update AFTER UPDATE ON Doctor
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_changed();
+CREATE TRIGGER department_reference_changed AFTER INSERT OR DELETE OR TRUNCATE ON Department
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_changed();
+CREATE TRIGGER department_reference_update AFTER UPDATE ON Department
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_changed();
+CREATE TRIGGER hospital_reference_changed AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Hospital
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_changed();
+
+
+--------------
+---COUNTERS---
+--------------
+-- Appointments per (status, doctor), the aggregate behind menu 7 and 8, so
+-- the reports read one row per doctor and status instead of joining every
+-- appointment. Kept up to date by the statement-level triggers below, which
+-- apply the changed rows as one set (COPY and batches included). Rows are
+-- not deleted when their count drops to 0; readers filter on cnt > 0.
+-- CounterCheck compares the table with the live join and can rebuild it.
+CREATE TABLE doctor_status_count
+(
+	status VARCHAR(2) NOT NULL,
+	doctor_id INTEGER NOT NULL,
+	cnt BIGINT NOT NULL,
+	PRIMARY KEY (status, doctor_id)
+);
+
+-- Recomputes every count from the live join; writers wait until it commits.
+CREATE OR REPLACE FUNCTION rebuild_doctor_status_count() RETURNS BIGINT AS $$
+DECLARE
+	n BIGINT;
+BEGIN
+	LOCK TABLE Appointment, has_appointment IN SHARE MODE;
+	DELETE FROM doctor_status_count;
+	INSERT INTO doctor_status_count (status, doctor_id, cnt)
+	SELECT a.status, ha.doctor_id, COUNT(*)
+	FROM has_appointment ha INNER JOIN Appointment a ON a.appnt_ID = ha.appt_id
+	WHERE a.status IS NOT NULL
+	GROUP BY a.status, ha.doctor_id;
+	GET DIAGNOSTICS n = ROW_COUNT;
+	RETURN n;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT rebuild_doctor_status_count();
+
+-- A link between an appointment and a doctor was added, removed or changed.
+-- Deltas are applied in key order so concurrent statements do not deadlock.
+-- The linked appointments are locked first: the foreign key only takes a
+-- key share lock, which does not block a concurrent status change, and
+-- each side would then count the other's appointment in its old state. With
+-- the lock, a status change either waits for this transaction, or commits
+-- first and its new status is the one read below (each statement of the
+-- function sees what committed before it started).
+CREATE OR REPLACE FUNCTION count_has_appointment() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		PERFORM 1 FROM Appointment a WHERE a.appnt_ID IN (SELECT n.appt_id FROM new_rows n)
+		ORDER BY a.appnt_ID FOR NO KEY UPDATE OF a;
+	ELSIF TG_OP = 'DELETE' THEN
+		PERFORM 1 FROM Appointment a WHERE a.appnt_ID IN (SELECT o.appt_id FROM old_rows o)
+		ORDER BY a.appnt_ID FOR NO KEY UPDATE OF a;
+	ELSIF TG_OP = 'UPDATE' THEN
+		PERFORM 1 FROM Appointment a WHERE a.appnt_ID IN (SELECT n.appt_id FROM new_rows n UNION SELECT o.appt_id FROM old_rows o)
+		ORDER BY a.appnt_ID FOR NO KEY UPDATE OF a;
+	END IF;
+
+	IF TG_OP = 'TRUNCATE' THEN
+		TRUNCATE doctor_status_count;
+	ELSIF TG_OP = 'INSERT' THEN
+		INSERT INTO doctor_status_count AS c (status, doctor_id, cnt)
+		SELECT a.status, n.doctor_id, COUNT(*)
+		FROM new_rows n INNER JOIN Appointment a ON a.appnt_ID = n.appt_id
+		WHERE a.status IS NOT NULL
+		GROUP BY a.status, n.doctor_id ORDER BY 1, 2
+		ON CONFLICT (status, doctor_id) DO UPDATE SET cnt = c.cnt + EXCLUDED.cnt;
+	ELSIF TG_OP = 'DELETE' THEN
+		INSERT INTO doctor_status_count AS c (status, doctor_id, cnt)
+		SELECT a.status, o.doctor_id, -COUNT(*)
+		FROM old_rows o INNER JOIN Appointment a ON a.appnt_ID = o.appt_id
+		WHERE a.status IS NOT NULL
+		GROUP BY a.status, o.doctor_id ORDER BY 1, 2
+		ON CONFLICT (status, doctor_id) DO UPDATE SET cnt = c.cnt + EXCLUDED.cnt;
+	ELSE
+		INSERT INTO doctor_status_count AS c (status, doctor_id, cnt)
+		SELECT a.status, d.doctor_id, SUM(d.delta)
+		FROM (SELECT n.appt_id, n.doctor_id, 1 AS delta FROM new_rows n
+			UNION ALL SELECT o.appt_id, o.doctor_id, -1 FROM old_rows o) d
+		INNER JOIN Appointment a ON a.appnt_ID = d.appt_id
+		WHERE a.status IS NOT NULL
+		GROUP BY a.status, d.doctor_id HAVING SUM(d.delta) <> 0 ORDER BY 1, 2
+		ON CONFLICT (status, doctor_id) DO UPDATE SET cnt = c.cnt + EXCLUDED.cnt;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The status of appointments changed (e.g. a booking, AV -> AC). Inserting
+-- or deleting an appointment changes nothing: it has no doctor yet, or the
+-- foreign key of has_appointment prevents the delete.
+CREATE OR REPLACE FUNCTION count_appointment_status() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO doctor_status_count AS c (status, doctor_id, cnt)
+	SELECT d.status, ha.doctor_id, SUM(d.delta)
+	FROM (SELECT o.appnt_ID, o.status, -1 AS delta
+			FROM old_rows o INNER JOIN new_rows n ON n.appnt_ID = o.appnt_ID
+			WHERE o.status IS DISTINCT FROM n.status
+		UNION ALL SELECT n.appnt_ID, n.status, 1
+			FROM old_rows o INNER JOIN new_rows n ON n.appnt_ID = o.appnt_ID
+			WHERE o.status IS DISTINCT FROM n.status) d
+	INNER JOIN has_appointment ha ON ha.appt_id = d.appnt_ID
+	WHERE d.status IS NOT NULL
+	GROUP BY d.status, ha.doctor_id HAVING SUM(d.delta) <> 0 ORDER BY 1, 2
+	ON CONFLICT (status, doctor_id) DO UPDATE SET cnt = c.cnt + EXCLUDED.cnt;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- transition tables need one trigger per event
+CREATE TRIGGER has_appointment_count_insert AFTER INSERT ON has_appointment
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_has_appointment();
+CREATE TRIGGER has_appointment_count_delete AFTER DELETE ON has_appointment
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_has_appointment();
+CREATE TRIGGER has_appointment_count_update AFTER UPDATE ON has_appointment
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_has_appointment();
+CREATE TRIGGER has_appointment_count_truncate AFTER TRUNCATE ON has_appointment
+	FOR EACH STATEMENT EXECUTE PROCEDURE count_has_appointment();
+CREATE TRIGGER appointment_count_update AFTER UPDATE ON Appointment
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_appointment_status();
+
+
+------------------
+---AVAILABILITY---
+------------------
+-- Tell clients indexing the available appointments (AvailabilityIndex)
+-- which appointments changed: their status, date or time slot, or the
+-- doctors they belong to. The payload is a comma separated list of
+-- appnt_IDs, or 'reload' when it would not fit in a notification.
+CREATE OR REPLACE FUNCTION notify_availability_changed() RETURNS trigger AS $$
+DECLARE
+	v_ids TEXT;
+	v_count BIGINT;
+BEGIN
+	IF TG_OP = 'TRUNCATE' THEN
+		v_count := 501;
+	ELSIF TG_TABLE_NAME = 'appointment' THEN
+		SELECT string_agg(n.appnt_ID::text, ','), COUNT(*) INTO v_ids, v_count
+		FROM old_rows o INNER JOIN new_rows n ON n.appnt_ID = o.appnt_ID
+		WHERE (o.status, o.adate, o.time_slot) IS DISTINCT FROM (n.status, n.adate, n.time_slot);
+	ELSIF TG_OP = 'INSERT' THEN
+		SELECT string_agg(DISTINCT n.appt_id::text, ','), COUNT(DISTINCT n.appt_id) INTO v_ids, v_count FROM new_rows n;
+	ELSIF TG_OP = 'DELETE' THEN
+		SELECT string_agg(DISTINCT o.appt_id::text, ','), COUNT(DISTINCT o.appt_id) INTO v_ids, v_count FROM old_rows o;
+	ELSE
+		SELECT string_agg(DISTINCT d.appt_id::text, ','), COUNT(DISTINCT d.appt_id) INTO v_ids, v_count
+		FROM (SELECT n.appt_id FROM new_rows n UNION ALL SELECT o.appt_id FROM old_rows o) d;
+	END IF;
+	-- 500 IDs stay below the 8000 byte payload limit
+	IF v_count > 500 THEN
+		PERFORM pg_notify('availability_changed', 'reload');
+	ELSIF v_count > 0 THEN
+		PERFORM pg_notify('availability_changed', v_ids);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER has_appointment_availability_insert AFTER INSERT ON has_appointment
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_availability_changed();
+CREATE TRIGGER has_appointment_availability_delete AFTER DELETE ON has_appointment
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_availability_changed();
+CREATE TRIGGER has_appointment_availability_update AFTER UPDATE ON has_appointment
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_availability_changed();
+CREATE TRIGGER has_appointment_availability_truncate AFTER TRUNCATE ON has_appointment
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_availability_changed();
+CREATE TRIGGER appointment_availability_update AFTER UPDATE ON Appointment
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_availability_changed();
+
+
+--------------------
+---SEARCH ROLLUPS---
+--------------------
+-- Searches per hospital and appointment, and per hospital, department and
+-- time slot, for SearchAnalytics. rollup_searches() adds the searches of
+-- every transaction that finished since the previous call, so each call
+-- only reads the new rows. A transaction ID is final once it is below the
+-- xmin of the current snapshot: nothing that started earlier is still
+-- running, so no row can appear behind the watermark.
+CREATE TABLE search_watermark
+(
+	id INTEGER NOT NULL DEFAULT 1 CHECK (id = 1),
+	-- searches with created_txid below this have been rolled up
+	upto BIGINT NOT NULL,
+	PRIMARY KEY (id)
+);
+INSERT INTO search_watermark (upto) VALUES (0);
+
+CREATE TABLE search_appointment_count
+(
+	hid INTEGER NOT NULL,
+	aid INTEGER NOT NULL,
+	searches BIGINT NOT NULL,
+	PRIMARY KEY (hid, aid)
+);
+
+-- dept_ID -1 for appointments without a doctor, time_slot '' when missing;
+-- an appointment of several doctors counts for each of their departments
+CREATE TABLE search_demand
+(
+	hid INTEGER NOT NULL,
+	dept_id INTEGER NOT NULL,
+	time_slot VARCHAR(11) NOT NULL,
+	searches BIGINT NOT NULL,
+	PRIMARY KEY (hid, dept_id, time_slot)
+);
+
+-- Rolls up the searches added since the last call; concurrent calls wait
+-- for each other. Returns the number of searches rolled up.
+CREATE OR REPLACE FUNCTION rollup_searches() RETURNS BIGINT AS $$
+DECLARE
+	lo BIGINT;
+	hi BIGINT := txid_snapshot_xmin(txid_current_snapshot());
+	n BIGINT;
+BEGIN
+	SELECT w.upto INTO lo FROM search_watermark w WHERE w.id = 1 FOR UPDATE;
+	IF hi <= lo THEN
+		RETURN 0;
+	END IF;
+
+	CREATE TEMP TABLE new_searches ON COMMIT DROP AS
+	SELECT s.hid, s.aid, COUNT(*) AS searches
+	FROM searches s WHERE s.created_txid >= lo AND s.created_txid < hi
+	GROUP BY s.hid, s.aid;
+	SELECT COALESCE(SUM(ns.searches), 0) INTO n FROM new_searches ns;
+
+	INSERT INTO search_appointment_count AS c (hid, aid, searches)
+	SELECT ns.hid, ns.aid, ns.searches FROM new_searches ns ORDER BY 1, 2
+	ON CONFLICT (hid, aid) DO UPDATE SET searches = c.searches + EXCLUDED.searches;
+
+	INSERT INTO search_demand AS c (hid, dept_id, time_slot, searches)
+	SELECT ns.hid, COALESCE(d.did, -1), COALESCE(a.time_slot, ''), SUM(ns.searches)
+	FROM new_searches ns INNER JOIN Appointment a ON a.appnt_ID = ns.aid
+	LEFT JOIN has_appointment ha ON ha.appt_id = ns.aid LEFT JOIN Doctor d ON d.doctor_ID = ha.doctor_id
+	GROUP BY 1, 2, 3 ORDER BY 1, 2, 3
+	ON CONFLICT (hid, dept_id, time_slot) DO UPDATE SET searches = c.searches + EXCLUDED.searches;
+
+	DROP TABLE new_searches;
+	UPDATE search_watermark SET upto = hi WHERE id = 1;
+	RETURN n;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Empties the rollups and rolls up every search again, e.g. after searches
+-- was truncated.
+CREATE OR REPLACE FUNCTION rebuild_search_rollups() RETURNS BIGINT AS $$
+BEGIN
+	PERFORM 1 FROM search_watermark w WHERE w.id = 1 FOR UPDATE;
+	TRUNCATE search_appointment_count, search_demand;
+	UPDATE search_watermark SET upto = 0 WHERE id = 1;
+	RETURN rollup_searches();
+END;
+$$ LANGUAGE plpgsql;
+
+-- Emptying searches empties the rollups; rows added later are above the
+-- watermark anyway.
+CREATE OR REPLACE FUNCTION clear_search_rollups() RETURNS trigger AS $$
+BEGIN
+	TRUNCATE search_appointment_count, search_demand;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER searches_rollup_truncate AFTER TRUNCATE ON searches
+	FOR EACH STATEMENT EXECUTE PROCEDURE clear_search_rollups();
+
+SELECT rollup_searches();
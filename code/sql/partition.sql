@@ -0,0 +1,217 @@
+-- Converts Appointment into a partitioned table. Run after create.sql:
+--   psql -h localhost -p $PGPORT $USER"_DB" < sql/partition.sql
+-- Requires PostgreSQL 13 or later (row triggers on the partitioned Appointment).
+--
+-- Layout: Appointment is partitioned by month of adate (appointment_YYYYMM),
+-- and every month by status into appointment_YYYYMM_pa (past appointments)
+-- and appointment_YYYYMM_open (everything else). Dates outside the created
+-- months land in appointment_default. Queries with an adate condition
+-- (menu 5 and 6) only read the months they need, and the past appointments of
+-- old months can be archived without touching the open ones.
+--
+-- A partitioned table can only enforce uniqueness over columns that include
+-- the partition keys, so the primary key becomes (appnt_ID, adate, status).
+-- appnt_ID is kept unique by appointment_key, which holds one row per
+-- appointment and is maintained by triggers on Appointment: a second
+-- appointment with the same ID fails on its primary key. The foreign keys that
+-- referenced Appointment reference appointment_key instead, so they keep their
+-- row locks against a concurrent delete. A row that moves between partitions
+-- (a status change to or from PA, a new date) keeps its key. The key also
+-- records the appointment's adate and status, the partition keys, so
+-- make_appointment() and cancel_appointment() find the one partition to read
+-- and update (see appointment_state() below).
+--
+-- Archived past appointments (see archive_appointment_partitions) keep their
+-- keys, so has_appointment, searches, schedules and waitlist rows of an
+-- archived appointment stay valid and its ID is never reused.
+--
+-- PartitionManager creates future months and archives old ones.
+
+-------------------------
+---PARTITION FUNCTIONS---
+-------------------------
+-- Creates the monthly partitions covering [p_from, p_to) that do not exist
+-- yet, moving any rows of those months out of appointment_default first. The
+-- rows are moved partition to partition, which keeps their appointment_key.
+CREATE OR REPLACE FUNCTION create_appointment_partitions(p_from DATE, p_to DATE) RETURNS INTEGER AS $$
+DECLARE
+	m DATE := date_trunc('month', p_from)::date;
+	part TEXT;
+	created INTEGER := 0;
+BEGIN
+	WHILE m < p_to LOOP
+		part := 'appointment_' || to_char(m, 'YYYYMM');
+		IF to_regclass(part) IS NULL THEN
+			CREATE TEMP TABLE IF NOT EXISTS appointment_moved (LIKE Appointment) ON COMMIT DROP;
+			WITH moved AS (DELETE FROM appointment_default WHERE adate >= m AND adate < (m + interval '1 month') RETURNING *)
+			INSERT INTO appointment_moved SELECT * FROM moved;
+
+			EXECUTE format('CREATE TABLE %I PARTITION OF Appointment FOR VALUES FROM (%L) TO (%L) PARTITION BY LIST (status)',
+				part, m, (m + interval '1 month')::date);
+			EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES IN (''PA'')', part || '_pa', part);
+			EXECUTE format('CREATE TABLE %I PARTITION OF %I DEFAULT', part || '_open', part);
+
+			EXECUTE format('INSERT INTO %I SELECT * FROM appointment_moved', part);
+			TRUNCATE appointment_moved;
+			created := created + 1;
+		END IF;
+		m := (m + interval '1 month')::date;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches the past-appointment partitions of every month that ends on or
+-- before p_before and moves them to the appointment_archive schema, where
+-- they stay queryable. Archived appointments no longer count towards menu 7
+-- and 8, so their counts are taken out of doctor_status_count. Their keys stay
+-- in appointment_key, which the archived partition still references. Holds an
+-- exclusive lock on each month while it is archived.
+CREATE OR REPLACE FUNCTION archive_appointment_partitions(p_before DATE) RETURNS SETOF TEXT AS $$
+DECLARE
+	r RECORD;
+BEGIN
+	CREATE SCHEMA IF NOT EXISTS appointment_archive;
+	FOR r IN
+		SELECT c.relname AS part, p.relname AS month
+		FROM pg_inherits i
+		INNER JOIN pg_class c ON c.oid = i.inhrelid
+		INNER JOIN pg_class p ON p.oid = i.inhparent
+		WHERE p.relnamespace = (SELECT n.oid FROM pg_namespace n WHERE n.nspname = current_schema())
+		AND p.relname ~ '^appointment_[0-9]{6}$' AND c.relname = p.relname || '_pa'
+		AND to_date(substr(p.relname, 13, 6), 'YYYYMM') + interval '1 month' <= p_before
+		ORDER BY p.relname
+	LOOP
+		EXECUTE format('LOCK TABLE %I IN ACCESS EXCLUSIVE MODE', r.month);
+		EXECUTE format('INSERT INTO doctor_status_count AS c (status, doctor_id, cnt) '
+			|| 'SELECT a.status, ha.doctor_id, -COUNT(*) FROM %I a INNER JOIN has_appointment ha ON ha.appt_id = a.appnt_ID '
+			|| 'GROUP BY a.status, ha.doctor_id ORDER BY 1, 2 '
+			|| 'ON CONFLICT (status, doctor_id) DO UPDATE SET cnt = c.cnt + EXCLUDED.cnt', r.part);
+		EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', r.month, r.part);
+		EXECUTE format('ALTER TABLE %I SET SCHEMA appointment_archive', r.part);
+		RETURN NEXT r.part;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Keeps appointment_key in step with Appointment. Statement triggers on the
+-- partitioned table do not fire for rows moving between partitions, so only
+-- IDs that are really added or removed reach the key table; moved rows only
+-- update its adate and status. Deleting a key that is still referenced fails
+-- on the foreign keys to appointment_key.
+CREATE OR REPLACE FUNCTION maintain_appointment_key() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO appointment_key (appnt_ID, adate, status) SELECT n.appnt_ID, n.adate, n.status FROM new_rows n ORDER BY 1;
+	ELSIF TG_OP = 'DELETE' THEN
+		DELETE FROM appointment_key k USING old_rows o WHERE k.appnt_ID = o.appnt_ID;
+	ELSE
+		DELETE FROM appointment_key k
+		WHERE k.appnt_ID IN (SELECT o.appnt_ID FROM old_rows o EXCEPT SELECT n.appnt_ID FROM new_rows n);
+		UPDATE appointment_key k SET adate = n.adate, status = n.status FROM new_rows n
+		WHERE k.appnt_ID = n.appnt_ID AND (k.adate, k.status) IS DISTINCT FROM (n.adate, n.status);
+		INSERT INTO appointment_key (appnt_ID, adate, status)
+		SELECT n.appnt_ID, n.adate, n.status FROM new_rows n
+		WHERE n.appnt_ID IN (SELECT x.appnt_ID FROM new_rows x EXCEPT SELECT o.appnt_ID FROM old_rows o) ORDER BY 1;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+
+----------------
+---CONVERSION---
+----------------
+BEGIN;
+LOCK TABLE Appointment, has_appointment, searches, schedules, waitlist IN ACCESS EXCLUSIVE MODE;
+
+ALTER TABLE has_appointment DROP CONSTRAINT has_appointment_appt_id_fkey;
+ALTER TABLE searches DROP CONSTRAINT searches_aid_fkey;
+ALTER TABLE schedules DROP CONSTRAINT schedules_appt_id_fkey;
+ALTER TABLE waitlist DROP CONSTRAINT waitlist_appnt_id_fkey;
+
+-- one row per appointment ID, see the top of this file
+CREATE TABLE appointment_key
+(
+	appnt_ID INTEGER NOT NULL,
+	-- where the appointment is partitioned, see maintain_appointment_key()
+	adate DATE NOT NULL,
+	status _STATUS NOT NULL,
+	PRIMARY KEY (appnt_ID)
+);
+INSERT INTO appointment_key (appnt_ID, adate, status) SELECT appnt_ID, adate, status FROM Appointment;
+
+ALTER TABLE has_appointment ADD CONSTRAINT has_appointment_appt_id_fkey FOREIGN KEY (appt_id) REFERENCES appointment_key(appnt_ID);
+ALTER TABLE searches ADD CONSTRAINT searches_aid_fkey FOREIGN KEY (aid) REFERENCES appointment_key(appnt_ID);
+ALTER TABLE schedules ADD CONSTRAINT schedules_appt_id_fkey FOREIGN KEY (appt_id) REFERENCES appointment_key(appnt_ID);
+ALTER TABLE waitlist ADD CONSTRAINT waitlist_appnt_id_fkey FOREIGN KEY (appnt_ID) REFERENCES appointment_key(appnt_ID);
+
+ALTER TABLE Appointment RENAME TO appointment_unpartitioned;
+ALTER TABLE appointment_unpartitioned RENAME CONSTRAINT appointment_pkey TO appointment_unpartitioned_pkey;
+ALTER INDEX appointment_status_date_idx RENAME TO appointment_unpartitioned_status_date_idx;
+ALTER INDEX appointment_page_idx RENAME TO appointment_unpartitioned_page_idx;
+DROP TRIGGER appointment_count_update ON appointment_unpartitioned;
+DROP TRIGGER appointment_availability_update ON appointment_unpartitioned;
+DROP TRIGGER appointment_version_stamp ON appointment_unpartitioned;
+
+CREATE TABLE Appointment
+(
+	appnt_ID INTEGER NOT NULL,
+	adate DATE NOT NULL,
+	time_slot VARCHAR(11),
+	status _STATUS NOT NULL,
+	version INTEGER NOT NULL DEFAULT 0,
+	patient_ID INTEGER,
+	PRIMARY KEY (appnt_ID, adate, status),
+	-- deferred: the key is added by the statement trigger after the row
+	FOREIGN KEY (appnt_ID) REFERENCES appointment_key(appnt_ID) DEFERRABLE INITIALLY DEFERRED
+) PARTITION BY RANGE (adate);
+CREATE TABLE appointment_default PARTITION OF Appointment DEFAULT;
+
+-- the loaded months and the next year
+SELECT create_appointment_partitions(
+	LEAST((SELECT MIN(adate) FROM appointment_unpartitioned), current_date),
+	GREATEST((SELECT MAX(adate) + 1 FROM appointment_unpartitioned), (current_date + interval '12 months')::date));
+
+INSERT INTO Appointment (appnt_ID, adate, time_slot, status, version, patient_ID)
+SELECT appnt_ID, adate, time_slot, status, version, patient_ID FROM appointment_unpartitioned;
+DROP TABLE appointment_unpartitioned;
+
+-- appointments by status and date (menu 5, 6), created on every partition
+CREATE INDEX appointment_status_date_idx ON Appointment (status, adate);
+-- bookable appointments in page order (menu 5, 6 with a cursor), see create.sql
+CREATE INDEX appointment_page_idx ON Appointment (adate, (COALESCE(time_slot, '')) COLLATE "C", appnt_ID)
+	WHERE status IN ('AV', 'AC');
+
+CREATE TRIGGER appointment_count_update AFTER UPDATE ON Appointment
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE count_appointment_status();
+CREATE TRIGGER appointment_availability_update AFTER UPDATE ON Appointment
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE notify_availability_changed();
+CREATE TRIGGER appointment_version_stamp BEFORE UPDATE OF status ON Appointment
+	FOR EACH ROW WHEN (NEW.status IS DISTINCT FROM OLD.status) EXECUTE PROCEDURE stamp_appointment_version();
+CREATE TRIGGER appointment_key_insert AFTER INSERT ON Appointment
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE maintain_appointment_key();
+CREATE TRIGGER appointment_key_update AFTER UPDATE ON Appointment
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE maintain_appointment_key();
+CREATE TRIGGER appointment_key_delete AFTER DELETE ON Appointment
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE maintain_appointment_key();
+
+-- Replaces the create.sql version: the partition keys come from
+-- appointment_key, so only the appointment's own partition is read. STABLE,
+-- so both reads see the snapshot of the calling statement and agree.
+CREATE OR REPLACE FUNCTION appointment_state(p_appnt_id INTEGER)
+RETURNS TABLE (o_adate DATE, o_status VARCHAR, o_version INTEGER, o_patient_id INTEGER) AS $$
+DECLARE
+	v_adate DATE;
+	v_status VARCHAR;
+BEGIN
+	SELECT k.adate, k.status INTO v_adate, v_status FROM appointment_key k WHERE k.appnt_ID = p_appnt_id;
+	RETURN QUERY SELECT a.adate, a.status::VARCHAR, a.version, a.patient_ID FROM Appointment a
+	WHERE a.appnt_ID = p_appnt_id AND a.adate = v_adate AND a.status = v_status;
+END;
+$$ LANGUAGE plpgsql STABLE;
+
+COMMIT;
+
+ANALYZE Appointment;
+ANALYZE appointment_key;